@@ -22,7 +22,6 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.URI;
 
 /**
  * @author LiYue
@@ -38,19 +37,16 @@ public class Client {
         try(RpcAccessPoint rpcAccessPoint = ServiceSupport.load(RpcAccessPoint.class)) {
             NameService nameService = rpcAccessPoint.getNameService(file.toURI());
             assert nameService != null;
-            //uri： rpc://localhost:9999
-            //客户端step1：利用注册中心服务 NameService，向注册中心查询serviceName的服务地址
-            URI uri = nameService.lookupService(serviceName);
-            assert uri != null;
-            logger.info("找到服务{}，提供者: {}.", serviceName, uri);
             /**
              * 在客户端，业务代码得到的 HelloService 这个接口的实例，
              * 并不是我们在服务端提供的真正的实现类 HelloServiceImpl 的一个实例。
              * 它实际上是由 RPC 框架提供的一个代理类的实例。这个代理类有一个专属的名称，叫“桩（Stub）
              */
             //获得远程服务的本地实例,即“桩”，桩是 RPC 框架在客户端的服务代理
-            //客户端step2：利用RPC 框架提供的服务 RpcAccessPoint，获得远程服务的本地实例
-            HelloService helloService = rpcAccessPoint.getRemoteService(uri, HelloService.class);
+            //客户端step1：利用注册中心服务 NameService，查询serviceName的所有服务地址（如：rpc://localhost:9999），
+            //客户端step2：利用RPC 框架提供的服务 RpcAccessPoint，获得远程服务的本地实例，每次调用在所有服务地址之间负载均衡
+            HelloService helloService = rpcAccessPoint.getRemoteService(nameService, HelloService.class);
+            logger.info("找到服务{}，提供者: {}.", serviceName, nameService.lookupServices(serviceName));
             logger.info("请求服务, name: {}...", name);
             String response = helloService.hello(name);
             logger.info("收到响应: {}.", response);
@@ -16,6 +16,9 @@ package com.github.liyue2008.rpc;
 import java.io.IOException;
 import java.net.URI;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * 定一个注册中心的接口 NameService
@@ -37,12 +40,25 @@ public interface NameService {
     void connect(URI nameServiceUri);
     /**
      * 供服务端使用
-     * 注册服务
+     * 注册服务：注册中心给服务提供者一个租约，由注册中心的客户端在后台定时发送心跳续约，
+     * 服务提供者进程退出或者挂掉之后不再续约，租约到期后注册中心自动删除这个服务提供者。
+     * 租约时长通过 simple.rpc.nameservice.lease.ttl.ms 配置，小于等于0表示永久注册。
      * @param serviceName 服务名称
      * @param uri 服务地址
      */
     void registerService(String serviceName, URI uri) throws IOException;
 
+    /**
+     * 供服务端使用
+     * 注销服务：停止续约，并立即从注册中心删除这个服务提供者。服务端正常退出之前调用。
+     * 不支持注销的注册中心抛出 UnsupportedOperationException。
+     * @param serviceName 服务名称
+     * @param uri 服务地址
+     */
+    default void unregisterService(String serviceName, URI uri) throws IOException {
+        throw new UnsupportedOperationException("Unregister service is not supported by " + getClass().getName() + "!");
+    }
+
     /**
      * 供客户端使用
      * 向注册中心查询serviceName的服务地址
@@ -50,4 +66,26 @@ public interface NameService {
      * @return 服务地址
      */
     URI lookupService(String serviceName) throws IOException;
+
+    /**
+     * 供客户端使用
+     * 向注册中心查询serviceName的所有服务地址，客户端自己在这些地址之间做负载均衡
+     * @param serviceName 服务名称
+     * @return 所有服务地址，没有返回空列表
+     */
+    default List<URI> lookupServices(String serviceName) throws IOException {
+        URI uri = lookupService(serviceName);
+        return null == uri ? Collections.emptyList() : Collections.singletonList(uri);
+    }
+
+    /**
+     * 订阅服务地址的变化：serviceName的服务地址发生变化之后，注册中心把最新的所有地址推送给 listener。
+     * 不支持推送的注册中心返回false，客户端只能定时调用 {@link #lookupServices(String)} 刷新。
+     * @param serviceName 服务名称
+     * @param listener 接收最新的所有服务地址，不能阻塞
+     * @return 是否支持推送
+     */
+    default boolean subscribe(String serviceName, Consumer<List<URI>> listener) {
+        return false;
+    }
 }
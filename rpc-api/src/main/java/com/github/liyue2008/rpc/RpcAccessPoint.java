@@ -16,6 +16,7 @@ package com.github.liyue2008.rpc;
 import com.github.liyue2008.rpc.spi.ServiceSupport;
 
 import java.io.Closeable;
+import java.io.IOException;
 import java.net.URI;
 import java.util.Collection;
 
@@ -37,6 +38,24 @@ public interface RpcAccessPoint extends Closeable{
      */
     <T> T getRemoteService(URI uri, Class<T> serviceClass);
 
+    /**
+     * 客户端通过注册中心获取远程服务的引用
+     * 服务名是服务接口的类名，服务的所有提供者由服务发现缓存并跟踪变化，
+     * 每次调用按照负载均衡策略（见 {@link RpcLoadBalance}）选择一个服务提供者。
+     * 默认的实现只在获取引用时查询一次注册中心，调用都发给同一个服务提供者。
+     * @param nameService 注册中心
+     * @param serviceClass 服务的接口类的Class
+     * @param <T> 服务接口的类型
+     * @return 远程服务引用
+     */
+    default <T> T getRemoteService(NameService nameService, Class<T> serviceClass) throws IOException {
+        URI uri = nameService.lookupService(serviceClass.getCanonicalName());
+        if (null == uri) {
+            throw new IOException(String.format("No provider of service %s!", serviceClass.getCanonicalName()));
+        }
+        return getRemoteService(uri, serviceClass);
+    }
+
     /**
      * 服务端注册服务的实现实例
      * addServiceProvider 供服务端来使用，这个方法的作用和 Dubbo 的 @Service 注解是一样的，
@@ -50,6 +69,14 @@ public interface RpcAccessPoint extends Closeable{
      */
     <T> URI addServiceProvider(T service, Class<T> serviceClass);
 
+    /**
+     * 服务端的地址，也就是 {@link #addServiceProvider(Object, Class)} 返回的服务地址。
+     * 端口由系统分配时，这是 {@link #startServer()} 之后实际监听的端口。
+     * @return 服务地址，例如：rpc://localhost:9999
+     * @throws IllegalStateException 端口由系统分配，但服务端还没有启动
+     */
+    URI getServerUri();
+
     /**
      * 获取注册中心的引用
      * @param nameServiceUri 注册中心URI
@@ -0,0 +1,46 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 声明服务接口的桩使用批量模式：在很短的时间窗口内发起的调用攒成一批，用一个请求发给服务端，
+ * 服务端执行完之后用一个响应返回所有的结果，再分发给每个调用。
+ * 调用很频繁、每次调用的数据又很少的服务，可以大大减少数据帧、在途请求和系统调用的数量。
+ * 同步调用会多等待最多 maxDelayMicros 微秒；流式调用不参与批量。
+ * @author LiYue
+ * Date: 2019/10/16
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RpcBatch {
+    /**
+     * 一批最多包含多少个调用，攒够了立即发送
+     */
+    int maxCalls() default 32;
+
+    /**
+     * 第一个调用进入批次之后，最多再等待多少微秒就发送
+     */
+    long maxDelayMicros() default 200L;
+
+    /**
+     * 服务端是否并行执行同一批中的调用，默认按顺序执行
+     */
+    boolean parallel() default false;
+}
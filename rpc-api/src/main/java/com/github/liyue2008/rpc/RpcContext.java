@@ -0,0 +1,48 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc;
+
+/**
+ * 调用上下文，保存只对当前线程接下来的一次远程调用有效的参数。
+ * <pre>
+ *     RpcContext.setTimeout(500L);
+ *     helloService.hello(name); // 这次调用的超时时间是500ms
+ * </pre>
+ * @author LiYue
+ * Date: 2019/10/9
+ */
+public class RpcContext {
+    private final static ThreadLocal<Long> timeout = new ThreadLocal<>();
+
+    /**
+     * 设置当前线程下一次远程调用的超时时间
+     * @param timeoutMillis 超时时间，单位毫秒
+     */
+    public static void setTimeout(long timeoutMillis) {
+        timeout.set(timeoutMillis);
+    }
+
+    /**
+     * 取出并清除当前线程设置的超时时间，供 RPC 框架在发起调用时使用
+     * @return 超时时间，没有设置返回0
+     */
+    public static long removeTimeout() {
+        Long timeoutMillis = timeout.get();
+        if (null == timeoutMillis) {
+            return 0L;
+        }
+        timeout.remove();
+        return timeoutMillis;
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 声明服务接口在多个服务提供者之间使用哪种负载均衡策略，值是策略的名字：
+ * "round-robin"、"least-in-flight"、"p2c-ewma" 或者 "consistent-hash"。
+ * 没有声明的服务使用默认的策略，默认策略可以通过 simple.rpc.client.loadbalance 配置。
+ * 策略的实现通过 SPI 加载，可以按需扩展。
+ * @author LiYue
+ * Date: 2019/10/17
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RpcLoadBalance {
+    String value();
+}
@@ -0,0 +1,169 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.discovery;
+
+import com.github.liyue2008.rpc.NameService;
+import com.github.liyue2008.rpc.config.ConfigSupport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 客户端的服务发现：在内存中缓存每个服务的所有服务提供者地址，调用时不需要访问注册中心。
+ * <ul>
+ *     <li>第一次查询一个服务时从注册中心读取，同时订阅这个服务的变化，支持推送的注册中心变化之后立即更新；</li>
+ *     <li>后台每隔 simple.rpc.client.discovery.refresh.interval.ms 毫秒（默认5000）重新查询一次所有服务，
+ *     不支持推送的注册中心靠它发现变化，支持推送的注册中心靠它弥补丢失的推送。</li>
+ * </ul>
+ * 服务提供者地址变化之后，通知 {@link #watch(String, Consumer)} 注册的监听器，不再需要通知时用 {@link #unwatch(String, Consumer)} 取消。
+ * 刷新失败时保留原来的地址，等下一次刷新再重试。
+ * @author LiYue
+ * Date: 2019/10/17
+ */
+public class ServiceDiscovery implements Closeable {
+    private final static long REFRESH_INTERVAL_MS = ConfigSupport.getLong("client.discovery.refresh.interval.ms", 5000L);
+    /**
+     * 所有的服务发现共享一个后台线程，负责定时刷新
+     */
+    private final static ScheduledExecutorService refreshExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rpc-discovery-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final NameService nameService;
+    private final ConcurrentMap<String, Service> services = new ConcurrentHashMap<>();
+    private final ScheduledFuture<?> refreshTask;
+
+    public ServiceDiscovery(NameService nameService) {
+        this.nameService = nameService;
+        this.refreshTask = refreshExecutor.scheduleWithFixedDelay(this::refresh, REFRESH_INTERVAL_MS, REFRESH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 查询服务的所有服务提供者地址，优先使用缓存
+     * @param serviceName 服务名称
+     * @return 不可修改的地址列表，没有返回空列表
+     */
+    public List<URI> lookup(String serviceName) throws IOException {
+        return serviceOf(serviceName).endpoints;
+    }
+
+    /**
+     * 监听服务提供者地址的变化，注册之后立即用当前的地址调用一次 listener。
+     * listener 在刷新线程或者注册中心推送的线程中执行，可以做一些耗时的操作（例如建立连接），但会推迟其它服务的刷新。
+     * @param serviceName 服务名称
+     * @param listener 接收最新的所有地址
+     */
+    public void watch(String serviceName, Consumer<List<URI>> listener) throws IOException {
+        Service service = serviceOf(serviceName);
+        synchronized (service) {
+            service.listeners.add(listener);
+            listener.accept(service.endpoints);
+        }
+    }
+
+    /**
+     * 取消 {@link #watch(String, Consumer)} 注册的监听器
+     * @param serviceName 服务名称
+     * @param listener 注册时使用的同一个监听器实例
+     */
+    public void unwatch(String serviceName, Consumer<List<URI>> listener) {
+        Service service = services.get(serviceName);
+        if (null != service) {
+            synchronized (service) {
+                service.listeners.remove(listener);
+            }
+        }
+    }
+
+    private Service serviceOf(String serviceName) throws IOException {
+        Service service = services.get(serviceName);
+        if (null != service) {
+            return service;
+        }
+        // 第一次查询必须拿到结果，失败直接抛出异常
+        service = new Service(serviceName, snapshot(nameService.lookupServices(serviceName)));
+        Service previous = services.putIfAbsent(serviceName, service);
+        if (null != previous) {
+            return previous;
+        }
+        Service subscribed = service;
+        nameService.subscribe(serviceName, endpoints -> update(subscribed, endpoints));
+        return service;
+    }
+
+    private void refresh() {
+        for (Service service : services.values()) {
+            try {
+                update(service, nameService.lookupServices(service.name));
+            } catch (Throwable ignored) {
+                // 保留原来的地址，等下一次刷新再重试
+            }
+        }
+    }
+
+    private void update(Service service, List<URI> endpoints) {
+        List<URI> snapshot = snapshot(endpoints);
+        // 加锁保证监听器按照更新的顺序收到地址
+        synchronized (service) {
+            if (snapshot.equals(service.endpoints)) {
+                return;
+            }
+            service.endpoints = snapshot;
+            for (Consumer<List<URI>> listener : service.listeners) {
+                try {
+                    listener.accept(snapshot);
+                } catch (Throwable ignored) {
+                    // 一个监听器出错不影响其它监听器
+                }
+            }
+        }
+    }
+
+    private static List<URI> snapshot(List<URI> endpoints) {
+        return null == endpoints || endpoints.isEmpty() ? Collections.emptyList() :
+                Collections.unmodifiableList(new ArrayList<>(endpoints));
+    }
+
+    /**
+     * 停止定时刷新
+     */
+    @Override
+    public void close() {
+        refreshTask.cancel(false);
+    }
+
+    private static class Service {
+        private final String name;
+        private final List<Consumer<List<URI>>> listeners = new CopyOnWriteArrayList<>();
+        private volatile List<URI> endpoints;
+
+        private Service(String name, List<URI> endpoints) {
+            this.name = name;
+            this.endpoints = endpoints;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.loadbalance;
+
+import com.github.liyue2008.rpc.config.ConfigSupport;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 一致性哈希：路由键相同的调用总是发给同一个服务提供者，服务提供者增减时只有一小部分路由键换到别的服务提供者上。
+ * 每个服务提供者在哈希环上有 simple.rpc.client.loadbalance.hash.replicas 个（默认160）虚拟节点，
+ * 虚拟节点的位置由服务提供者地址的MD5计算。
+ * 哈希环按照服务提供者列表对象缓存，服务发现更新列表之后才重新计算。
+ * 没有路由键的调用（例如没有参数的方法和批量调用）随机选择。
+ * @author LiYue
+ * Date: 2019/10/17
+ */
+public class ConsistentHashLoadBalancer implements LoadBalancer {
+    public final static String NAME = "consistent-hash";
+    private final static int REPLICAS = Math.max(1, ConfigSupport.getInt("client.loadbalance.hash.replicas", 160));
+    private volatile Ring<?> ring;
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <E extends Endpoint> E select(List<E> endpoints, Object key) {
+        if (null == key) {
+            return endpoints.get(ThreadLocalRandom.current().nextInt(endpoints.size()));
+        }
+        Ring<?> ring = this.ring;
+        if (null == ring || ring.endpoints != endpoints) {
+            this.ring = ring = new Ring<>(endpoints);
+        }
+        return (E) ring.get(spread(key.hashCode()));
+    }
+
+    /**
+     * 路由键的 hashCode 质量参差不齐（例如连续的整数），打散之后再在哈希环上查找
+     */
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * 哈希环：按位置排好序的虚拟节点，查找时二分
+     */
+    private static class Ring<E extends Endpoint> {
+        private final List<E> endpoints;
+        private final int [] positions;
+        private final Endpoint [] nodes;
+
+        private Ring(List<E> endpoints) {
+            this.endpoints = endpoints;
+            int size = endpoints.size() * REPLICAS;
+            long [] sorted = new long[size];
+            int index = 0;
+            for (int i = 0; i < endpoints.size(); i++) {
+                byte [] uri = endpoints.get(i).getUri().toString().getBytes(StandardCharsets.UTF_8);
+                for (int replica = 0; replica < REPLICAS; replica++) {
+                    // 高32位是位置，低32位是服务提供者的下标
+                    sorted[index++] = ((long) position(uri, replica) << 32) | i;
+                }
+            }
+            Arrays.sort(sorted);
+            this.positions = new int[size];
+            this.nodes = new Endpoint[size];
+            for (int i = 0; i < size; i++) {
+                positions[i] = (int) (sorted[i] >> 32);
+                nodes[i] = endpoints.get((int) sorted[i]);
+            }
+        }
+
+        /**
+         * 顺时针方向第一个位置不小于 hash 的虚拟节点，超过最后一个节点的回到第一个节点
+         */
+        private Endpoint get(int hash) {
+            int index = Arrays.binarySearch(positions, hash);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return nodes[index == nodes.length ? 0 : index];
+        }
+
+        private static int position(byte [] uri, int replica) {
+            try {
+                MessageDigest md5 = MessageDigest.getInstance("MD5");
+                md5.update(uri);
+                md5.update((byte) '#');
+                md5.update(Integer.toString(replica).getBytes(StandardCharsets.UTF_8));
+                byte [] digest = md5.digest();
+                return (digest[0] & 0xFF) << 24 | (digest[1] & 0xFF) << 16 | (digest[2] & 0xFF) << 8 | (digest[3] & 0xFF);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.loadbalance;
+
+import java.net.URI;
+
+/**
+ * 负载均衡选择的对象：一个服务提供者，以及客户端对它的观测数据
+ * @author LiYue
+ * Date: 2019/10/17
+ */
+public interface Endpoint {
+    /**
+     * 服务提供者的地址
+     */
+    URI getUri();
+
+    /**
+     * 发给这个服务提供者、还没有收到响应的请求数
+     */
+    int getInFlight();
+
+    /**
+     * 这个服务提供者最近的响应时延的指数加权移动平均值（EWMA），单位纳秒，还没有数据时为0
+     */
+    long getLatencyNanos();
+}
@@ -0,0 +1,49 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.loadbalance;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 最少在途请求：选择在途请求最少的服务提供者。
+ * 每次从随机的位置开始遍历，在途请求数相同的时候请求能均匀分布到各个服务提供者上。
+ * @author LiYue
+ * Date: 2019/10/17
+ */
+public class LeastInFlightLoadBalancer implements LoadBalancer {
+    public final static String NAME = "least-in-flight";
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public <E extends Endpoint> E select(List<E> endpoints, Object key) {
+        int size = endpoints.size();
+        int start = ThreadLocalRandom.current().nextInt(size);
+        E selected = null;
+        int selectedInFlight = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            E endpoint = endpoints.get((start + i) % size);
+            int inFlight = endpoint.getInFlight();
+            if (inFlight < selectedInFlight) {
+                selected = endpoint;
+                selectedInFlight = inFlight;
+            }
+        }
+        return selected;
+    }
+}
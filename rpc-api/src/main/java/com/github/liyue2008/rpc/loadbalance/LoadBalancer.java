@@ -0,0 +1,39 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.loadbalance;
+
+import java.util.List;
+
+/**
+ * 负载均衡策略：每次调用从服务的所有提供者中选择一个。
+ * 策略的实现可以保存状态（例如轮询的位置、哈希环），每个服务的桩使用自己的策略实例。
+ * 实现通过 SPI 加载，用 {@link #name()} 区分，见 {@link LoadBalancerSupport}。
+ * @author LiYue
+ * Date: 2019/10/17
+ */
+public interface LoadBalancer {
+    /**
+     * 策略的名字，例如："round-robin"
+     */
+    String name();
+
+    /**
+     * 选择一个服务提供者。
+     * 服务提供者列表在下一次服务发现更新之前不会改变，实现可以按照列表对象缓存计算结果。
+     * @param endpoints 所有服务提供者，不为空
+     * @param key 这次调用的路由键，只有一致性哈希策略使用，可能为null
+     * @return 选中的服务提供者
+     */
+    <E extends Endpoint> E select(List<E> endpoints, Object key);
+}
@@ -0,0 +1,46 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.loadbalance;
+
+import com.github.liyue2008.rpc.RpcLoadBalance;
+import com.github.liyue2008.rpc.config.ConfigSupport;
+import com.github.liyue2008.rpc.spi.ServiceSupport;
+
+/**
+ * 通过 SPI 加载 {@link LoadBalancer} 的实现，按照名字为服务创建负载均衡策略。
+ * @author LiYue
+ * Date: 2019/10/17
+ */
+public class LoadBalancerSupport {
+    private final static String DEFAULT_LOAD_BALANCER = ConfigSupport.getString("client.loadbalance", LeastInFlightLoadBalancer.NAME);
+
+    /**
+     * 服务接口使用的负载均衡策略：{@link RpcLoadBalance} 声明的策略，没有声明的使用默认策略。
+     * 每次调用都创建一个新的策略实例。
+     */
+    public static LoadBalancer newLoadBalancer(Class<?> serviceClass) {
+        RpcLoadBalance rpcLoadBalance = serviceClass.getAnnotation(RpcLoadBalance.class);
+        return newLoadBalancer(null == rpcLoadBalance ? DEFAULT_LOAD_BALANCER : rpcLoadBalance.value());
+    }
+
+    public static LoadBalancer newLoadBalancer(String name) {
+        // loadAll 每次都创建新的实例
+        for (LoadBalancer loadBalancer : ServiceSupport.loadAll(LoadBalancer.class)) {
+            if (loadBalancer.name().equals(name)) {
+                return loadBalancer;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Unknown load balancer: %s!", name));
+    }
+}
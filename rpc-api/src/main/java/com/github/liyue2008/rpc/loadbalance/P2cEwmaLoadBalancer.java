@@ -0,0 +1,56 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.loadbalance;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * P2C-EWMA（Power of Two Choices）：随机选出两个服务提供者，选择其中负载更低的一个。
+ * 负载 = 响应时延的 EWMA × (在途请求数 + 1)，既避开响应慢的服务提供者，也避开请求堆积的服务提供者。
+ * 只比较两个，不需要遍历所有服务提供者，也不会像“总是选最好的”那样让所有客户端同时涌向同一个服务提供者。
+ * 还没有时延数据的服务提供者负载为0，会优先被选中，很快就能得到时延数据。
+ * @author LiYue
+ * Date: 2019/10/17
+ */
+public class P2cEwmaLoadBalancer implements LoadBalancer {
+    public final static String NAME = "p2c-ewma";
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public <E extends Endpoint> E select(List<E> endpoints, Object key) {
+        int size = endpoints.size();
+        if (size == 1) {
+            return endpoints.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        // 第二个从剩下的 size - 1 个中选，保证两个不同
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        E a = endpoints.get(first);
+        E b = endpoints.get(second);
+        return load(a) <= load(b) ? a : b;
+    }
+
+    private static double load(Endpoint endpoint) {
+        return (double) endpoint.getLatencyNanos() * (endpoint.getInFlight() + 1);
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.loadbalance;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 轮询：按顺序依次选择每个服务提供者
+ * @author LiYue
+ * Date: 2019/10/17
+ */
+public class RoundRobinLoadBalancer implements LoadBalancer {
+    public final static String NAME = "round-robin";
+    private final AtomicInteger next = new AtomicInteger(0);
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public <E extends Endpoint> E select(List<E> endpoints, Object key) {
+        return endpoints.get((next.getAndIncrement() & Integer.MAX_VALUE) % endpoints.size());
+    }
+}
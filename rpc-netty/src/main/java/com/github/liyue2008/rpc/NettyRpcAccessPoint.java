@@ -14,65 +14,244 @@
 package com.github.liyue2008.rpc;
 
 import com.github.liyue2008.rpc.client.StubFactory;
+import com.github.liyue2008.rpc.config.ConfigSupport;
+import com.github.liyue2008.rpc.discovery.ServiceDiscovery;
+import com.github.liyue2008.rpc.loadbalance.LoadBalancerSupport;
 import com.github.liyue2008.rpc.server.RpcRequestHandler;
 import com.github.liyue2008.rpc.server.ServiceProviderRegistry;
 import com.github.liyue2008.rpc.spi.ServiceSupport;
+import com.github.liyue2008.rpc.transport.LoadBalancedTransport;
+import com.github.liyue2008.rpc.transport.PooledTransport;
 import com.github.liyue2008.rpc.transport.RequestHandlerRegistry;
 import com.github.liyue2008.rpc.transport.Transport;
 import com.github.liyue2008.rpc.transport.TransportClient;
 import com.github.liyue2008.rpc.transport.TransportServer;
 
+import io.netty.util.concurrent.DefaultThreadFactory;
+
 import java.io.Closeable;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 /**
+ * 服务端的地址可以通过构造方法指定，使用 SPI 加载的实例从配置中读取：
+ * <ul>
+ *     <li>simple.rpc.server.bind.host：监听的地址，默认在所有网络接口上监听；</li>
+ *     <li>simple.rpc.server.port：监听的端口，默认9999，0 表示由系统分配一个空闲端口；</li>
+ *     <li>simple.rpc.server.host：发布到注册中心的地址，默认是监听的地址，在所有网络接口上监听时是 localhost。</li>
+ * </ul>
+ * 服务地址使用实际监听的端口，监听端口由系统分配时，需要先启动服务端，再注册服务。
+ * 客户端每个服务端地址一个连接池，按照引用计数在所有服务之间共享，连接在一个单独的线程池中建立。
  * @author LiYue
  * Date: 2019/9/20
  */
 public class NettyRpcAccessPoint implements RpcAccessPoint {
-    private final String host = "localhost";
-    private final int port = 9999;
-    private final URI uri = URI.create("rpc://" + host + ":" + port);
+    private final String bindHost;
+    private final String host;
+    private final int port;
+    private volatile URI uri;
     private TransportServer server = null;
     private TransportClient client = ServiceSupport.load(TransportClient.class);
-    private final Map<URI, Transport> clientMap = new ConcurrentHashMap<>();
+    private final static long CONNECTION_TIMEOUT_MS = 30000L;
+    /**
+     * 每个服务端地址一个连接池，访问时需要持有 clientMap 的锁
+     */
+    private final Map<URI, SharedTransport> clientMap = new HashMap<>();
+    /**
+     * 建立连接池的线程，建立连接可能很慢，不占用调用方和服务发现的线程
+     */
+    private final ExecutorService connectExecutor = Executors.newCachedThreadPool(new DefaultThreadFactory("rpc-transport-connect", true));
+    private final LoadBalancedTransport.Connector connector = new LoadBalancedTransport.Connector() {
+        @Override
+        public CompletableFuture<PooledTransport> acquire(URI uri) {
+            return acquireTransport(uri);
+        }
+
+        @Override
+        public void release(URI uri) {
+            releaseTransport(uri);
+        }
+    };
+    /**
+     * 每个注册中心一个服务发现
+     */
+    private final Map<NameService, ServiceDiscovery> discoveryMap = new ConcurrentHashMap<>();
+    /**
+     * 通过注册中心获取的服务：注册中心 -> (服务名 -> 服务)，同一个服务只监听一次服务发现，只创建一个 {@link LoadBalancedTransport}
+     */
+    private final Map<NameService, Map<String, RemoteService>> remoteServices = new HashMap<>();
     private final StubFactory stubFactory = ServiceSupport.load(StubFactory.class);
     private final ServiceProviderRegistry serviceProviderRegistry = ServiceSupport.load(ServiceProviderRegistry.class);
 
+    public NettyRpcAccessPoint() {
+        this(ConfigSupport.getString("server.bind.host", null),
+                ConfigSupport.getString("server.host", null),
+                ConfigSupport.getInt("server.port", 9999));
+    }
+
+    /**
+     * @param bindHost 监听的地址，null 表示所有网络接口
+     * @param host 发布的地址，null 表示和监听的地址相同，在所有网络接口上监听时为 localhost
+     * @param port 监听的端口，0 表示由系统分配
+     */
+    public NettyRpcAccessPoint(String bindHost, String host, int port) {
+        if (port < 0 || port > 65535) {
+            throw new IllegalArgumentException(String.format("Invalid port: %d!", port));
+        }
+        this.bindHost = bindHost;
+        this.host = null != host ? host : null == bindHost || isWildcard(bindHost) ? "localhost" : bindHost;
+        this.port = port;
+        this.uri = port == 0 ? null : toUri(port);
+    }
+
+    private static boolean isWildcard(String host) {
+        return "0.0.0.0".equals(host) || "::".equals(host) || "[::]".equals(host);
+    }
+
+    private URI toUri(int port) {
+        // IPv6 地址在 URI 中需要放在方括号里
+        String uriHost = host.indexOf(':') >= 0 && !host.startsWith("[") ? "[" + host + "]" : host;
+        return URI.create("rpc://" + uriHost + ":" + port);
+    }
+
+    /**
+     * 直接指定地址的服务一直持有这个地址的连接池，直到关闭 RpcAccessPoint
+     */
     @Override
     public <T> T getRemoteService(URI uri, Class<T> serviceClass) {
-        /**
-         * computeIfAbsent 如果 key 对应的 value 不存在，则使用获取 remappingFunction 重新计算后的值，
-         * 并保存为该 key 的 value，否则返回 value。
-         */
-        Transport transport = clientMap.computeIfAbsent(uri, this::createTransport);
+        Transport transport;
+        try {
+            transport = acquireTransport(uri).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        }
         return stubFactory.createStub(transport, serviceClass);
     }
 
-    private Transport createTransport(URI uri) {
+    /**
+     * 同一个注册中心的同一个服务共享一个 {@link LoadBalancedTransport}，它监听服务发现，服务提供者变化之后更新自己的服务提供者列表，
+     * 同一个地址的服务提供者和 {@link #getRemoteService(URI, Class)} 共享一个连接池。
+     * 第一次获取一个服务时，等待所有服务提供者的连接建立完成（最多等待建立连接的超时时间）。
+     */
+    @Override
+    public <T> T getRemoteService(NameService nameService, Class<T> serviceClass) throws IOException {
+        String serviceName = serviceClass.getCanonicalName();
+        RemoteService remoteService;
+        synchronized (remoteServices) {
+            Map<String, RemoteService> services = remoteServices.computeIfAbsent(nameService, n -> new HashMap<>());
+            remoteService = services.get(serviceName);
+            if (null == remoteService) {
+                ServiceDiscovery discovery = discoveryMap.computeIfAbsent(nameService, ServiceDiscovery::new);
+                LoadBalancedTransport transport = new LoadBalancedTransport(serviceName,
+                        LoadBalancerSupport.newLoadBalancer(serviceClass), connector);
+                remoteService = new RemoteService(serviceName, discovery, transport);
+                discovery.watch(serviceName, remoteService.listener);
+                services.put(serviceName, remoteService);
+            }
+        }
+        try {
+            remoteService.transport.whenConnected().get(CONNECTION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException | TimeoutException ignored) {
+            // 连接失败的服务提供者不会出现在列表中，调用时在其它服务提供者中选择
+        }
+        return stubFactory.createStub(remoteService.transport, serviceClass);
+    }
+
+    /**
+     * 获取地址的连接池，没有的话在后台建立。建立失败时不持有引用，下一次获取时重新建立。
+     */
+    private CompletableFuture<PooledTransport> acquireTransport(URI uri) {
+        SharedTransport shared;
+        boolean created = false;
+        synchronized (clientMap) {
+            shared = clientMap.get(uri);
+            if (null == shared) {
+                shared = new SharedTransport();
+                clientMap.put(uri, shared);
+                created = true;
+            }
+            shared.references++;
+        }
+        if (created) {
+            SharedTransport connecting = shared;
+            try {
+                connectExecutor.execute(() -> connect(uri, connecting));
+            } catch (Throwable t) {
+                onConnectFailed(uri, connecting, t);
+            }
+        }
+        return shared.future;
+    }
+
+    private void connect(URI uri, SharedTransport shared) {
         try {
-            return client.createTransport(new InetSocketAddress(uri.getHost(), uri.getPort()),30000L);
-        } catch (InterruptedException | TimeoutException e) {
-            throw new RuntimeException(e);
+            shared.future.complete(new PooledTransport(client, new InetSocketAddress(uri.getHost(), uri.getPort()), CONNECTION_TIMEOUT_MS));
+        } catch (Throwable t) {
+            onConnectFailed(uri, shared, t);
         }
     }
+
+    private void onConnectFailed(URI uri, SharedTransport shared, Throwable t) {
+        synchronized (clientMap) {
+            clientMap.remove(uri, shared);
+        }
+        shared.future.completeExceptionally(t);
+    }
+
+    /**
+     * 归还地址的连接池，没有服务再使用的连接池从 clientMap 中删除并关闭
+     */
+    private void releaseTransport(URI uri) {
+        SharedTransport shared;
+        synchronized (clientMap) {
+            shared = clientMap.get(uri);
+            if (null == shared || --shared.references > 0) {
+                return;
+            }
+            clientMap.remove(uri);
+        }
+        shared.future.thenAccept(PooledTransport::close);
+    }
+
     @Override
     public synchronized <T> URI addServiceProvider(T service, Class<T> serviceClass) {
+        URI uri = getServerUri();
         serviceProviderRegistry.addServiceProvider(serviceClass, service);
         return uri;
     }
 
+    @Override
+    public URI getServerUri() {
+        URI uri = this.uri;
+        if (null == uri) {
+            throw new IllegalStateException("Server port is assigned by the system, start the server first!");
+        }
+        return uri;
+    }
+
     @Override
     public synchronized Closeable startServer() throws Exception {
         if (null == server) {
             server = ServiceSupport.load(TransportServer.class);
-            server.start(RequestHandlerRegistry.getInstance(), port);
-
+            server.start(RequestHandlerRegistry.getInstance(), bindHost, port);
+            uri = toUri(server.getPort());
         }
         return () -> {
             if(null != server) {
@@ -83,9 +262,60 @@ public class NettyRpcAccessPoint implements RpcAccessPoint {
 
     @Override
     public void close() {
+        synchronized (remoteServices) {
+            for (Map<String, RemoteService> services : remoteServices.values()) {
+                for (RemoteService remoteService : services.values()) {
+                    remoteService.close();
+                }
+            }
+            remoteServices.clear();
+        }
+        for (ServiceDiscovery discovery : discoveryMap.values()) {
+            discovery.close();
+        }
+        List<SharedTransport> transports;
+        synchronized (clientMap) {
+            transports = new ArrayList<>(clientMap.values());
+            clientMap.clear();
+        }
+        for (SharedTransport transport : transports) {
+            transport.future.thenAccept(PooledTransport::close);
+        }
+        connectExecutor.shutdown();
         if(null != server) {
             server.stop();
         }
         client.close();
     }
+
+    /**
+     * 一个地址的连接池和使用它的服务数
+     */
+    private static class SharedTransport {
+        private final CompletableFuture<PooledTransport> future = new CompletableFuture<>();
+        private int references = 0;
+    }
+
+    /**
+     * 通过注册中心获取的一个服务，关闭时取消监听服务发现，归还所有服务提供者的连接池
+     */
+    private static class RemoteService implements Closeable {
+        private final String serviceName;
+        private final ServiceDiscovery discovery;
+        private final LoadBalancedTransport transport;
+        private final Consumer<List<URI>> listener;
+
+        private RemoteService(String serviceName, ServiceDiscovery discovery, LoadBalancedTransport transport) {
+            this.serviceName = serviceName;
+            this.discovery = discovery;
+            this.transport = transport;
+            this.listener = transport::update;
+        }
+
+        @Override
+        public void close() {
+            discovery.unwatch(serviceName, listener);
+            transport.close();
+        }
+    }
 }
@@ -13,111 +13,70 @@
  */
 package com.github.liyue2008.rpc.client;
 
+import com.github.liyue2008.rpc.client.stubs.RemoteInvocationHandler;
 import com.github.liyue2008.rpc.transport.Transport;
-import com.itranswarp.compiler.JavaStringCompiler;
+
+import java.lang.reflect.Proxy;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * 用 JDK 动态代理生成桩：{@link Proxy} 在运行时直接生成实现服务接口的桩类的字节码，
+ * 不需要先拼源代码再调用编译器，也不依赖运行环境中的 JDK 编译器。
+ * 生成的桩类由 JDK 按照接口缓存，桩的实例按照 (接口, Transport) 缓存，
+ * 同一个服务在同一个连接上只创建一次桩。
  * @author LiYue
  * Date: 2019/9/27
  */
 public class DynamicStubFactory implements StubFactory{
-    /**
-     * 是桩的源代码的模板，我们需要做的就是，填充模板中变量，生成桩的源码，然后动态的编译、加载这个桩就可以了。
-     */
-    private final static String STUB_SOURCE_TEMPLATE =
-            "package com.github.liyue2008.rpc.client.stubs;\n" +
-            "import com.github.liyue2008.rpc.serialize.SerializeSupport;\n" +
-            "\n" +
-            "public class %s extends AbstractStub implements %s {\n" +
-            "    @Override\n" +
-            "    public String %s(String arg) {\n" +
-            "        return SerializeSupport.parse(\n" +
-            "                invokeRemote(\n" +
-            "                        new RpcRequest(\n" +
-            "                                \"%s\",\n" +
-            "                                \"%s\",\n" +
-            "                                SerializeSupport.serialize(arg)\n" +
-            "                        )\n" +
-            "                )\n" +
-            "        );\n" +
-            "    }\n" +
-            "}";
+    private final Map<StubKey, Object> stubs = new ConcurrentHashMap<>();
 
     /**
-     * 根据service的类，动态生成桩的方法
-     * package com.github.liyue2008.rpc.client.stubs;
-     * import com.github.liyue2008.rpc.serialize.SerializeSupport;
-     *
-     * public class HelloServiceStub extends AbstractStub implements com.github.liyue2008.rpc.hello.HelloService {
-     *     @Override
-     *     public String hello(String arg) {
-     *         return SerializeSupport.parse(
-     *                 invokeRemote(
-     *                         new RpcRequest(
-     *                                 "com.github.liyue2008.rpc.hello.HelloService",
-     *                                 "hello",
-     *                                 SerializeSupport.serialize(arg)
-     *                         )
-     *                 )
-     *         );
-     *     }
-     * }
-     * @param transport
-     * @param serviceClass
+     * 桩的每个方法的逻辑都是一样的，都在 {@link RemoteInvocationHandler} 中实现：
+     * 把类名、方法名和方法的参数封装成请求，然后发给服务端，收到服务端响应之后再把结果作为返回值，返回给调用方。
+     * @param transport 给服务端发请求的时候使用的 Transport
+     * @param serviceClass 服务接口
      * @param <T>
-     * @return
+     * @return 桩
      */
     @Override
     @SuppressWarnings("unchecked")
     public <T> T createStub(Transport transport, Class<T> serviceClass) {
-        try {
-            // 填充模板
-            //HelloServiceStub
-            String stubSimpleName = serviceClass.getSimpleName() + "Stub";
-            //com.github.liyue2008.rpc.hello.HelloService
-            String classFullName = serviceClass.getName();
-            //com.github.liyue2008.rpc.client.stubs.HelloServiceStub
-            String stubFullName = "com.github.liyue2008.rpc.client.stubs." + stubSimpleName;
-            //hello
-            String methodName = serviceClass.getMethods()[0].getName();
-            /**
-             * source
-             *             package com.github.liyue2008.rpc.client.stubs;
-             *             import com.github.liyue2008.rpc.serialize.SerializeSupport;
-             *
-             *             public class HelloServiceStub extends AbstractStub implements com.github.liyue2008.rpc.hello.HelloService {
-             *                 @Override
-             *                 public String hello(String arg) {
-             *                     return SerializeSupport.parse(
-             *                             invokeRemote(
-             *                                     new RpcRequest(
-             *                                             "com.github.liyue2008.rpc.hello.HelloService",
-             *                                             "hello",
-             *                                             SerializeSupport.serialize(arg)
-             *                                     )
-             *                             )
-             *                     );
-             *                 }
-             *             }
-             */
-            String source = String.format(STUB_SOURCE_TEMPLATE,
-                    stubSimpleName, classFullName, methodName, classFullName, methodName);
-            // 编译源代码
-            JavaStringCompiler compiler = new JavaStringCompiler();
-            Map<String, byte[]> results = compiler.compile(stubSimpleName + ".java", source);
-            // 加载编译好的类
-            Class<?> clazz = compiler.loadClass(stubFullName, results);
+        return (T) stubs.computeIfAbsent(new StubKey(serviceClass, transport), key -> newStub(transport, serviceClass));
+    }
 
-            // 把Transport赋值给桩
-            ServiceStub stubInstance = (ServiceStub) clazz.newInstance();
-            //Transport是用来给服务端发请求的时候使用的。
-            stubInstance.setTransport(transport);
-            // 返回这个桩
-            return (T) stubInstance;
-        } catch (Throwable t) {
-            throw new RuntimeException(t);
-        }
+    private Object newStub(Transport transport, Class<?> serviceClass) {
+        RemoteInvocationHandler handler = new RemoteInvocationHandler(serviceClass);
+        // 把Transport赋值给桩，Transport是用来给服务端发请求的时候使用的。
+        handler.setTransport(transport);
+        return Proxy.newProxyInstance(serviceClass.getClassLoader(), new Class<?>[]{serviceClass}, handler);
     }
 
+    private static class StubKey {
+        private final Class<?> serviceClass;
+        private final Transport transport;
+
+        private StubKey(Class<?> serviceClass, Transport transport) {
+            this.serviceClass = serviceClass;
+            this.transport = transport;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof StubKey)) {
+                return false;
+            }
+            StubKey stubKey = (StubKey) o;
+            return serviceClass == stubKey.serviceClass && transport == stubKey.transport;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(serviceClass, System.identityHashCode(transport));
+        }
+    }
 }
@@ -19,4 +19,8 @@ package com.github.liyue2008.rpc.client;
  */
 public class ServiceTypes {
     public final static int TYPE_RPC_REQUEST = 0;
+    /**
+     * 批量请求：payload 中包含多个 RPC 请求，响应中按顺序包含每个请求的结果
+     */
+    public final static int TYPE_RPC_BATCH_REQUEST = 1;
 }
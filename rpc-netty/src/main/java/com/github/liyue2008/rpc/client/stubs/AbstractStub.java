@@ -13,17 +13,33 @@
  */
 package com.github.liyue2008.rpc.client.stubs;
 
+import com.github.liyue2008.rpc.RpcBatch;
+import com.github.liyue2008.rpc.RpcContext;
 import com.github.liyue2008.rpc.client.RequestIdSupport;
 import com.github.liyue2008.rpc.client.ServiceStub;
 import com.github.liyue2008.rpc.client.ServiceTypes;
+import com.github.liyue2008.rpc.config.ConfigSupport;
+import com.github.liyue2008.rpc.serialize.AllowedClasses;
+import com.github.liyue2008.rpc.serialize.Codec;
 import com.github.liyue2008.rpc.serialize.SerializeSupport;
+import com.github.liyue2008.rpc.transport.RequestStreamCall;
+import com.github.liyue2008.rpc.transport.StreamCall;
 import com.github.liyue2008.rpc.transport.Transport;
 import com.github.liyue2008.rpc.transport.command.Code;
 import com.github.liyue2008.rpc.transport.command.Command;
 import com.github.liyue2008.rpc.transport.command.Header;
 import com.github.liyue2008.rpc.transport.command.ResponseHeader;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
 
 /**
  * @author LiYue
@@ -35,20 +51,29 @@ import java.util.concurrent.ExecutionException;
  * 都是把类名、方法名和方法的参数封装成请求，然后发给服务端，
  * 收到服务端响应之后再把结果作为返回值，返回给调用方。
  * 所以，我们定义一个 AbstractStub 的抽象类，
- * 在这个类中实现大部分通用的逻辑，让所有动态生成的桩都继承这个抽象类，这样动态生成桩的代码会更少一些。
+ * 在这个类中实现大部分通用的逻辑，桩的调用处理器 {@link RemoteInvocationHandler} 继承这个抽象类。
  */
 public abstract class AbstractStub implements ServiceStub {
+    /**
+     * 没有指定超时时间的调用使用的默认超时时间，和 Transport 的默认值相同
+     */
+    private static final long DEFAULT_TIMEOUT_MS = ConfigSupport.getLong("client.request.timeout.ms", 10000L);
     /**
      *  Transport 这个接口的实现 NettyTransport 类。这个 send 方法的实现，
      *  本质上就是一个异步方法，在把请求数据发出去之后就返回了，并不会阻塞当前这个线程去等待响应返回来。
      */
     protected Transport transport;
+    /**
+     * 批量模式下攒批的收集器，没有开启批量模式时为null
+     */
+    private RequestBatcher batcher;
+    private boolean batchParallel;
 
     /**
-     * 把接口的类名、方法名和序列化后的参数封装成一个 RpcRequest 对象，
+     * 把接口的类名、方法签名和参数封装成一个 RpcRequest 对象，
      * 调用父类 AbstractStub 中的 invokeRemote 方法，发送给服务端。
-     * invokeRemote 方法的返回值就是序列化的调用结果，
-     * 我们在模板中把这个结果反序列化之后，直接作为返回值返回给调用方就可以了。
+     * invokeRemote 方法直接从响应的 payload 缓冲区中反序列化调用结果，
+     * 桩把这个结果直接作为返回值返回给调用方就可以了。
      *
      *
      *     RPC 框架提供统一的泛化调用接口，
@@ -58,45 +83,403 @@ public abstract class AbstractStub implements ServiceStub {
      * @param request
      * @return
      */
-    protected byte [] invokeRemote(RpcRequest request) {
+    protected <T> T invokeRemote(RpcRequest request) {
+        return invokeRemote(request, 0L);
+    }
+
+    /**
+     * 超时时间的优先级：{@link RpcContext#setTimeout(long)} 为这次调用设置的超时时间 &gt;
+     * 方法上声明的超时时间 methodTimeoutMillis &gt; Transport 的默认超时时间
+     * @param request
+     * @param methodTimeoutMillis 方法上声明的超时时间，小于等于0表示没有声明
+     * @return
+     */
+    protected <T> T invokeRemote(RpcRequest request, long methodTimeoutMillis) {
+        try {
+            /**
+             * 所谓的同步调用，不过是 RPC 框架在调用端的处理逻辑中主动执行了这个 Future 的 get 方法，
+             * 让动态代理等待返回值；而异步调用则是 RPC 框架没有主动执行这个 Future 的 get 方法，
+             * 用户可以从请求上下文中得到这个 Future，自己决定什么时候执行这个 Future 的 get 方法。
+             */
+            return this.<T>invokeRemoteAsync(request, methodTimeoutMillis).get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 异步调用，返回调用结果的Future，不阻塞调用线程。
+     * 返回值类型是 CompletableFuture 的服务方法，桩调用的就是这个方法。
+     * @param request
+     * @param methodTimeoutMillis 方法上声明的超时时间，小于等于0表示没有声明
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    protected <T> CompletableFuture<T> invokeRemoteAsync(RpcRequest request, long methodTimeoutMillis) {
+        long timeoutMillis = RpcContext.removeTimeout();
+        if (timeoutMillis <= 0L) {
+            timeoutMillis = methodTimeoutMillis;
+        }
+        if (null != batcher) {
+            // 批量模式：调用先放进当前批次，和同一时间窗口内的其它调用一起发送
+            return (CompletableFuture<T>) batcher.add(request, timeoutMillis);
+        }
+        return sendRequest(request, timeoutMillis);
+    }
+
+    /**
+     * 把一个调用作为一个请求发送
+     * @param timeoutMillis 超时时间，小于等于0表示使用 Transport 的默认超时时间
+     */
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> sendRequest(RpcRequest request, long timeoutMillis) {
         /**
          * request: {"interfaceName":"com.github.liyue2008.rpc.hello.HelloService",
-         * "methodName":"hello","serializedArguments":"AE1hc3RlciBNUQ=="}
+         * "methodName":"hello(java.lang.String)","arguments":["Master MQ"]}
          *
          * header: {"requestId":0,"type":0,"version":1}
          *
          * requestCommand:{"header":{"requestId":0,"type":0,"version":1},
-         * "payload":"ZQAAACtjb20uZ2l0aHViLmxpeXVlMjAwOC5ycGMuaGVsbG8uSGVsbG9TZXJ2aWNlAAAABWhlbGxvAAAACgBNYXN0ZXIgTVE="}
+         * "payload": 类型(RpcRequest) + 方法ID + [接口名 + 方法签名] + 编码类型 + 参数(Codec)}
          *
-         * responseCommand: {"header":{"code":0,"error":"","requestId":0,"type":0,"version":1},"payload":"AEhlbGxvLCBNYXN0ZXIgTVE="}
+         * responseCommand: {"header":{"code":0,"error":"","requestId":0,"type":0,"version":1},"payload": [方法ID] + 返回值(Codec)}
+         *
+         * 方括号中的部分只在这个连接第一次调用这个方法时才有。
          */
         Header header = new Header(ServiceTypes.TYPE_RPC_REQUEST, 1, RequestIdSupport.next());
-        byte [] payload = SerializeSupport.serialize(request);
+        // 先选择连接，方法ID是和连接绑定的
+        Transport connection = transport.select(routingKey(request));
+        MethodIdBindings methodIdBindings = MethodIdBindings.of(connection);
+        int methodId = methodIdBindings.get(request.getInterfaceName(), request.getMethodName());
+        boolean bound = methodId != RpcRequest.UNBOUND_METHOD_ID;
+        if (bound) {
+            request = request.bind(methodId);
+        }
+        Function<ByteBuf, Object> resultReader = resultReader(methodIdBindings, request, bound);
+        // 直接序列化到池化的缓冲区中，发送之后由 Netty 释放
+        ByteBuf payload = SerializeSupport.serialize(request, PooledByteBufAllocator.DEFAULT);
         Command requestCommand = new Command(header, payload);
+        //NettyTransport类实现通信
+        return (timeoutMillis > 0L ? connection.send(requestCommand, timeoutMillis) : connection.send(requestCommand))
+                .thenApply(responseCommand -> {
+                    try {
+                        ResponseHeader responseHeader = (ResponseHeader) responseCommand.getHeader();
+                        if(responseHeader.getCode() == Code.SUCCESS.getCode()) {
+                            return (T) resultReader.apply(responseCommand.getPayloadBuffer());
+                        } else {
+                            throw new CompletionException(new Exception(responseHeader.getError()));
+                        }
+                    } finally {
+                        // 响应的 payload 引用的是接收缓冲区，用完之后释放
+                        responseCommand.release();
+                    }
+                });
+    }
+
+    /**
+     * 调用的路由键：第一个参数。一致性哈希的负载均衡策略按照它选择服务提供者
+     */
+    private static Object routingKey(RpcRequest request) {
+        Object [] arguments = request.getArguments();
+        return null == arguments || arguments.length == 0 ? null : arguments[0];
+    }
+
+    /**
+     * 从成功响应的 payload 中读出调用结果：[方法ID] + 返回值(Codec)
+     * @param bound 请求是否已经带着方法ID，没有带的，服务端在返回值前面带上了分配的方法ID
+     */
+    private static Function<ByteBuf, Object> resultReader(MethodIdBindings methodIdBindings, RpcRequest request, boolean bound) {
+        String interfaceName = request.getInterfaceName();
+        String methodName = request.getMethodName();
+        Codec codec = request.getCodec();
+        AllowedClasses resultClasses = request.getResultClasses();
+        return responsePayload -> {
+            if (!bound) {
+                // 第一次调用，服务端在返回值前面带上了分配的方法ID
+                methodIdBindings.bind(interfaceName, methodName, responsePayload.readInt());
+            }
+            return codec.read(responsePayload, resultClasses);
+        };
+    }
+
+    /**
+     * 批量模式：同一时间窗口内的调用攒成一批发送，见 {@link RpcBatch}
+     * @param maxCalls 一批最多包含多少个调用
+     * @param maxDelayMicros 第一个调用进入批次之后，最多再等待多少微秒就发送
+     * @param parallel 服务端是否并行执行同一批中的调用
+     */
+    protected void enableBatching(int maxCalls, long maxDelayMicros, boolean parallel) {
+        this.batchParallel = parallel;
+        this.batcher = new RequestBatcher(maxCalls, maxDelayMicros, this::sendBatch);
+    }
+
+    /**
+     * 把一批调用作为一个批量请求发送，收到响应之后按顺序把结果分发给每个调用。
+     * <pre>
+     * 请求 payload：并行标志(byte) + 请求数(int) + [请求类型(int) + 长度(int) + RpcRequest] ...
+     * 响应 payload：结果数(int) + [响应码(int) + 错误信息长度(int，-1表示没有) + 错误信息 + 长度(int) + [方法ID] + 返回值(Codec)] ...
+     * </pre>
+     * 一批调用只占用一个在途请求的位置，共用一个超时时间：
+     * 取所有调用中最长的超时时间，没有指定超时时间的调用按照默认超时时间计算，
+     * 这样批次中任何一个调用都不会比单独发送时更早超时。
+     */
+    private void sendBatch(List<RequestBatcher.BatchedCall> calls) {
+        if (calls.size() == 1) {
+            // 只有一个调用，不需要批量请求
+            RequestBatcher.BatchedCall call = calls.get(0);
+            try {
+                sendRequest(call.request, call.timeoutMillis).whenComplete((result, throwable) -> complete(call, result, throwable));
+            } catch (Throwable t) {
+                call.future.completeExceptionally(t);
+            }
+            return;
+        }
+        List<RequestBatcher.BatchedCall> sentCalls = new ArrayList<>(calls.size());
+        List<Function<ByteBuf, Object>> resultReaders = new ArrayList<>(calls.size());
+        ByteBuf payload = null;
+        try {
+            Transport connection = transport.select();
+            MethodIdBindings methodIdBindings = MethodIdBindings.of(connection);
+            payload = PooledByteBufAllocator.DEFAULT.buffer();
+            payload.writeBoolean(batchParallel);
+            int countIndex = payload.writerIndex();
+            payload.writeInt(0);
+            long timeoutMillis = 0L;
+            boolean defaultTimeout = false;
+            for (RequestBatcher.BatchedCall call : calls) {
+                int start = payload.writerIndex();
+                try {
+                    RpcRequest request = call.request;
+                    int methodId = methodIdBindings.get(request.getInterfaceName(), request.getMethodName());
+                    boolean bound = methodId != RpcRequest.UNBOUND_METHOD_ID;
+                    if (bound) {
+                        request = request.bind(methodId);
+                    }
+                    payload.writeInt(ServiceTypes.TYPE_RPC_REQUEST);
+                    payload.writeInt(0);
+                    SerializeSupport.serialize(request, payload);
+                    payload.setInt(start + 4, payload.writerIndex() - start - 8);
+                    sentCalls.add(call);
+                    resultReaders.add(resultReader(methodIdBindings, request, bound));
+                    if (call.timeoutMillis > 0L) {
+                        timeoutMillis = Math.max(timeoutMillis, call.timeoutMillis);
+                    } else {
+                        defaultTimeout = true;
+                    }
+                } catch (Throwable t) {
+                    // 一个调用序列化失败，只让这一个调用失败，批次中的其它调用照常发送
+                    payload.writerIndex(start);
+                    call.future.completeExceptionally(t);
+                }
+            }
+            if (sentCalls.isEmpty()) {
+                payload.release();
+                return;
+            }
+            payload.setInt(countIndex, sentCalls.size());
+            Command requestCommand = new Command(new Header(ServiceTypes.TYPE_RPC_BATCH_REQUEST, 1, RequestIdSupport.next()), payload);
+            payload = null;
+            if (defaultTimeout) {
+                timeoutMillis = Math.max(timeoutMillis, DEFAULT_TIMEOUT_MS);
+            }
+            (timeoutMillis <= 0L ? connection.send(requestCommand) : connection.send(requestCommand, timeoutMillis))
+                    .whenComplete((responseCommand, throwable) -> {
+                        if (null != throwable) {
+                            failAll(sentCalls, throwable);
+                        } else {
+                            onBatchResponse(responseCommand, sentCalls, resultReaders);
+                        }
+                    });
+        } catch (Throwable t) {
+            if (null != payload) {
+                payload.release();
+            }
+            failAll(calls, t);
+        }
+    }
+
+    private static void onBatchResponse(Command responseCommand, List<RequestBatcher.BatchedCall> calls, List<Function<ByteBuf, Object>> resultReaders) {
         try {
-            //NettyTransport类实现通信
-            /**
-             * 所谓的同步调用，不过是 RPC 框架在调用端的处理逻辑中主动执行了这个 Future 的 get 方法，
-             * 让动态代理等待返回值；而异步调用则是 RPC 框架没有主动执行这个 Future 的 get 方法，
-             * 用户可以从请求上下文中得到这个 Future，自己决定什么时候执行这个 Future 的 get 方法。
-             */
-            Command responseCommand = transport.send(requestCommand).get();
             ResponseHeader responseHeader = (ResponseHeader) responseCommand.getHeader();
-            if(responseHeader.getCode() == Code.SUCCESS.getCode()) {
-                return responseCommand.getPayload();
-            } else {
-                throw new Exception(responseHeader.getError());
+            if (responseHeader.getCode() != Code.SUCCESS.getCode()) {
+                failAll(calls, new Exception(responseHeader.getError()));
+                return;
             }
+            ByteBuf responsePayload = responseCommand.getPayloadBuffer();
+            int count = responsePayload.readInt();
+            if (count != calls.size()) {
+                failAll(calls, new IllegalStateException(
+                        String.format("Batch response size mismatch, expected: %d, actual: %d!", calls.size(), count)));
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                int code = responsePayload.readInt();
+                int errorLength = responsePayload.readInt();
+                String error = errorLength < 0 ? null : responsePayload.readCharSequence(errorLength, StandardCharsets.UTF_8).toString();
+                ByteBuf result = responsePayload.readSlice(responsePayload.readInt());
+                RequestBatcher.BatchedCall call = calls.get(i);
+                if (code == Code.SUCCESS.getCode()) {
+                    try {
+                        call.future.complete(resultReaders.get(i).apply(result));
+                    } catch (Throwable t) {
+                        call.future.completeExceptionally(t);
+                    }
+                } else {
+                    call.future.completeExceptionally(new Exception(error));
+                }
+            }
+        } catch (Throwable t) {
+            // 已经结束的调用不受影响
+            failAll(calls, t);
+        } finally {
+            // 响应的 payload 引用的是接收缓冲区，用完之后释放
+            responseCommand.release();
+        }
+    }
 
-        } catch (ExecutionException e) {
-            throw new RuntimeException(e.getCause());
-        } catch (Throwable e) {
-            throw new RuntimeException(e);
+    private static void complete(RequestBatcher.BatchedCall call, Object result, Throwable throwable) {
+        if (null == throwable) {
+            call.future.complete(result);
+        } else {
+            call.future.completeExceptionally(throwable instanceof CompletionException && null != throwable.getCause() ?
+                    throwable.getCause() : throwable);
+        }
+    }
+
+    private static void failAll(List<RequestBatcher.BatchedCall> calls, Throwable throwable) {
+        for (RequestBatcher.BatchedCall call : calls) {
+            complete(call, null, throwable);
         }
     }
 
+    /**
+     * 流式调用，返回值类型是 Iterator 的服务方法，桩调用的就是这个方法。
+     * 请求和普通调用一样，服务端把返回的 Iterator 中的元素一帧一帧地发回来，最后一帧只带着 [方法ID]。
+     * 返回的 Iterator 在调用方读取的时候才等待数据，见 {@link StreamIterator}。
+     * @param request
+     * @param methodTimeoutMillis 方法上声明的超时时间，小于等于0表示没有声明，这里是等待每一帧数据的超时时间
+     * @return
+     */
+    protected <T> StreamIterator<T> invokeRemoteStream(RpcRequest request, long methodTimeoutMillis) {
+        Header header = new Header(ServiceTypes.TYPE_RPC_REQUEST, 1, RequestIdSupport.next());
+        // 流中所有的数据帧、额度和取消都在同一条连接上
+        Transport connection = transport.select(routingKey(request));
+        MethodIdBindings methodIdBindings = MethodIdBindings.of(connection);
+        int methodId = methodIdBindings.get(request.getInterfaceName(), request.getMethodName());
+        boolean bound = methodId != RpcRequest.UNBOUND_METHOD_ID;
+        if (bound) {
+            request = request.bind(methodId);
+        }
+        String interfaceName = request.getInterfaceName();
+        String methodName = request.getMethodName();
+        long timeoutMillis = RpcContext.removeTimeout();
+        StreamIterator<T> iterator = new StreamIterator<>(request.getCodec(), request.getResultClasses(), timeoutMillis > 0L ? timeoutMillis : methodTimeoutMillis);
+        ByteBuf payload = SerializeSupport.serialize(request, PooledByteBufAllocator.DEFAULT);
+        StreamCall call = connection.openStream(new Command(header, payload), iterator::onFrame);
+        call.getFuture().whenComplete((responseCommand, throwable) -> {
+            if (null != throwable) {
+                iterator.onError(throwable);
+                return;
+            }
+            try {
+                ResponseHeader responseHeader = (ResponseHeader) responseCommand.getHeader();
+                if (responseHeader.getCode() == Code.SUCCESS.getCode()) {
+                    if (!bound) {
+                        methodIdBindings.bind(interfaceName, methodName, responseCommand.getPayloadBuffer().readInt());
+                    }
+                    iterator.onEnd();
+                } else {
+                    iterator.onError(new Exception(responseHeader.getError()));
+                }
+            } finally {
+                responseCommand.release();
+            }
+        });
+        iterator.start(call);
+        return iterator;
+    }
+
     @Override
     public void setTransport(Transport transport) {
         this.transport = transport;
     }
+
+    /**
+     * 客户端流式调用，有一个参数类型是 Iterator 的服务方法，桩调用的就是这个方法。
+     * 打开流的请求和普通调用一样，带着除了流参数之外的其它参数；之后在调用线程中读取 input，
+     * 每个元素作为一帧数据发送，没有额度时等待服务端补充额度，最后收到的响应和普通调用一样，最后只带着 [方法ID] + 返回值。
+     * 数据在这个方法返回之前就发完了，所以异步调用也要等数据发完才返回 Future。
+     * input 同时实现了 AutoCloseable 的，读完或者出错时会被关闭。
+     * @param request 流参数的位置上是null的请求
+     * @param input 流参数
+     * @param methodTimeoutMillis 方法上声明的超时时间，小于等于0表示没有声明，这里是等待每一次额度和等待响应的超时时间
+     * @return 调用结果的Future
+     */
+    @SuppressWarnings("unchecked")
+    protected <T> CompletableFuture<T> invokeRemoteInputStream(RpcRequest request, Iterator<?> input, long methodTimeoutMillis) {
+        long timeoutMillis = RpcContext.removeTimeout();
+        if (timeoutMillis <= 0L) {
+            timeoutMillis = methodTimeoutMillis > 0L ? methodTimeoutMillis : DEFAULT_TIMEOUT_MS;
+        }
+        Header header = new Header(ServiceTypes.TYPE_RPC_REQUEST, 1, RequestIdSupport.next());
+        // 所有的数据帧都在打开流的那条连接上发送
+        Transport connection = transport.select(routingKey(request));
+        MethodIdBindings methodIdBindings = MethodIdBindings.of(connection);
+        int methodId = methodIdBindings.get(request.getInterfaceName(), request.getMethodName());
+        boolean bound = methodId != RpcRequest.UNBOUND_METHOD_ID;
+        if (bound) {
+            request = request.bind(methodId);
+        }
+        Function<ByteBuf, Object> resultReader = resultReader(methodIdBindings, request, bound);
+        Codec codec = request.getCodec();
+        ByteBuf payload = SerializeSupport.serialize(request, PooledByteBufAllocator.DEFAULT);
+        RequestStreamCall call = connection.openRequestStream(new Command(header, payload));
+        try {
+            while (!call.getFuture().isDone() && null != input && input.hasNext()) {
+                ByteBuf frame = PooledByteBufAllocator.DEFAULT.buffer();
+                try {
+                    codec.write(input.next(), frame);
+                } catch (RuntimeException e) {
+                    frame.release();
+                    throw e;
+                }
+                if (!call.send(frame, timeoutMillis)) {
+                    // 服务端已经返回了响应，剩下的数据不需要再发送
+                    break;
+                }
+            }
+            call.end(timeoutMillis);
+        } catch (Throwable t) {
+            if (t instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            call.cancel();
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(t);
+            return future;
+        } finally {
+            if (input instanceof AutoCloseable) {
+                try {
+                    ((AutoCloseable) input).close();
+                } catch (Exception ignored) {
+                    // 关闭失败不影响调用结果
+                }
+            }
+        }
+        return call.getFuture().thenApply(responseCommand -> {
+            try {
+                ResponseHeader responseHeader = (ResponseHeader) responseCommand.getHeader();
+                if (responseHeader.getCode() == Code.SUCCESS.getCode()) {
+                    return (T) resultReader.apply(responseCommand.getPayloadBuffer());
+                } else {
+                    throw new CompletionException(new Exception(responseHeader.getError()));
+                }
+            } finally {
+                // 响应的 payload 引用的是接收缓冲区，用完之后释放
+                responseCommand.release();
+            }
+        });
+    }
 }
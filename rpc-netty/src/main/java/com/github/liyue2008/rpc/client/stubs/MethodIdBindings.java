@@ -0,0 +1,51 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.client.stubs;
+
+import com.github.liyue2008.rpc.transport.Transport;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 一个连接上已经绑定的方法ID：接口名 -> (方法签名 -> 方法ID)。
+ * 方法ID由服务端分配，在服务端进程的整个生命周期内不变；
+ * 连接断开重连之后，对方可能已经是另外一个服务端进程了，所以绑定关系保存在连接上，随连接一起丢弃。
+ * @author LiYue
+ * Date: 2019/10/12
+ */
+class MethodIdBindings {
+    private final static String ATTRIBUTE_KEY = MethodIdBindings.class.getName();
+    private final Map<String/*interface name*/, Map<String/*method signature*/, Integer/*method id*/>> methodIds = new ConcurrentHashMap<>();
+
+    /**
+     * 连接上的方法ID绑定
+     */
+    static MethodIdBindings of(Transport connection) {
+        return (MethodIdBindings) connection.attributes().computeIfAbsent(ATTRIBUTE_KEY, key -> new MethodIdBindings());
+    }
+
+    /**
+     * @return 没有绑定返回 {@link RpcRequest#UNBOUND_METHOD_ID}
+     */
+    int get(String interfaceName, String methodName) {
+        Map<String, Integer> methods = methodIds.get(interfaceName);
+        Integer methodId = null == methods ? null : methods.get(methodName);
+        return null == methodId ? RpcRequest.UNBOUND_METHOD_ID : methodId;
+    }
+
+    void bind(String interfaceName, String methodName, int methodId) {
+        methodIds.computeIfAbsent(interfaceName, key -> new ConcurrentHashMap<>()).put(methodName, methodId);
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.client.stubs;
+
+import com.github.liyue2008.rpc.RpcBatch;
+import com.github.liyue2008.rpc.RpcTimeout;
+import com.github.liyue2008.rpc.serialize.AllowedClasses;
+import com.github.liyue2008.rpc.serialize.Codec;
+import com.github.liyue2008.rpc.serialize.CodecSupport;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * 桩的调用处理器：JDK 动态代理生成的桩类把所有接口方法的调用都转给这个处理器，
+ * 由它把类名、方法签名和参数封装成请求发给服务端。
+ * 每个远程方法的类名、方法签名、超时时间和是否异步在创建的时候就计算好，调用时只需要查一次表。
+ * 接口上声明了 {@link RpcBatch} 的，同步和异步调用都按照批量模式发送。
+ * @author LiYue
+ * Date: 2019/10/12
+ */
+public class RemoteInvocationHandler extends AbstractStub implements InvocationHandler {
+    private final Class<?> serviceClass;
+    private final Map<Method, RemoteMethod> remoteMethods;
+    /**
+     * 服务接口选择的参数和返回值编码
+     */
+    private final Codec codec;
+
+    public RemoteInvocationHandler(Class<?> serviceClass) {
+        this.serviceClass = serviceClass;
+        this.codec = CodecSupport.codecOf(serviceClass);
+        this.remoteMethods = remoteMethodsOf(serviceClass);
+        RpcBatch rpcBatch = serviceClass.getAnnotation(RpcBatch.class);
+        if (null != rpcBatch) {
+            enableBatching(rpcBatch.maxCalls(), rpcBatch.maxDelayMicros(), rpcBatch.parallel());
+        }
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        RemoteMethod remoteMethod = remoteMethods.get(method);
+        if (null == remoteMethod) {
+            return invokeObjectMethod(proxy, method, args);
+        }
+        // 参数保持原来的类型，由 RpcRequestSerializer 直接写入请求的缓冲区
+        RpcRequest request = new RpcRequest(remoteMethod.interfaceName, remoteMethod.methodName, args, codec, remoteMethod.resultClasses);
+        if (remoteMethod.stream) {
+            return invokeRemoteStream(request, remoteMethod.timeoutMillis);
+        }
+        if (remoteMethod.streamArgument >= 0) {
+            return invokeRemoteInputStream(remoteMethod, args);
+        }
+        return remoteMethod.async ?
+                invokeRemoteAsync(request, remoteMethod.timeoutMillis) :
+                invokeRemote(request, remoteMethod.timeoutMillis);
+    }
+
+    /**
+     * 客户端流式调用：流参数的位置上写null，其它参数和普通调用一样放在打开流的请求中，流参数中的元素之后一帧一帧地发送
+     */
+    private Object invokeRemoteInputStream(RemoteMethod remoteMethod, Object[] args) {
+        Object [] arguments = args.clone();
+        Iterator<?> input = (Iterator<?>) arguments[remoteMethod.streamArgument];
+        arguments[remoteMethod.streamArgument] = null;
+        RpcRequest request = new RpcRequest(remoteMethod.interfaceName, remoteMethod.methodName, arguments, codec, remoteMethod.resultClasses);
+        CompletableFuture<Object> future = invokeRemoteInputStream(request, input, remoteMethod.timeoutMillis);
+        if (remoteMethod.async) {
+            return future;
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * equals、hashCode 和 toString 这些 Object 的方法在本地处理，不发给服务端
+     */
+    private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return serviceClass.getName() + "Stub@" + Integer.toHexString(System.identityHashCode(proxy));
+            default:
+                throw new UnsupportedOperationException(method.toString());
+        }
+    }
+
+    private static Map<Method, RemoteMethod> remoteMethodsOf(Class<?> serviceClass) {
+        Map<Method, RemoteMethod> remoteMethods = new HashMap<>();
+        for (Method method : serviceClass.getMethods()) {
+            boolean async = CompletableFuture.class.equals(method.getReturnType());
+            boolean stream = Iterator.class.equals(method.getReturnType());
+            int streamArgument = streamArgumentOf(method);
+            if (stream && streamArgument >= 0) {
+                throw new IllegalArgumentException(String.format("Method %s can not stream both arguments and result!", method));
+            }
+            remoteMethods.put(method, new RemoteMethod(serviceClass.getName(), RpcRequest.methodSignature(method),
+                    timeoutOf(serviceClass, method), async, stream, streamArgument, resultClassesOf(method, async || stream)));
+        }
+        return remoteMethods;
+    }
+
+    /**
+     * @return 类型是 Iterator 的参数的下标，没有返回-1，不止一个时抛出 IllegalArgumentException
+     */
+    private static int streamArgumentOf(Method method) {
+        int streamArgument = -1;
+        Class<?> [] parameterTypes = method.getParameterTypes();
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (Iterator.class.equals(parameterTypes[i])) {
+                if (streamArgument >= 0) {
+                    throw new IllegalArgumentException(String.format("Method %s has more than one stream argument!", method));
+                }
+                streamArgument = i;
+            }
+        }
+        return streamArgument;
+    }
+
+    /**
+     * 返回值中允许出现的类：返回值类型，异步和流式调用是 Future 和 Iterator 中元素的类型
+     */
+    private static AllowedClasses resultClassesOf(Method method, boolean wrapped) {
+        Type resultType = method.getGenericReturnType();
+        if (wrapped) {
+            resultType = resultType instanceof ParameterizedType ?
+                    ((ParameterizedType) resultType).getActualTypeArguments()[0] : Object.class;
+        }
+        return AllowedClasses.of(resultType);
+    }
+
+    /**
+     * 方法上声明的超时时间，方法上没有声明的，使用接口上声明的超时时间
+     * @return 超时时间，没有声明返回0
+     */
+    private static long timeoutOf(Class<?> serviceClass, Method method) {
+        RpcTimeout rpcTimeout = method.getAnnotation(RpcTimeout.class);
+        if (null == rpcTimeout) {
+            rpcTimeout = serviceClass.getAnnotation(RpcTimeout.class);
+        }
+        return null == rpcTimeout ? 0L : rpcTimeout.value();
+    }
+
+    private static class RemoteMethod {
+        private final String interfaceName;
+        private final String methodName;
+        private final long timeoutMillis;
+        /**
+         * 返回值类型是 CompletableFuture 的方法异步调用，发出请求之后立即返回 Future，不阻塞调用线程
+         */
+        private final boolean async;
+        /**
+         * 返回值类型是 Iterator 的方法是流式调用，返回值中的元素由服务端一帧一帧地推送过来
+         */
+        private final boolean stream;
+        /**
+         * 类型是 Iterator 的参数的下标，这样的方法是客户端流式调用，参数中的元素一帧一帧地发给服务端；没有这样的参数为-1
+         */
+        private final int streamArgument;
+        private final AllowedClasses resultClasses;
+
+        private RemoteMethod(String interfaceName, String methodName, long timeoutMillis, boolean async, boolean stream,
+                             int streamArgument, AllowedClasses resultClasses) {
+            this.interfaceName = interfaceName;
+            this.methodName = methodName;
+            this.timeoutMillis = timeoutMillis;
+            this.async = async;
+            this.stream = stream;
+            this.streamArgument = streamArgument;
+            this.resultClasses = resultClasses;
+        }
+    }
+}
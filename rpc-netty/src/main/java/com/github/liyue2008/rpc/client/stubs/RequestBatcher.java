@@ -0,0 +1,110 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.client.stubs;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 批量模式的桩用来攒批的收集器：调用先放进当前批次，
+ * 攒够 maxCalls 个调用时由发起调用的线程立即发送；
+ * 否则第一个调用进入批次 maxDelay 之后，由所有桩共享的一个定时线程发送。
+ * @author LiYue
+ * Date: 2019/10/16
+ */
+class RequestBatcher {
+    private static final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("rpc-batch-flush", true));
+    private final int maxCalls;
+    private final long maxDelayNanos;
+    private final Consumer<List<BatchedCall>> sender;
+    private final Runnable flushTask = this::flush;
+    private List<BatchedCall> pending;
+    private ScheduledFuture<?> scheduledFlush;
+
+    /**
+     * @param sender 发送一批调用，负责结束每个调用的Future
+     */
+    RequestBatcher(int maxCalls, long maxDelayMicros, Consumer<List<BatchedCall>> sender) {
+        this.maxCalls = Math.max(1, maxCalls);
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0L, maxDelayMicros));
+        this.sender = sender;
+        this.pending = new ArrayList<>(this.maxCalls);
+    }
+
+    /**
+     * 把一个调用放进当前批次
+     * @param timeoutMillis 这个调用的超时时间，小于等于0表示使用默认的超时时间
+     * @return 调用结果的Future
+     */
+    CompletableFuture<Object> add(RpcRequest request, long timeoutMillis) {
+        BatchedCall call = new BatchedCall(request, timeoutMillis);
+        List<BatchedCall> full = null;
+        synchronized (this) {
+            pending.add(call);
+            if (pending.size() >= maxCalls) {
+                full = takePending();
+            } else if (pending.size() == 1) {
+                scheduledFlush = scheduler.schedule(flushTask, maxDelayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        if (null != full) {
+            sender.accept(full);
+        }
+        return call.future;
+    }
+
+    private void flush() {
+        List<BatchedCall> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = takePending();
+        }
+        sender.accept(batch);
+    }
+
+    private List<BatchedCall> takePending() {
+        List<BatchedCall> batch = pending;
+        pending = new ArrayList<>(maxCalls);
+        if (null != scheduledFlush) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        return batch;
+    }
+
+    /**
+     * 批次中的一个调用
+     */
+    static class BatchedCall {
+        final RpcRequest request;
+        final long timeoutMillis;
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+
+        private BatchedCall(RpcRequest request, long timeoutMillis) {
+            this.request = request;
+            this.timeoutMillis = timeoutMillis;
+        }
+    }
+}
@@ -13,19 +13,92 @@
  */
 package com.github.liyue2008.rpc.client.stubs;
 
+import com.github.liyue2008.rpc.serialize.AllowedClasses;
+import com.github.liyue2008.rpc.serialize.Codec;
+import com.github.liyue2008.rpc.serialize.CodecSupport;
+import io.netty.buffer.ByteBuf;
+
+import java.lang.reflect.Method;
+
 /**
+ * RPC 请求：接口名、方法签名和调用参数。
+ * 方法签名包括方法名和参数类型，例如：hello(java.lang.String)，这样重载的方法也能区分开。
+ * 在一个连接上第一次调用某个方法时，请求中带着接口名和方法签名，服务端在响应中返回这个方法的方法ID；
+ * 之后这个连接上的请求只带方法ID，不再带接口名和方法签名，见 {@link MethodIdBindings}。
+ * 参数和返回值使用服务接口选择的 {@link Codec} 编码。
+ * 服务端解析出来的请求只带着参数的缓冲区，找到服务方法之后再按照方法的参数类型读取参数，
+ * 这样参数中只能出现方法签名允许的类，见 {@link AllowedClasses}。
  * @author LiYue
  * Date: 2019/9/27
  */
 public class RpcRequest {
+    /**
+     * 还没有绑定方法ID
+     */
+    public final static int UNBOUND_METHOD_ID = -1;
+    private final static Object [] NO_ARGUMENTS = new Object[0];
     private final String interfaceName;
     private final String methodName;
-    private final byte [] serializedArguments;
+    private final Object [] arguments;
+    private final ByteBuf argumentsBuffer;
+    private final int methodId;
+    private final Codec codec;
+    /**
+     * 调用方读取返回值时允许出现的类
+     */
+    private final AllowedClasses resultClasses;
+
+    public RpcRequest(String interfaceName, String methodName, Object[] arguments) {
+        this(interfaceName, methodName, arguments, CodecSupport.defaultCodec());
+    }
+
+    public RpcRequest(String interfaceName, String methodName, Object[] arguments, Codec codec) {
+        this(interfaceName, methodName, arguments, codec, AllowedClasses.builtin());
+    }
 
-    public RpcRequest(String interfaceName, String methodName, byte[] serializedArguments) {
+    public RpcRequest(String interfaceName, String methodName, Object[] arguments, Codec codec, AllowedClasses resultClasses) {
+        this(interfaceName, methodName, null == arguments ? NO_ARGUMENTS : arguments, null, UNBOUND_METHOD_ID, codec, resultClasses);
+    }
+
+    /**
+     * 服务端解析出来的请求
+     * @param argumentsBuffer 还没有读取的参数
+     */
+    public RpcRequest(String interfaceName, String methodName, ByteBuf argumentsBuffer, int methodId, Codec codec) {
+        this(interfaceName, methodName, null, argumentsBuffer, methodId, codec, AllowedClasses.builtin());
+    }
+
+    private RpcRequest(String interfaceName, String methodName, Object[] arguments, ByteBuf argumentsBuffer,
+                       int methodId, Codec codec, AllowedClasses resultClasses) {
         this.interfaceName = interfaceName;
         this.methodName = methodName;
-        this.serializedArguments = serializedArguments;
+        this.arguments = arguments;
+        this.argumentsBuffer = argumentsBuffer;
+        this.methodId = methodId;
+        this.codec = codec;
+        this.resultClasses = resultClasses;
+    }
+
+    /**
+     * 使用方法ID的请求，序列化的时候不再写入接口名和方法签名
+     */
+    public RpcRequest bind(int methodId) {
+        return new RpcRequest(interfaceName, methodName, arguments, argumentsBuffer, methodId, codec, resultClasses);
+    }
+
+    /**
+     * 方法签名：方法名(参数类型1,参数类型2,...)，参数类型使用 {@link Class#getName()}
+     */
+    public static String methodSignature(Method method) {
+        StringBuilder sb = new StringBuilder(method.getName()).append('(');
+        Class<?> [] parameterTypes = method.getParameterTypes();
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(parameterTypes[i].getName());
+        }
+        return sb.append(')').toString();
     }
 
     public String getInterfaceName() {
@@ -36,7 +109,33 @@ public class RpcRequest {
         return methodName;
     }
 
-    public byte[] getSerializedArguments() {
-        return serializedArguments;
+    /**
+     * @return 调用方创建的请求的参数，服务端解析出来的请求返回null
+     */
+    public Object[] getArguments() {
+        return arguments;
+    }
+
+    /**
+     * 服务端解析出来的请求中还没有读取的参数，用 {@link Codec#readArguments(ByteBuf, AllowedClasses)} 读取
+     */
+    public ByteBuf getArgumentsBuffer() {
+        return argumentsBuffer;
+    }
+
+    public int getMethodId() {
+        return methodId;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    public AllowedClasses getResultClasses() {
+        return resultClasses;
+    }
+
+    public boolean isBound() {
+        return methodId != UNBOUND_METHOD_ID;
     }
 }
@@ -0,0 +1,187 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.client.stubs;
+
+import com.github.liyue2008.rpc.config.ConfigSupport;
+import com.github.liyue2008.rpc.serialize.AllowedClasses;
+import com.github.liyue2008.rpc.serialize.Codec;
+import com.github.liyue2008.rpc.transport.StreamCall;
+import com.github.liyue2008.rpc.transport.command.Command;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 流式调用在客户端的返回值：返回值类型是 Iterator 的服务方法，桩返回的就是这个类的实例。
+ * <ul>
+ *     <li>数据帧在 I/O 线程中收到之后放入队列，调用方的线程在 {@link #hasNext()} 中等待和反序列化；</li>
+ *     <li>打开流的时候给服务端 simple.rpc.client.stream.window（默认64）帧的额度，
+ *     每处理完一半再补充，所以队列中缓存的数据帧不会超过这个窗口；</li>
+ *     <li>超时时间只计算调用方等待下一帧的时间，调用方自己处理得慢不会导致超时；</li>
+ *     <li>不需要读完的流，调用方应该把返回值转换成 {@link Closeable} 并关闭，服务端会停止发送。</li>
+ * </ul>
+ * 这个类不是线程安全的，同一时刻只能在一个线程中读取。
+ * @author LiYue
+ * Date: 2019/10/15
+ */
+public class StreamIterator<T> implements Iterator<T>, Closeable {
+    private static final int WINDOW = Math.max(2, ConfigSupport.getInt("client.stream.window", 64));
+    private static final long DEFAULT_TIMEOUT_MS = ConfigSupport.getLong("client.request.timeout.ms", 10000L);
+    private static final Object END = new Object();
+    private static final Object NONE = new Object();
+
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private final Codec codec;
+    private final AllowedClasses resultClasses;
+    private final long timeoutMillis;
+    private volatile StreamCall call;
+    private volatile boolean closed = false;
+    private Object next = NONE;
+    private boolean done = false;
+    private int consumed = 0;
+
+    /**
+     * @param codec 返回值的编码
+     * @param resultClasses 返回值中允许出现的类
+     * @param timeoutMillis 等待下一帧的超时时间，小于等于0时使用默认的请求超时时间
+     */
+    StreamIterator(Codec codec, AllowedClasses resultClasses, long timeoutMillis) {
+        this.codec = codec;
+        this.resultClasses = resultClasses;
+        this.timeoutMillis = timeoutMillis > 0L ? timeoutMillis : DEFAULT_TIMEOUT_MS;
+    }
+
+    /**
+     * 流已经打开，给服务端初始的额度
+     */
+    void start(StreamCall call) {
+        this.call = call;
+        call.request(WINDOW);
+    }
+
+    /**
+     * 收到一帧数据，在 I/O 线程中执行
+     */
+    void onFrame(Command frame) {
+        queue.add(frame);
+        if (closed) {
+            // 关闭的同时收到的数据帧，关闭时没有清理到
+            drain();
+        }
+    }
+
+    void onEnd() {
+        queue.add(END);
+    }
+
+    void onError(Throwable cause) {
+        queue.add(new Failure(cause));
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != NONE) {
+            return true;
+        }
+        if (done) {
+            return false;
+        }
+        Object item;
+        try {
+            item = queue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new RuntimeException(e);
+        }
+        if (null == item) {
+            close();
+            throw new RuntimeException(new TimeoutException(String.format("Stream timeout after %d ms!", timeoutMillis)));
+        }
+        if (item == END) {
+            done = true;
+            return false;
+        }
+        if (item instanceof Failure) {
+            done = true;
+            closed = true;
+            drain();
+            throw new RuntimeException(((Failure) item).cause);
+        }
+        Command frame = (Command) item;
+        try {
+            next = codec.read(frame.getPayloadBuffer(), resultClasses);
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        } finally {
+            // 数据帧的 payload 引用的是接收缓冲区，反序列化之后就释放
+            frame.release();
+        }
+        if (++consumed >= WINDOW / 2) {
+            call.request(consumed);
+            consumed = 0;
+        }
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        T result = (T) next;
+        next = NONE;
+        return result;
+    }
+
+    /**
+     * 关闭没有读完的流：通知服务端停止发送，释放已经收到的数据帧
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (!done) {
+            done = true;
+            call.cancel();
+        }
+        drain();
+    }
+
+    private void drain() {
+        Object item;
+        while (null != (item = queue.poll())) {
+            if (item instanceof Command) {
+                ((Command) item).release();
+            }
+        }
+    }
+
+    private static class Failure {
+        private final Throwable cause;
+
+        private Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+}
@@ -14,32 +14,124 @@
 package com.github.liyue2008.rpc.nameservice;
 
 import com.github.liyue2008.rpc.NameService;
+import com.github.liyue2008.rpc.config.ConfigSupport;
 import com.github.liyue2008.rpc.serialize.SerializeSupport;
+import io.netty.buffer.Unpooled;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.net.URI;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 /**
  * 注册中心的实现类是 LocalFileNameService
+ * <p>
+ * 服务提供者保存在两个文件中：
+ * <ul>
+ *     <li>快照文件（注册中心URI指向的文件）：序列化的 {@link Metadata}；</li>
+ *     <li>日志文件（快照文件名加上 ".log"）：快照之后的所有注册和注销记录，只追加，不修改。</li>
+ * </ul>
+ * <pre>
+ * 日志文件：魔数(int) + 代数(long) + [记录长度(int) + CRC32(int) + 操作(byte) + 时间戳(long) + 服务名长度(int) + 服务名 + 地址长度(int) + 地址 + [租约时长(long)]] ...
+ * </pre>
+ * 服务提供者默认使用租约注册（见 {@link NameService#registerService(String, URI)}）：租约记录带着租约时长，
+ * 注册服务的实例每隔 simple.rpc.nameservice.lease.heartbeat.interval.ms 毫秒（默认租约时长的1/3）
+ * 追加一次租约记录续约。读取时过滤掉已经到期的服务提供者，不需要任何进程去删除它们。
+ * 租约从读取进程第一次读到这条记录的时间开始计算，只比较读取进程自己的单调时钟，
+ * 记录中写入进程的时间戳只用于排查问题，各个进程的时钟不需要同步。
+ * 代价是进程启动（或者日志被合并）之后第一次读取时，日志中已经停止续约的租约还会再存活最多一个租约时长。
+ * 合并时快照中只保存永久注册的服务提供者，还没到期的租约按剩余的时长重新写入新的日志。
+ * 注册服务只在日志文件的排他锁保护下追加一条记录，不读取、不重写整个文件，默认也不刷盘
+ * （需要时通过 simple.rpc.nameservice.file.sync=true 开启）。
+ * 日志超过 simple.rpc.nameservice.file.compact.threshold.bytes 字节（默认256KB）之后，
+ * 由追加记录的进程把日志合并到快照中，清空日志并把代数加一。
+ * 读取时持有日志文件的共享锁：代数没变就从上次读到的位置继续重放日志，代数变了再重新读取快照和整个日志。
+ * 写到一半的记录（例如进程在追加时崩溃）长度或者CRC不对，重放时就停在这里，下一次合并时丢弃。
  * @author LiYue
  * Date: 2019/9/20
  */
-public class LocalFileNameService implements NameService {
+public class LocalFileNameService implements NameService, Closeable {
     private static final Logger logger = LoggerFactory.getLogger(LocalFileNameService.class);
     private static final Collection<String> schemes = Collections.singleton("file");
+    /**
+     * 检查文件是否变化的最小间隔
+     */
+    private static final long CHECK_INTERVAL_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(ConfigSupport.getLong("nameservice.file.check.interval.ms", 1000L));
+    private static final long COMPACT_THRESHOLD_BYTES = ConfigSupport.getLong("nameservice.file.compact.threshold.bytes", 256L * 1024L);
+    private static final boolean SYNC = ConfigSupport.getBoolean("nameservice.file.sync", false);
+    private static final int LOG_MAGIC = 0x53524E4C;
+    private static final int LOG_HEADER_SIZE = Integer.BYTES + Long.BYTES;
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+    private static final long LEASE_TTL_MS = ConfigSupport.getLong("nameservice.lease.ttl.ms", 6000L);
+    private static final long HEARTBEAT_INTERVAL_MS = Math.max(1L,
+            ConfigSupport.getLong("nameservice.lease.heartbeat.interval.ms", LEASE_TTL_MS / 3L));
+    /**
+     * 永久注册
+     */
+    private static final byte OP_REGISTER = 1;
+    private static final byte OP_UNREGISTER = 2;
+    /**
+     * 租约注册和续约，带着租约时长
+     */
+    private static final byte OP_LEASE = 3;
+    /**
+     * 所有实例共享一个后台线程，负责发送心跳续约
+     */
+    private static final ScheduledExecutorService heartbeatExecutor =
+            Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("rpc-nameservice-heartbeat", true));
+    /**
+     * 同一个进程中对同一个文件的锁是互斥的（重复加锁会抛出异常），
+     * 所以同一个文件的所有实例先在进程内用同一个对象锁互斥，再加文件锁。
+     */
+    private static final ConcurrentMap<Path, Object> fileMonitors = new ConcurrentHashMap<>();
     private File file;
+    private Path logPath;
+    private Object fileMonitor;
+    /**
+     * 缓存的服务提供者，查找服务时直接使用，文件变化之后重新读取
+     */
+    private volatile Snapshot snapshot;
+    private volatile long nextCheckNanos;
+    /**
+     * 这个实例注册的、需要续约的服务提供者：服务名 -> 地址
+     */
+    private final Map<String, Set<URI>> leases = new HashMap<>();
+    private ScheduledFuture<?> heartbeatTask;
+    private boolean closed = false;
 
     @Override
     public Collection<String> supportedSchemes() {
@@ -50,86 +142,580 @@ public class LocalFileNameService implements NameService {
     public void connect(URI nameServiceUri) {
         if(schemes.contains(nameServiceUri.getScheme())) {
             file = new File(nameServiceUri);
+            logPath = new File(file.getPath() + ".log").toPath();
+            fileMonitor = fileMonitors.computeIfAbsent(file.getAbsoluteFile().toPath().normalize(), key -> new Object());
         } else {
             throw new RuntimeException("Unsupported scheme!");
         }
     }
 
     /**
-     * 实现注册服务 registerService 方法时，把服务提供者保存到本地文件中
+     * 实现注册服务 registerService 方法时，在日志文件中追加一条注册记录
      * @param serviceName 服务名称
      * @param uri 服务地址
      * @throws IOException
      */
     @Override
-    public synchronized void registerService(String serviceName, URI uri) throws IOException {
+    public void registerService(String serviceName, URI uri) throws IOException {
         logger.info("Register service: {}, uri: {}.", serviceName, uri);
-        try(RandomAccessFile raf = new RandomAccessFile(file, "rw");
-            FileChannel fileChannel = raf.getChannel()) {
-            FileLock lock = fileChannel.lock();
+        if (LEASE_TTL_MS <= 0L) {
+            append(Collections.singletonList(encodeRecord(OP_REGISTER, System.currentTimeMillis(), serviceName, uri, 0L)));
+            return;
+        }
+        // 和心跳互斥，保证注销之后不会有心跳把服务提供者重新注册回来
+        synchronized (leases) {
+            if (closed) {
+                throw new IllegalStateException("Name service closed!");
+            }
+            append(Collections.singletonList(encodeRecord(OP_LEASE, System.currentTimeMillis(), serviceName, uri, LEASE_TTL_MS)));
+            leases.computeIfAbsent(serviceName, key -> new LinkedHashSet<>()).add(uri);
+            if (null == heartbeatTask) {
+                heartbeatTask = heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat,
+                        HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    @Override
+    public void unregisterService(String serviceName, URI uri) throws IOException {
+        logger.info("Unregister service: {}, uri: {}.", serviceName, uri);
+        synchronized (leases) {
+            Set<URI> uris = leases.get(serviceName);
+            if (null != uris && uris.remove(uri) && uris.isEmpty()) {
+                leases.remove(serviceName);
+            }
+            append(Collections.singletonList(encodeRecord(OP_UNREGISTER, System.currentTimeMillis(), serviceName, uri, 0L)));
+        }
+    }
+
+    /**
+     * 为这个实例注册的所有服务提供者续约，所有的租约记录一次追加。
+     * 续约失败（例如文件暂时不可写）等下一次心跳再重试，只要在租约到期之前成功就不会被删除。
+     */
+    private void heartbeat() {
+        synchronized (leases) {
+            if (leases.isEmpty()) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            List<ByteBuffer> records = new ArrayList<>();
+            for (Map.Entry<String, Set<URI>> entry : leases.entrySet()) {
+                for (URI uri : entry.getValue()) {
+                    records.add(encodeRecord(OP_LEASE, now, entry.getKey(), uri, LEASE_TTL_MS));
+                }
+            }
             try {
-                int fileLength = (int) raf.length();
-                Metadata metadata;
-                byte[] bytes;
-                if(fileLength > 0) {
-                    bytes = new byte[(int) raf.length()];
-                    ByteBuffer buffer = ByteBuffer.wrap(bytes);
-                    while (buffer.hasRemaining()) {
-                        fileChannel.read(buffer);
+                append(records);
+            } catch (Throwable t) {
+                logger.warn("Renew leases in name service file {} failed: {}.", file, t.toString());
+            }
+        }
+    }
+
+    /**
+     * 停止心跳。没有注销的服务提供者不再续约，租约到期之后自动删除。
+     */
+    @Override
+    public void close() {
+        synchronized (leases) {
+            closed = true;
+            leases.clear();
+            if (null != heartbeatTask) {
+                heartbeatTask.cancel(false);
+                heartbeatTask = null;
+            }
+        }
+    }
+
+    private void append(List<ByteBuffer> records) throws IOException {
+        synchronized (fileMonitor) {
+            try (FileChannel logChannel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                FileLock lock = logChannel.lock();
+                try {
+                    long position = logChannel.size();
+                    if (position < LOG_HEADER_SIZE) {
+                        // 新建的日志文件，写入文件头
+                        writeLogHeader(logChannel, 0L);
+                        position = LOG_HEADER_SIZE;
+                    }
+                    for (ByteBuffer record : records) {
+                        position = writeFully(logChannel, record, position);
+                    }
+                    if (SYNC) {
+                        logChannel.force(false);
                     }
+                    if (position >= COMPACT_THRESHOLD_BYTES) {
+                        compact(logChannel);
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+        // 下一次查找立即检查文件，读到刚写入的记录
+        nextCheckNanos = System.nanoTime();
+    }
 
-                    metadata = SerializeSupport.parse(bytes);
+    /**
+     * 在日志文件的排他锁保护下，把快照和日志合并成新的快照，然后清空日志并把代数加一。
+     * 快照中只保存永久注册的服务提供者，没有到期的租约按剩余的时长写入新的日志。
+     * 租约从读到记录时开始计算，刚刚完整读取过的日志中所有租约看起来都没有到期，这时合并会让停止续约的租约复活。
+     * 所以只用完整读取之后至少过了一个租约时长的缓存合并，否则先更新缓存，推迟到之后的追加再合并。
+     * 新快照先写到临时文件再改名，任何时候崩溃，快照都是完整的；
+     * 改名之后、清空日志之前崩溃的，日志会在新快照上再重放一次，注册和注销都是幂等的，结果不变。
+     */
+    private void compact(FileChannel logChannel) throws IOException {
+        Snapshot snapshot = load(this.snapshot, logChannel, attributesOf(file.toPath()), attributesOf(logPath));
+        this.snapshot = snapshot;
+        long now = nowMillis();
+        if (now - snapshot.loadedAtMillis < LEASE_TTL_MS) {
+            return;
+        }
+        long generation = snapshot.generation;
+        Map<String, Map<URI, Lease>> providers = snapshot.providers;
+        Metadata metadata = new Metadata();
+        Map<String, Map<URI, Lease>> compacted = new HashMap<>();
+        List<ByteBuffer> leaseRecords = new ArrayList<>();
+        for (Map.Entry<String, Map<URI, Lease>> entry : providers.entrySet()) {
+            for (Map.Entry<URI, Lease> provider : entry.getValue().entrySet()) {
+                Lease lease = provider.getValue();
+                if (lease.isPermanent()) {
+                    metadata.computeIfAbsent(entry.getKey(), key -> new ArrayList<>()).add(provider.getKey());
+                } else if (lease.isAlive(now)) {
+                    leaseRecords.add(encodeRecord(OP_LEASE, System.currentTimeMillis(), entry.getKey(), provider.getKey(), lease.expireAtMillis - now));
                 } else {
-                    metadata = new Metadata();
+                    continue;
                 }
-                List<URI> uris = metadata.computeIfAbsent(serviceName, k -> new ArrayList<>());
-                if(!uris.contains(uri)) {
-                    uris.add(uri);
-                }
-                logger.info(metadata.toString());
-
-                bytes = SerializeSupport.serialize(metadata);
-                fileChannel.truncate(bytes.length);
-                fileChannel.position(0L);
-                fileChannel.write(ByteBuffer.wrap(bytes));
-                fileChannel.force(true);
-            } finally {
-                lock.release();
+                compacted.computeIfAbsent(entry.getKey(), key -> new LinkedHashMap<>()).put(provider.getKey(), lease);
             }
         }
+        Path snapshotPath = file.toPath();
+        Path tmpPath = new File(file.getPath() + ".tmp").toPath();
+        try (FileChannel tmpChannel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(tmpChannel, ByteBuffer.wrap(SerializeSupport.serialize(metadata)), 0L);
+            tmpChannel.force(true);
+        }
+        Files.move(tmpPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logChannel.truncate(LOG_HEADER_SIZE);
+        writeLogHeader(logChannel, generation + 1L);
+        long position = LOG_HEADER_SIZE;
+        for (ByteBuffer record : leaseRecords) {
+            position = writeFully(logChannel, record, position);
+        }
+        logChannel.force(true);
+        // 缓存合并的结果，之后的查找和合并从新日志的末尾继续重放
+        this.snapshot = new Snapshot(compacted, generation + 1L, position, snapshot.loadedAtMillis,
+                FileVersion.of(attributesOf(snapshotPath)), FileVersion.of(attributesOf(logPath)));
+        logger.info("Compacted name service file: {}, generation: {}, permanent services: {}, leases: {}.",
+                file, generation + 1L, metadata.size(), leaseRecords.size());
     }
 
     /**
-     * 实现查找服务 lookupService 时，就是去本地文件中读出所有的服务提供者，找到对应的服务提供者，然后返回
+     * 实现查找服务 lookupService 时，就是去本地文件中读出所有的服务提供者，找到对应的服务提供者，然后返回。
+     * 解析好的服务提供者缓存在内存中，只有文件的修改时间或者长度变了才重新读取文件；
+     * 每隔 simple.rpc.nameservice.file.check.interval.ms 毫秒（默认1000）才检查一次文件，
+     * 其余的查找不需要任何系统调用。找不到服务提供者时，不等检查间隔，立即检查一次文件。
      * @param serviceName 服务名称
      * @return
      * @throws IOException
      */
     @Override
     public URI lookupService(String serviceName) throws IOException {
-        Metadata metadata;
         //D:\Users\yuanqixu\AppData\Local\Temp\simple_rpc_name_service.data
-        try(RandomAccessFile raf = new RandomAccessFile(file, "rw");
-            FileChannel fileChannel = raf.getChannel()) {
-            FileLock lock = fileChannel.lock();
-            try {
-                byte [] bytes = new byte[(int) raf.length()];
-                ByteBuffer buffer = ByteBuffer.wrap(bytes);
-                while (buffer.hasRemaining()) {
-                    fileChannel.read(buffer);
-                }
-                metadata = bytes.length == 0? new Metadata(): SerializeSupport.parse(bytes);
-                logger.info(metadata.toString());
-            } finally {
-                lock.release();
-            }
+        List<URI> uris = metadata(false).get(serviceName);
+        if(null == uris || uris.isEmpty()) {
+            uris = metadata(true).get(serviceName);
         }
-
-        List<URI> uris = metadata.get(serviceName);
         if(null == uris || uris.isEmpty()) {
             return null;
         } else {
             return uris.get(ThreadLocalRandom.current().nextInt(uris.size()));
         }
     }
+
+    /**
+     * 所有服务提供者，和 {@link #lookupService(String)} 一样使用缓存
+     */
+    @Override
+    public List<URI> lookupServices(String serviceName) throws IOException {
+        List<URI> uris = metadata(false).get(serviceName);
+        if (null == uris || uris.isEmpty()) {
+            uris = metadata(true).get(serviceName);
+        }
+        return null == uris ? Collections.emptyList() : Collections.unmodifiableList(uris);
+    }
+
+    /**
+     * @param force 是否不等检查间隔，立即检查文件是否变化
+     */
+    private Metadata metadata(boolean force) throws IOException {
+        Snapshot snapshot = this.snapshot;
+        long now = System.nanoTime();
+        if (null != snapshot && !force && now - nextCheckNanos < 0L && !snapshot.hasExpired()) {
+            return snapshot.metadata;
+        }
+        if (null != snapshot && snapshot.isSameVersion(attributesOf(file.toPath()), attributesOf(logPath))) {
+            nextCheckNanos = now + CHECK_INTERVAL_NANOS;
+            if (snapshot.hasExpired()) {
+                // 文件没变，只是有租约到期了，重新计算存活的服务提供者
+                this.snapshot = snapshot = snapshot.withProviders(snapshot.providers);
+            }
+            return snapshot.metadata;
+        }
+        return reload();
+    }
+
+    /**
+     * 在日志文件的共享锁保护下，重放上次读取之后追加的日志，日志被合并过的，重新读取快照和整个日志。
+     */
+    private Metadata reload() throws IOException {
+        synchronized (fileMonitor) {
+            Snapshot snapshot = this.snapshot;
+            Snapshot reloaded;
+            try (FileChannel logChannel = FileChannel.open(logPath, StandardOpenOption.READ)) {
+                FileLock lock = logChannel.lock(0L, Long.MAX_VALUE, true);
+                try {
+                    // 在锁的保护下读取文件属性，这时没有人在写文件，属性和内容是一致的
+                    BasicFileAttributes snapshotAttributes = attributesOf(file.toPath());
+                    reloaded = load(snapshot, logChannel, snapshotAttributes, attributesOf(logPath));
+                } finally {
+                    lock.release();
+                }
+            } catch (NoSuchFileException e) {
+                // 没有日志文件，只有快照（或者什么都没有）
+                BasicFileAttributes snapshotAttributes = attributesOf(file.toPath());
+                if (null != snapshot && snapshot.isSameVersion(snapshotAttributes, null)) {
+                    reloaded = snapshot.withProviders(snapshot.providers);
+                } else {
+                    reloaded = new Snapshot(readSnapshot(), -1L, 0L, nowMillis(), FileVersion.of(snapshotAttributes), null);
+                }
+            }
+            logger.debug("Reload name service file: {}, {}", file, reloaded.metadata);
+            this.snapshot = reloaded;
+            nextCheckNanos = System.nanoTime() + CHECK_INTERVAL_NANOS;
+            return reloaded.metadata;
+        }
+    }
+
+    /**
+     * 把快照文件映射到内存中解析，快照中的服务提供者都是永久注册的
+     * @return 服务名 -> (地址 -> 租约)
+     */
+    private Map<String, Map<URI, Lease>> readSnapshot() throws IOException {
+        Metadata metadata;
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileLength = fileChannel.size();
+            metadata = fileLength == 0L ? new Metadata() :
+                    SerializeSupport.parse(Unpooled.wrappedBuffer(fileChannel.map(FileChannel.MapMode.READ_ONLY, 0L, fileLength)));
+        } catch (NoSuchFileException e) {
+            metadata = new Metadata();
+        }
+        Map<String, Map<URI, Lease>> providers = new HashMap<>();
+        for (Map.Entry<String, List<URI>> entry : metadata.entrySet()) {
+            Map<URI, Lease> uris = new LinkedHashMap<>();
+            for (URI uri : entry.getValue()) {
+                uris.put(uri, Lease.PERMANENT);
+            }
+            providers.put(entry.getKey(), uris);
+        }
+        return providers;
+    }
+
+    /**
+     * 在日志文件的锁保护下读取服务提供者：代数和快照文件都没变的，在缓存的服务提供者上增量重放日志，
+     * 否则重新读取快照和整个日志
+     * @param snapshot 缓存的服务提供者，可以为null
+     */
+    private Snapshot load(Snapshot snapshot, FileChannel logChannel,
+                          BasicFileAttributes snapshotAttributes, BasicFileAttributes logAttributes) throws IOException {
+        long logSize = logChannel.size();
+        long generation = logSize < LOG_HEADER_SIZE ? -1L : readLogGeneration(logChannel);
+        if (null != snapshot && snapshot.generation == generation && logSize >= snapshot.logOffset &&
+                snapshot.isSameSnapshotFile(snapshotAttributes)) {
+            // 增量重放。缓存的服务提供者可能正在被其它线程读取，在副本上修改
+            Map<String, Map<URI, Lease>> providers = new HashMap<>(snapshot.providers);
+            long offset = replay(logChannel, snapshot.logOffset, logSize, providers);
+            return new Snapshot(providers, generation, offset, snapshot.loadedAtMillis,
+                    FileVersion.of(snapshotAttributes), FileVersion.of(logAttributes));
+        }
+        long loadedAtMillis = nowMillis();
+        Map<String, Map<URI, Lease>> providers = readSnapshot();
+        long offset = generation < 0L ? logSize : replay(logChannel, LOG_HEADER_SIZE, logSize, providers);
+        return new Snapshot(providers, generation, offset, loadedAtMillis,
+                FileVersion.of(snapshotAttributes), FileVersion.of(logAttributes));
+    }
+
+    /**
+     * 把日志文件 [from, to) 之间的记录映射到内存中，按顺序重放到 providers 上。
+     * 这次读到的租约都从现在开始计算到期时间
+     * @param providers 服务名 -> (地址 -> 租约)，被修改的服务换成新的 Map，原来的 Map 可能正在被其它线程读取
+     * @return 最后一条完整记录的结束位置，下一次从这里继续重放
+     */
+    private long replay(FileChannel logChannel, long from, long to, Map<String, Map<URI, Lease>> providers) throws IOException {
+        if (to <= from) {
+            return from;
+        }
+        ByteBuffer buffer = logChannel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        CRC32 crc32 = new CRC32();
+        // 这次重放中已经复制过的服务，同一个服务只复制一次
+        Set<String> copied = new HashSet<>();
+        long now = nowMillis();
+        long offset = from;
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                break;
+            }
+            ByteBuffer body = buffer.slice();
+            body.limit(length);
+            crc32.reset();
+            crc32.update(body.duplicate());
+            if ((int) crc32.getValue() != checksum) {
+                break;
+            }
+            byte op = body.get();
+            // 写入进程的时间戳，各个进程的时钟不一定同步，不参与租约的计算
+            body.getLong();
+            String serviceName = readString(body);
+            URI uri = URI.create(readString(body));
+            long ttlMillis = op == OP_LEASE ? body.getLong() : 0L;
+            Map<URI, Lease> uris = providers.get(serviceName);
+            if (copied.add(serviceName)) {
+                uris = null == uris ? new LinkedHashMap<>() : new LinkedHashMap<>(uris);
+                providers.put(serviceName, uris);
+            }
+            apply(uris, op, now, uri, ttlMillis);
+            buffer.position(buffer.position() + length);
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        if (offset < to) {
+            logger.warn("Incomplete record in name service log: {}, offset: {}.", logPath, offset);
+        }
+        return offset;
+    }
+
+    /**
+     * 注册、续约或者注销一个服务提供者
+     * @param now 读到这条记录的本地时间，见 {@link #nowMillis()}
+     */
+    private static void apply(Map<URI, Lease> uris, byte op, long now, URI uri, long ttlMillis) {
+        switch (op) {
+            case OP_REGISTER:
+                uris.put(uri, Lease.PERMANENT);
+                break;
+            case OP_LEASE:
+                uris.put(uri, new Lease(now + ttlMillis));
+                break;
+            case OP_UNREGISTER:
+                uris.remove(uri);
+                break;
+            default:
+                // 不认识的记录（更新版本写入的）跳过
+        }
+    }
+
+    /**
+     * @param ttlMillis 租约时长，只有租约记录才写入
+     */
+    private static ByteBuffer encodeRecord(byte op, long timestamp, String serviceName, URI uri, long ttlMillis) {
+        byte [] name = serviceName.getBytes(StandardCharsets.UTF_8);
+        byte [] address = uri.toString().getBytes(StandardCharsets.UTF_8);
+        int length = Byte.BYTES + Long.BYTES + Integer.BYTES + name.length + Integer.BYTES + address.length +
+                (op == OP_LEASE ? Long.BYTES : 0);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        record.putInt(length).putInt(0)
+                .put(op).putLong(timestamp)
+                .putInt(name.length).put(name)
+                .putInt(address.length).put(address);
+        if (op == OP_LEASE) {
+            record.putLong(ttlMillis);
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(record.array(), RECORD_HEADER_SIZE, length);
+        record.putInt(Integer.BYTES, (int) crc32.getValue());
+        record.flip();
+        return record;
+    }
+
+    /**
+     * 租约使用的本地单调时钟，不受系统时间调整的影响，只能在同一个进程内比较
+     */
+    private static long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte [] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long readLogGeneration(FileChannel logChannel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (logChannel.read(header, header.position()) < 0) {
+                throw new IOException("Truncated name service log header!");
+            }
+        }
+        header.flip();
+        if (header.getInt() != LOG_MAGIC) {
+            throw new IOException("Invalid name service log!");
+        }
+        return header.getLong();
+    }
+
+    private static void writeLogHeader(FileChannel logChannel, long generation) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+        header.putInt(LOG_MAGIC).putLong(generation).flip();
+        writeFully(logChannel, header, 0L);
+    }
+
+    /**
+     * @return 写入之后的位置
+     */
+    private static long writeFully(FileChannel fileChannel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += fileChannel.write(buffer, position);
+        }
+        return position;
+    }
+
+    private static BasicFileAttributes attributesOf(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 缓存的服务提供者，以及读取时快照文件和日志文件的版本（修改时间和长度）、日志的代数和读到的位置
+     */
+    private static class Snapshot {
+        /**
+         * 所有服务提供者和它们的租约，包括已经到期的
+         */
+        private final Map<String, Map<URI, Lease>> providers;
+        /**
+         * 当前存活的服务提供者，查找服务时直接使用
+         */
+        private final Metadata metadata;
+        /**
+         * 存活的服务提供者中最早到期的时间，到期之后需要重新计算 metadata
+         */
+        private final long nextExpireAtMillis;
+        private final long generation;
+        private final long logOffset;
+        /**
+         * 最近一次完整读取快照和日志的本地时间，见 {@link #nowMillis()}
+         */
+        private final long loadedAtMillis;
+        private final FileVersion snapshotVersion;
+        private final FileVersion logVersion;
+
+        private Snapshot(Map<String, Map<URI, Lease>> providers, long generation, long logOffset, long loadedAtMillis,
+                         FileVersion snapshotVersion, FileVersion logVersion) {
+            this.providers = providers;
+            this.generation = generation;
+            this.logOffset = logOffset;
+            this.loadedAtMillis = loadedAtMillis;
+            this.snapshotVersion = snapshotVersion;
+            this.logVersion = logVersion;
+            long now = nowMillis();
+            long nextExpireAtMillis = Long.MAX_VALUE;
+            Metadata metadata = new Metadata();
+            for (Map.Entry<String, Map<URI, Lease>> entry : providers.entrySet()) {
+                List<URI> alive = new ArrayList<>(entry.getValue().size());
+                for (Map.Entry<URI, Lease> provider : entry.getValue().entrySet()) {
+                    Lease lease = provider.getValue();
+                    if (lease.isAlive(now)) {
+                        alive.add(provider.getKey());
+                        nextExpireAtMillis = Math.min(nextExpireAtMillis, lease.expireAtMillis);
+                    }
+                }
+                if (!alive.isEmpty()) {
+                    metadata.put(entry.getKey(), alive);
+                }
+            }
+            this.metadata = metadata;
+            this.nextExpireAtMillis = nextExpireAtMillis;
+        }
+
+        /**
+         * 文件版本不变，重新计算存活的服务提供者
+         */
+        private Snapshot withProviders(Map<String, Map<URI, Lease>> providers) {
+            return new Snapshot(providers, generation, logOffset, loadedAtMillis, snapshotVersion, logVersion);
+        }
+
+        private boolean hasExpired() {
+            return nextExpireAtMillis != Long.MAX_VALUE && nowMillis() >= nextExpireAtMillis;
+        }
+
+        private boolean isSameVersion(BasicFileAttributes snapshotAttributes, BasicFileAttributes logAttributes) {
+            return isSameSnapshotFile(snapshotAttributes) && Objects.equals(logVersion, FileVersion.of(logAttributes));
+        }
+
+        private boolean isSameSnapshotFile(BasicFileAttributes snapshotAttributes) {
+            return Objects.equals(snapshotVersion, FileVersion.of(snapshotAttributes));
+        }
+    }
+
+    /**
+     * 服务提供者的租约
+     */
+    private static class Lease {
+        private final static Lease PERMANENT = new Lease(Long.MAX_VALUE);
+        /**
+         * 到期时间，本地单调时钟，见 {@link #nowMillis()}
+         */
+        private final long expireAtMillis;
+
+        private Lease(long expireAtMillis) {
+            this.expireAtMillis = expireAtMillis;
+        }
+
+        private boolean isPermanent() {
+            return expireAtMillis == Long.MAX_VALUE;
+        }
+
+        private boolean isAlive(long nowMillis) {
+            return nowMillis < expireAtMillis;
+        }
+    }
+
+    private static class FileVersion {
+        private final FileTime lastModifiedTime;
+        private final long size;
+
+        private FileVersion(FileTime lastModifiedTime, long size) {
+            this.lastModifiedTime = lastModifiedTime;
+            this.size = size;
+        }
+
+        /**
+         * @return 文件不存在返回null
+         */
+        private static FileVersion of(BasicFileAttributes attributes) {
+            return null == attributes ? null : new FileVersion(attributes.lastModifiedTime(), attributes.size());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof FileVersion)) {
+                return false;
+            }
+            FileVersion that = (FileVersion) o;
+            return size == that.size && lastModifiedTime.equals(that.lastModifiedTime);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(lastModifiedTime, size);
+        }
+    }
 }
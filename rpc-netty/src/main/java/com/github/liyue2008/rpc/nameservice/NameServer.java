@@ -0,0 +1,291 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.nameservice;
+
+import com.github.liyue2008.rpc.config.ConfigSupport;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 嵌入在 RPC 服务端进程中的注册中心，把它作为一个普通的服务注册到 RPC 框架中就可以对外提供服务：
+ * <pre>
+ *     NameServer nameServer = new NameServer();
+ *     rpcAccessPoint.addServiceProvider(nameServer, RegistryService.class);
+ *     rpcAccessPoint.startServer();
+ *     // 其它进程通过 rpcAccessPoint.getNameService(URI.create("rpc://host:port")) 访问
+ * </pre>
+ * <ul>
+ *     <li>服务提供者保存在内存中，每个服务提供者带着一个租约，后台每隔
+ *     simple.rpc.nameservice.server.expire.check.interval.ms 毫秒（默认500）删除到期的服务提供者；</li>
+ *     <li>服务提供者每次变化，服务的版本都会更新。等待这个服务变化的长轮询请求立即返回，
+ *     这样客户端几乎马上就能收到推送，等待中的请求不占用服务端的线程；</li>
+ *     <li>长轮询最长等待 simple.rpc.nameservice.server.watch.max.ms 毫秒（默认60000）。</li>
+ * </ul>
+ * 租约的到期时间使用单调时钟（System.nanoTime），系统时间被调整时不会让所有服务提供者同时到期。
+ * 数据不持久化，重启之后由客户端的心跳重新注册。
+ * @author LiYue
+ * Date: 2019/10/17
+ */
+public class NameServer implements RegistryService, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(NameServer.class);
+    private static final long EXPIRE_CHECK_INTERVAL_MS = ConfigSupport.getLong("nameservice.server.expire.check.interval.ms", 500L);
+    private static final long MAX_WATCH_MS = ConfigSupport.getLong("nameservice.server.watch.max.ms", 60000L);
+    private static final long PERMANENT = Long.MAX_VALUE;
+
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("rpc-nameserver", true));
+    private final ScheduledFuture<?> expireTask;
+    /**
+     * 服务名 -> 服务，所有状态都由 this 保护
+     */
+    private final Map<String, Service> services = new HashMap<>();
+    /**
+     * 最近一次分配的版本。从当前时间开始，注册中心重启之后分配的版本不会和重启之前客户端拿到的版本相同
+     */
+    private long lastVersion = System.currentTimeMillis();
+
+    public NameServer() {
+        expireTask = scheduler.scheduleWithFixedDelay(this::expire, EXPIRE_CHECK_INTERVAL_MS, EXPIRE_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void register(String serviceName, String uri, long ttlMillis) {
+        renew(Collections.singletonMap(serviceName, Collections.singletonList(uri)), ttlMillis);
+    }
+
+    @Override
+    public void renew(Map<String, List<String>> providers, long ttlMillis) {
+        long expireAtNanos = ttlMillis <= 0L ? PERMANENT : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        List<Watcher> fired = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<String, List<String>> entry : providers.entrySet()) {
+                Service service = services.computeIfAbsent(entry.getKey(), Service::new);
+                boolean changed = false;
+                for (String uri : entry.getValue()) {
+                    if (null == service.uris.put(uri, expireAtNanos)) {
+                        logger.info("Register service: {}, uri: {}.", service.name, uri);
+                        changed = true;
+                    }
+                }
+                // 只是续约，服务提供者没有变化，不需要通知
+                if (changed) {
+                    onChanged(service, fired);
+                }
+            }
+        }
+        complete(fired);
+    }
+
+    @Override
+    public void unregister(String serviceName, String uri) {
+        List<Watcher> fired = new ArrayList<>();
+        synchronized (this) {
+            Service service = services.get(serviceName);
+            if (null != service && null != service.uris.remove(uri)) {
+                logger.info("Unregister service: {}, uri: {}.", serviceName, uri);
+                onChanged(service, fired);
+                removeIfUnused(service);
+            }
+        }
+        complete(fired);
+    }
+
+    @Override
+    public synchronized List<String> lookup(String serviceName) {
+        Service service = services.get(serviceName);
+        return null == service ? new ArrayList<>() : new ArrayList<>(service.uris.keySet());
+    }
+
+    @Override
+    public CompletableFuture<Map<String, ServiceProviders>> watch(Map<String, Long> versions, long timeoutMillis) {
+        Watcher watcher = new Watcher(versions.keySet());
+        synchronized (this) {
+            Map<String, ServiceProviders> changes = new HashMap<>();
+            for (Map.Entry<String, Long> entry : versions.entrySet()) {
+                Service service = services.get(entry.getKey());
+                long version = null == service ? 0L : service.version;
+                if (version != entry.getValue()) {
+                    changes.put(entry.getKey(), null == service ? new ServiceProviders(0L, new ArrayList<>()) : service.providers());
+                }
+            }
+            if (!changes.isEmpty()) {
+                return CompletableFuture.completedFuture(changes);
+            }
+            // 客户端已经是最新的，挂起请求等待变化
+            for (String serviceName : watcher.serviceNames) {
+                services.computeIfAbsent(serviceName, Service::new).watchers.add(watcher);
+            }
+            watcher.timeout = scheduler.schedule(() -> timeout(watcher),
+                    Math.max(0L, Math.min(timeoutMillis, MAX_WATCH_MS)), TimeUnit.MILLISECONDS);
+        }
+        return watcher.future;
+    }
+
+    /**
+     * 等待超时，没有变化
+     */
+    private void timeout(Watcher watcher) {
+        synchronized (this) {
+            if (null != watcher.changes) {
+                return;
+            }
+            detach(watcher);
+        }
+        watcher.future.complete(new HashMap<>());
+    }
+
+    /**
+     * 删除租约到期的服务提供者
+     */
+    private void expire() {
+        List<Watcher> fired = new ArrayList<>();
+        try {
+            long now = System.nanoTime();
+            synchronized (this) {
+                for (Service service : new ArrayList<>(services.values())) {
+                    boolean changed = false;
+                    for (Iterator<Map.Entry<String, Long>> iterator = service.uris.entrySet().iterator(); iterator.hasNext(); ) {
+                        Map.Entry<String, Long> entry = iterator.next();
+                        // nanoTime 可能是负数，只能比较差值
+                        if (entry.getValue() != PERMANENT && entry.getValue() - now <= 0L) {
+                            logger.info("Lease expired, service: {}, uri: {}.", service.name, entry.getKey());
+                            iterator.remove();
+                            changed = true;
+                        }
+                    }
+                    if (changed) {
+                        onChanged(service, fired);
+                        removeIfUnused(service);
+                    }
+                }
+            }
+        } catch (Throwable t) {
+            logger.warn("Expire leases failed: ", t);
+        }
+        complete(fired);
+    }
+
+    /**
+     * 服务提供者发生了变化：更新版本，把最新的地址交给所有等待这个服务的长轮询请求。
+     * 一次修改中变化的多个服务一起返回给同一个请求，请求在释放锁之后再结束。
+     */
+    private void onChanged(Service service, List<Watcher> fired) {
+        service.version = ++lastVersion;
+        for (Watcher watcher : new ArrayList<>(service.watchers)) {
+            if (null == watcher.changes) {
+                watcher.changes = new HashMap<>();
+                fired.add(watcher);
+                detach(watcher);
+            }
+            watcher.changes.put(service.name, service.providers());
+        }
+    }
+
+    private void detach(Watcher watcher) {
+        for (String serviceName : watcher.serviceNames) {
+            Service service = services.get(serviceName);
+            if (null != service) {
+                service.watchers.remove(watcher);
+                removeIfUnused(service);
+            }
+        }
+    }
+
+    /**
+     * 没有服务提供者，也没有请求在等待的服务不再保存，它的版本回到0
+     */
+    private void removeIfUnused(Service service) {
+        if (service.uris.isEmpty() && service.watchers.isEmpty()) {
+            services.remove(service.name, service);
+        }
+    }
+
+    private static void complete(List<Watcher> fired) {
+        for (Watcher watcher : fired) {
+            watcher.timeout.cancel(false);
+            watcher.future.complete(watcher.changes);
+        }
+    }
+
+    /**
+     * 停止删除到期的服务提供者，所有等待中的长轮询请求立即返回
+     */
+    @Override
+    public void close() {
+        expireTask.cancel(false);
+        scheduler.shutdownNow();
+        List<Watcher> watchers = new ArrayList<>();
+        synchronized (this) {
+            for (Service service : services.values()) {
+                watchers.addAll(service.watchers);
+                service.watchers.clear();
+            }
+        }
+        for (Watcher watcher : watchers) {
+            watcher.future.complete(new HashMap<>());
+        }
+    }
+
+    private static class Service {
+        private final String name;
+        /**
+         * 服务地址 -> 租约到期时间（System.nanoTime），永久注册为 {@link #PERMANENT}
+         */
+        private final Map<String, Long> uris = new LinkedHashMap<>();
+        private final Set<Watcher> watchers = new HashSet<>();
+        private long version = 0L;
+
+        private Service(String name) {
+            this.name = name;
+        }
+
+        private ServiceProviders providers() {
+            return new ServiceProviders(version, new ArrayList<>(uris.keySet()));
+        }
+    }
+
+    /**
+     * 一个等待中的长轮询请求
+     */
+    private static class Watcher {
+        private final Set<String> serviceNames;
+        private final CompletableFuture<Map<String, ServiceProviders>> future = new CompletableFuture<>();
+        private ScheduledFuture<?> timeout;
+        /**
+         * 不为null表示已经被触发，正在返回
+         */
+        private Map<String, ServiceProviders> changes;
+
+        private Watcher(Set<String> serviceNames) {
+            this.serviceNames = new HashSet<>(serviceNames);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.nameservice;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 注册中心服务端对外提供的 RPC 服务，由 {@link NameServer} 实现，{@link RpcNameService} 是它的客户端。
+ * 服务地址统一用字符串表示，和编码无关。
+ * @author LiYue
+ * Date: 2019/10/17
+ */
+public interface RegistryService {
+    /**
+     * 注册一个服务提供者，已经注册过的只更新租约
+     * @param serviceName 服务名称
+     * @param uri 服务地址
+     * @param ttlMillis 租约时长，小于等于0表示永久注册
+     */
+    void register(String serviceName, String uri, long ttlMillis);
+
+    /**
+     * 心跳：为一个客户端注册的所有服务提供者续约。注册中心重启之后丢失的服务提供者会被重新注册。
+     * @param providers 服务名 -> 服务地址列表
+     * @param ttlMillis 租约时长
+     */
+    void renew(Map<String, List<String>> providers, long ttlMillis);
+
+    /**
+     * 注销一个服务提供者
+     */
+    void unregister(String serviceName, String uri);
+
+    /**
+     * 查询服务的所有服务地址
+     * @return 没有返回空列表
+     */
+    List<String> lookup(String serviceName);
+
+    /**
+     * 长轮询：等待任意一个服务的版本和客户端已知的版本不同之后返回这些服务的最新地址。
+     * 服务端不占用线程等待，返回的 Future 在服务提供者变化时结束。
+     * @param versions 服务名 -> 客户端已知的版本，还不知道的服务版本为0
+     * @param timeoutMillis 最长等待时间，到时没有变化返回空的 Map
+     * @return 服务名 -> 最新的版本和服务地址，只包含发生了变化的服务
+     */
+    CompletableFuture<Map<String, ServiceProviders>> watch(Map<String, Long> versions, long timeoutMillis);
+}
@@ -0,0 +1,347 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.nameservice;
+
+import com.github.liyue2008.rpc.NameService;
+import com.github.liyue2008.rpc.RpcContext;
+import com.github.liyue2008.rpc.client.StubFactory;
+import com.github.liyue2008.rpc.config.ConfigSupport;
+import com.github.liyue2008.rpc.spi.ServiceSupport;
+import com.github.liyue2008.rpc.transport.PooledTransport;
+import com.github.liyue2008.rpc.transport.TransportClient;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * 访问 {@link NameServer} 的注册中心客户端，注册中心的URI是嵌入了注册中心的 RPC 服务端地址，例如：rpc://localhost:9999。
+ * <ul>
+ *     <li>注册服务使用租约，租约时长和心跳间隔的配置和 {@link LocalFileNameService} 相同，
+ *     所有服务提供者的续约在一次心跳请求中发送；</li>
+ *     <li>订阅服务之后，后台用长轮询等待注册中心推送服务提供者的变化，每次最长等待
+ *     simple.rpc.nameservice.watch.timeout.ms 毫秒（默认30000），失败之后过
+ *     simple.rpc.nameservice.watch.retry.delay.ms 毫秒（默认1000）重试；</li>
+ *     <li>长轮询单独使用一条连接：它的时延是等待变化的时间，不代表注册中心的负载，
+ *     不能让它缩小注册、查询请求所在连接的在途请求窗口。</li>
+ * </ul>
+ * @author LiYue
+ * Date: 2019/10/17
+ */
+public class RpcNameService implements NameService, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(RpcNameService.class);
+    private static final Collection<String> schemes = Collections.singleton("rpc");
+    private static final long CONNECTION_TIMEOUT_MS = 30000L;
+    private static final long LEASE_TTL_MS = ConfigSupport.getLong("nameservice.lease.ttl.ms", 6000L);
+    private static final long HEARTBEAT_INTERVAL_MS = Math.max(1L,
+            ConfigSupport.getLong("nameservice.lease.heartbeat.interval.ms", LEASE_TTL_MS / 3L));
+    private static final long WATCH_TIMEOUT_MS = ConfigSupport.getLong("nameservice.watch.timeout.ms", 30000L);
+    private static final long WATCH_RETRY_DELAY_MS = ConfigSupport.getLong("nameservice.watch.retry.delay.ms", 1000L);
+    /**
+     * 所有实例共享一个后台线程，负责发送心跳续约和重试长轮询
+     */
+    private static final ScheduledExecutorService heartbeatExecutor =
+            Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("rpc-nameservice-heartbeat", true));
+    /**
+     * 所有实例共享一个后台线程，负责通知订阅者。订阅者可能会阻塞（例如建立连接），不能在 I/O 线程中执行
+     */
+    private static final ScheduledExecutorService notifyExecutor =
+            Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("rpc-nameservice-notify", true));
+
+    private TransportClient client;
+    private PooledTransport transport;
+    private PooledTransport watchTransport;
+    private RegistryService registry;
+    private RegistryService watchRegistry;
+    /**
+     * 这个实例注册的、需要续约的服务提供者：服务名 -> 地址
+     */
+    private final Map<String, Set<String>> leases = new HashMap<>();
+    /**
+     * 每次注销（包括注册失败时撤销）加一，心跳据此判断续约期间有没有服务提供者被注销，由 leases 保护
+     */
+    private long leasesGeneration = 0L;
+    private ScheduledFuture<?> heartbeatTask;
+    private final ConcurrentMap<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+    private final AtomicBoolean watching = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+
+    @Override
+    public Collection<String> supportedSchemes() {
+        return schemes;
+    }
+
+    @Override
+    public void connect(URI nameServiceUri) {
+        if (!schemes.contains(nameServiceUri.getScheme())) {
+            throw new RuntimeException("Unsupported scheme!");
+        }
+        InetSocketAddress address = new InetSocketAddress(nameServiceUri.getHost(), nameServiceUri.getPort());
+        StubFactory stubFactory = ServiceSupport.load(StubFactory.class);
+        client = ServiceSupport.load(TransportClient.class);
+        try {
+            transport = new PooledTransport(client, address, 1, CONNECTION_TIMEOUT_MS);
+            watchTransport = new PooledTransport(client, address, 1, CONNECTION_TIMEOUT_MS);
+        } catch (InterruptedException | TimeoutException e) {
+            close();
+            throw new RuntimeException(e);
+        }
+        registry = stubFactory.createStub(transport, RegistryService.class);
+        watchRegistry = stubFactory.createStub(watchTransport, RegistryService.class);
+    }
+
+    @Override
+    public void registerService(String serviceName, URI uri) throws IOException {
+        logger.info("Register service: {}, uri: {}.", serviceName, uri);
+        try {
+            if (LEASE_TTL_MS <= 0L) {
+                registry.register(serviceName, uri.toString(), 0L);
+                return;
+            }
+            // 先在锁内登记租约，注册请求在锁外发送，不阻塞其它注册、注销和心跳
+            synchronized (leases) {
+                leases.computeIfAbsent(serviceName, key -> new LinkedHashSet<>()).add(uri.toString());
+                if (null == heartbeatTask) {
+                    heartbeatTask = heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat,
+                            HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                }
+            }
+            try {
+                registry.register(serviceName, uri.toString(), LEASE_TTL_MS);
+            } catch (RuntimeException e) {
+                // 注册失败，撤销租约，不让心跳把它注册上去
+                removeLease(serviceName, uri.toString());
+                throw e;
+            }
+        } catch (RuntimeException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void unregisterService(String serviceName, URI uri) throws IOException {
+        logger.info("Unregister service: {}, uri: {}.", serviceName, uri);
+        try {
+            removeLease(serviceName, uri.toString());
+            registry.unregister(serviceName, uri.toString());
+        } catch (RuntimeException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * 停止续约，之后发送注销请求
+     */
+    private void removeLease(String serviceName, String uri) {
+        synchronized (leases) {
+            Set<String> uris = leases.get(serviceName);
+            if (null != uris && uris.remove(uri) && uris.isEmpty()) {
+                leases.remove(serviceName);
+            }
+            leasesGeneration++;
+        }
+    }
+
+    /**
+     * 为这个实例注册的所有服务提供者续约。续约失败等下一次心跳再重试，只要在租约到期之前成功就不会被删除。
+     * 只在锁内复制要续约的服务提供者，续约请求在锁外发送，不阻塞注册和注销。
+     * 续约会把注册中心丢失的服务提供者重新注册，如果续约期间有服务提供者被注销，
+     * 续约可能在注销之后才到达注册中心，把它重新注册回来，这时在锁内找出这些服务提供者，在锁外再注销一次。
+     * 补发的注销和同一个地址的重新注册并发时，可能把刚注册的服务提供者删掉，下一次心跳会把它注册回来，
+     * 所以注册中心最多晚一个心跳间隔和本地的租约一致。
+     */
+    private void heartbeat() {
+        Map<String, List<String>> providers = new HashMap<>();
+        long generation;
+        synchronized (leases) {
+            if (leases.isEmpty()) {
+                return;
+            }
+            for (Map.Entry<String, Set<String>> entry : leases.entrySet()) {
+                providers.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+            }
+            generation = leasesGeneration;
+        }
+        try {
+            // 超过一个心跳间隔还没成功的续约，等下一次心跳，不要耽误其它实例的心跳
+            RpcContext.setTimeout(HEARTBEAT_INTERVAL_MS);
+            registry.renew(providers, LEASE_TTL_MS);
+        } catch (Throwable t) {
+            logger.warn("Renew leases failed: {}.", t.toString());
+        }
+        Map<String, List<String>> stale = new HashMap<>();
+        synchronized (leases) {
+            if (generation == leasesGeneration) {
+                return;
+            }
+            for (Map.Entry<String, List<String>> entry : providers.entrySet()) {
+                Set<String> uris = leases.getOrDefault(entry.getKey(), Collections.emptySet());
+                for (String uri : entry.getValue()) {
+                    if (!uris.contains(uri)) {
+                        stale.computeIfAbsent(entry.getKey(), key -> new ArrayList<>()).add(uri);
+                    }
+                }
+            }
+        }
+        for (Map.Entry<String, List<String>> entry : stale.entrySet()) {
+            for (String uri : entry.getValue()) {
+                try {
+                    registry.unregister(entry.getKey(), uri);
+                } catch (Throwable t) {
+                    logger.warn("Unregister service {}, uri: {} after renew failed: {}.", entry.getKey(), uri, t.toString());
+                }
+            }
+        }
+    }
+
+    @Override
+    public URI lookupService(String serviceName) throws IOException {
+        List<URI> uris = lookupServices(serviceName);
+        return uris.isEmpty() ? null : uris.get(ThreadLocalRandom.current().nextInt(uris.size()));
+    }
+
+    @Override
+    public List<URI> lookupServices(String serviceName) throws IOException {
+        try {
+            return toUris(registry.lookup(serviceName));
+        } catch (RuntimeException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * 订阅之后立即开始长轮询，已经在等待的长轮询返回之后再带上新订阅的服务，在这之前的变化由调用方的定时刷新发现
+     */
+    @Override
+    public boolean subscribe(String serviceName, Consumer<List<URI>> listener) {
+        subscriptions.computeIfAbsent(serviceName, key -> new Subscription()).listeners.add(listener);
+        if (watching.compareAndSet(false, true)) {
+            watch();
+        }
+        return true;
+    }
+
+    private void watch() {
+        if (closed) {
+            return;
+        }
+        Map<String, Long> versions = new HashMap<>();
+        for (Map.Entry<String, Subscription> entry : subscriptions.entrySet()) {
+            versions.put(entry.getKey(), entry.getValue().version);
+        }
+        CompletableFuture<Map<String, ServiceProviders>> future;
+        try {
+            // 客户端的超时比注册中心的最长等待时间多一个重试间隔，正常情况下总是注册中心先返回
+            RpcContext.setTimeout(WATCH_TIMEOUT_MS + WATCH_RETRY_DELAY_MS);
+            future = watchRegistry.watch(versions, WATCH_TIMEOUT_MS);
+        } catch (Throwable t) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(t);
+        }
+        future.whenCompleteAsync((changes, throwable) -> {
+            if (null == throwable) {
+                notify(changes);
+                watch();
+            } else {
+                if (!closed) {
+                    logger.warn("Watch name service failed, retry in {}ms: {}.", WATCH_RETRY_DELAY_MS, throwable.toString());
+                }
+                heartbeatExecutor.schedule(this::watch, WATCH_RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }, notifyExecutor);
+    }
+
+    private void notify(Map<String, ServiceProviders> changes) {
+        for (Map.Entry<String, ServiceProviders> entry : changes.entrySet()) {
+            Subscription subscription = subscriptions.get(entry.getKey());
+            if (null == subscription || subscription.version == entry.getValue().getVersion()) {
+                continue;
+            }
+            subscription.version = entry.getValue().getVersion();
+            List<URI> uris = toUris(entry.getValue().getUris());
+            for (Consumer<List<URI>> listener : subscription.listeners) {
+                try {
+                    listener.accept(uris);
+                } catch (Throwable t) {
+                    logger.warn("Notify listener of service {} failed: ", entry.getKey(), t);
+                }
+            }
+        }
+    }
+
+    private static List<URI> toUris(List<String> uris) {
+        if (null == uris || uris.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<URI> result = new ArrayList<>(uris.size());
+        for (String uri : uris) {
+            result.add(URI.create(uri));
+        }
+        return result;
+    }
+
+    /**
+     * 停止心跳和长轮询，断开和注册中心的连接。没有注销的服务提供者在租约到期之后被注册中心删除
+     */
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (leases) {
+            if (null != heartbeatTask) {
+                heartbeatTask.cancel(false);
+            }
+        }
+        if (null != watchTransport) {
+            watchTransport.close();
+        }
+        if (null != transport) {
+            transport.close();
+        }
+        if (null != client) {
+            client.close();
+        }
+    }
+
+    private static class Subscription {
+        private final List<Consumer<List<URI>>> listeners = new CopyOnWriteArrayList<>();
+        /**
+         * 只在通知线程中修改
+         */
+        private volatile long version = 0L;
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.nameservice;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * 一个服务的所有服务地址和它们的版本，{@link RegistryService#watch(java.util.Map, long)} 的返回值
+ * @author LiYue
+ * Date: 2019/10/17
+ */
+public class ServiceProviders implements Serializable {
+    private static final long serialVersionUID = 1L;
+    /**
+     * 服务提供者每次变化都会得到一个新的、更大的版本，从来没有注册过的服务版本为0
+     */
+    private long version;
+    private List<String> uris;
+
+    public ServiceProviders() {}
+
+    public ServiceProviders(long version, List<String> uris) {
+        this.version = version;
+        this.uris = uris;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public List<String> getUris() {
+        return uris;
+    }
+
+    public void setUris(List<String> uris) {
+        this.uris = uris;
+    }
+}
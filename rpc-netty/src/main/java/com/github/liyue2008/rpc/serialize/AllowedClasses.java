@@ -0,0 +1,206 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.serialize;
+
+import com.github.liyue2008.rpc.config.ConfigSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 反序列化时允许出现的类。请求和响应中的类名来自网络，不能按照类名任意加载和实例化类，
+ * 只允许下面这些类：
+ * <ul>
+ *     <li>方法签名中声明的类型，以及从它们能够到达的类型：泛型参数、数组的元素类型、POJO（包括父类）字段的类型；</li>
+ *     <li>基本类型、String、包装类型和少量只保存数据的 JDK 类（BigDecimal、Date 和常用的集合类）；</li>
+ *     <li>用 {@link #register(Class[])} 或者配置 simple.rpc.codec.allowed.classes（逗号分隔的类名）注册的类，
+ *     用于字段或者参数声明成 Object、接口或者父类，实际传递的是子类的情况。</li>
+ * </ul>
+ * 不在其中的类在查找之前就被拒绝，既不会被加载，也不会执行它的静态初始化。
+ * 元素类型被允许的数组也是允许的。
+ * @author LiYue
+ * Date: 2019/10/17
+ */
+public final class AllowedClasses {
+    private static final Logger logger = LoggerFactory.getLogger(AllowedClasses.class);
+    private final static String [] BUILTIN_CLASS_NAMES = new String[] {
+            "java.lang.Object", "java.lang.String", "java.lang.Boolean", "java.lang.Byte", "java.lang.Short",
+            "java.lang.Character", "java.lang.Integer", "java.lang.Long", "java.lang.Float", "java.lang.Double",
+            "java.lang.Number", "java.lang.Enum", "java.math.BigInteger", "java.math.BigDecimal", "java.util.Date",
+            "java.util.ArrayList", "java.util.LinkedList", "java.util.HashMap", "java.util.LinkedHashMap",
+            "java.util.TreeMap", "java.util.HashSet", "java.util.LinkedHashSet", "java.util.TreeSet",
+            "java.util.Arrays$ArrayList", "java.util.Collections$EmptyList", "java.util.Collections$EmptySet",
+            "java.util.Collections$EmptyMap", "java.util.Collections$SingletonList", "java.util.Collections$SingletonSet",
+            "java.util.Collections$SingletonMap", "java.util.Collections$UnmodifiableCollection",
+            "java.util.Collections$UnmodifiableList", "java.util.Collections$UnmodifiableRandomAccessList",
+            "java.util.Collections$UnmodifiableSet", "java.util.Collections$UnmodifiableMap"
+    };
+    private final static Map<String, Class<?>> builtinClasses = new HashMap<>();
+    private final static Map<Character, Class<?>> primitiveDescriptors = new HashMap<>();
+    private final static Map<String, Class<?>> registeredClasses = new ConcurrentHashMap<>();
+    private final static AllowedClasses BUILTIN = new AllowedClasses(Collections.emptyMap());
+
+    static {
+        Class<?> [] primitives = new Class<?>[]{boolean.class, byte.class, short.class, char.class,
+                int.class, long.class, float.class, double.class};
+        char [] descriptors = new char[]{'Z', 'B', 'S', 'C', 'I', 'J', 'F', 'D'};
+        for (int i = 0; i < primitives.length; i++) {
+            builtinClasses.put(primitives[i].getName(), primitives[i]);
+            primitiveDescriptors.put(descriptors[i], primitives[i]);
+        }
+        for (String name : BUILTIN_CLASS_NAMES) {
+            try {
+                builtinClasses.put(name, Class.forName(name, false, null));
+            } catch (ClassNotFoundException e) {
+                logger.warn("Builtin class {} not found!", name);
+            }
+        }
+        for (String name : ConfigSupport.getString("codec.allowed.classes", "").split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            try {
+                register(Class.forName(name));
+            } catch (ClassNotFoundException e) {
+                logger.warn("Allowed class {} not found!", name);
+            }
+        }
+    }
+
+    private final Map<String, Class<?>> classes;
+
+    private AllowedClasses(Map<String, Class<?>> classes) {
+        this.classes = classes;
+    }
+
+    /**
+     * 只允许内置的类和注册的类
+     */
+    public static AllowedClasses builtin() {
+        return BUILTIN;
+    }
+
+    /**
+     * 允许这些声明的类型以及从它们能够到达的类型
+     */
+    public static AllowedClasses of(Type... types) {
+        Map<String, Class<?>> classes = new HashMap<>();
+        for (Type type : types) {
+            collect(type, classes);
+        }
+        return classes.isEmpty() ? BUILTIN : new AllowedClasses(classes);
+    }
+
+    /**
+     * 注册在所有的调用中都允许的类以及从它们能够到达的类型
+     */
+    public static void register(Class<?>... classes) {
+        Map<String, Class<?>> reachable = new HashMap<>();
+        for (Class<?> clazz : classes) {
+            collect(clazz, reachable);
+        }
+        registeredClasses.putAll(reachable);
+    }
+
+    /**
+     * 按照 {@link Class#getName()} 的格式查找允许的类，基本类型和数组也可以查找
+     * @throws SerializeException 这个类不允许反序列化
+     */
+    public Class<?> resolve(String name) {
+        Class<?> clazz = lookup(name);
+        if (null == clazz && name.startsWith("[")) {
+            int dimensions = 0;
+            while (dimensions < name.length() && name.charAt(dimensions) == '[') {
+                dimensions++;
+            }
+            String component = name.substring(dimensions);
+            Class<?> componentClass = null;
+            if (component.length() > 2 && component.charAt(0) == 'L' && component.endsWith(";")) {
+                componentClass = lookup(component.substring(1, component.length() - 1));
+            } else if (component.length() == 1) {
+                componentClass = primitiveDescriptors.get(component.charAt(0));
+            }
+            if (null != componentClass && dimensions <= 255) {
+                clazz = Array.newInstance(componentClass, new int[dimensions]).getClass();
+            }
+        }
+        if (null == clazz) {
+            throw new SerializeException(String.format("Class %s is not allowed!", name));
+        }
+        return clazz;
+    }
+
+    private Class<?> lookup(String name) {
+        Class<?> clazz = classes.get(name);
+        if (null == clazz) {
+            clazz = builtinClasses.get(name);
+        }
+        return null == clazz ? registeredClasses.get(name) : clazz;
+    }
+
+    private static void collect(Type type, Map<String, Class<?>> classes) {
+        if (type instanceof Class) {
+            Class<?> clazz = (Class<?>) type;
+            while (clazz.isArray()) {
+                clazz = clazz.getComponentType();
+            }
+            if (clazz.isPrimitive() || null != classes.putIfAbsent(clazz.getName(), clazz)) {
+                return;
+            }
+            if (clazz.isInterface() || clazz.isEnum() || clazz.getName().startsWith("java.") || clazz.getName().startsWith("javax.")) {
+                return;
+            }
+            // POJO：父类和所有字段的类型
+            for (Class<?> c = clazz; null != c && c != Object.class; c = c.getSuperclass()) {
+                classes.putIfAbsent(c.getName(), c);
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers())) {
+                        collect(field.getGenericType(), classes);
+                    }
+                }
+            }
+        } else if (type instanceof ParameterizedType) {
+            collect(((ParameterizedType) type).getRawType(), classes);
+            for (Type argument : ((ParameterizedType) type).getActualTypeArguments()) {
+                collect(argument, classes);
+            }
+        } else if (type instanceof GenericArrayType) {
+            collect(((GenericArrayType) type).getGenericComponentType(), classes);
+        } else if (type instanceof WildcardType) {
+            for (Type bound : ((WildcardType) type).getUpperBounds()) {
+                collect(bound, classes);
+            }
+            for (Type bound : ((WildcardType) type).getLowerBounds()) {
+                collect(bound, classes);
+            }
+        } else if (type instanceof TypeVariable) {
+            for (Type bound : ((TypeVariable<?>) type).getBounds()) {
+                collect(bound, classes);
+            }
+        }
+    }
+}
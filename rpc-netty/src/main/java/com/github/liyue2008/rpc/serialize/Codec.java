@@ -0,0 +1,73 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.serialize;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 服务方法的参数和返回值的编码，所有的编码实现类都实现这个接口，通过 SPI 加载。
+ * 每个服务可以用 {@link com.github.liyue2008.rpc.RpcCodec} 选择自己的编码，
+ * 请求中带着编码的类型，服务端只接受服务自己选择的编码，用同样的编码解析参数和序列化返回值。
+ * 读取的时候只允许 {@link AllowedClasses} 中的类，数据中出现其它的类名时抛出 {@link SerializeException}。
+ * @author LiYue
+ * Date: 2019/10/13
+ */
+public interface Codec {
+    /**
+     * 用一个字节标识编码，写入到请求中，每种编码应该具有不同的类型值
+     */
+    byte type();
+
+    /**
+     * 编码的名字，{@link com.github.liyue2008.rpc.RpcCodec} 中使用这个名字
+     */
+    String name();
+
+    /**
+     * 把一个值写入 ByteBuf，从 writerIndex 开始写入
+     */
+    void write(Object value, ByteBuf buffer);
+
+    /**
+     * 从 ByteBuf 中读取一个值，从 readerIndex 开始读取
+     * @param allowed 值中允许出现的类
+     */
+    Object read(ByteBuf buffer, AllowedClasses allowed);
+
+    /**
+     * 写入一次调用的所有参数。编码实现类可以覆盖这个方法，在参数之间共享状态。
+     */
+    default void writeArguments(Object[] arguments, ByteBuf buffer) {
+        buffer.writeInt(arguments.length);
+        for (Object argument : arguments) {
+            write(argument, buffer);
+        }
+    }
+
+    /**
+     * 读取一次调用的所有参数
+     * @param allowed 参数中允许出现的类
+     */
+    default Object[] readArguments(ByteBuf buffer, AllowedClasses allowed) {
+        int count = buffer.readInt();
+        if (count < 0 || count > buffer.readableBytes()) {
+            throw new SerializeException(String.format("Invalid argument count: %d!", count));
+        }
+        Object [] arguments = new Object[count];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = read(buffer, allowed);
+        }
+        return arguments;
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.serialize;
+
+import com.github.liyue2008.rpc.RpcCodec;
+import com.github.liyue2008.rpc.config.ConfigSupport;
+import com.github.liyue2008.rpc.spi.ServiceSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 通过 SPI 加载所有的 {@link Codec} 实现，按照类型和名字查找编码。
+ * @author LiYue
+ * Date: 2019/10/13
+ */
+public class CodecSupport {
+    private static final Logger logger = LoggerFactory.getLogger(CodecSupport.class);
+    private final static Codec [] codecsByType = new Codec[256];
+    private final static Map<String, Codec> codecsByName = new HashMap<>();
+    private final static Codec defaultCodec;
+
+    static {
+        for (Codec codec : ServiceSupport.loadAll(Codec.class)) {
+            codecsByType[codec.type() & 0xFF] = codec;
+            codecsByName.put(codec.name(), codec);
+            logger.info("Found codec, name: {}, type: {}.", codec.name(), codec.type());
+        }
+        String defaultCodecName = ConfigSupport.getString("codec", "binary");
+        defaultCodec = codecsByName.get(defaultCodecName);
+        if (null == defaultCodec) {
+            throw new SerializeException(String.format("Unknown default codec: %s!", defaultCodecName));
+        }
+    }
+
+    /**
+     * 按照类型查找编码，请求中只有编码的类型
+     */
+    public static Codec codecOf(byte type) {
+        Codec codec = codecsByType[type & 0xFF];
+        if (null == codec) {
+            throw new SerializeException(String.format("Unknown codec type: %d!", type));
+        }
+        return codec;
+    }
+
+    /**
+     * 服务接口使用的编码：{@link RpcCodec} 声明的编码，没有声明的使用默认编码
+     */
+    public static Codec codecOf(Class<?> serviceClass) {
+        RpcCodec rpcCodec = serviceClass.getAnnotation(RpcCodec.class);
+        if (null == rpcCodec) {
+            return defaultCodec;
+        }
+        Codec codec = codecsByName.get(rpcCodec.value());
+        if (null == codec) {
+            throw new SerializeException(String.format("Unknown codec %s of service %s!", rpcCodec.value(), serviceClass.getName()));
+        }
+        return codec;
+    }
+
+    public static Codec defaultCodec() {
+        return defaultCodec;
+    }
+}
@@ -14,85 +14,152 @@
 package com.github.liyue2008.rpc.serialize;
 
 import com.github.liyue2008.rpc.spi.ServiceSupport;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * @author LiYue
  * Date: 2019/9/20
  * SerializeSupport 这个支持任何对象类型序列化的通用静态类。
- * 首先我们定义两个 Map，这两个 Map 中存放着所有实现 Serializer 接口的序列化实现类。
+ * 序列化和反序列化的每次调用都要查找序列化实现，所以查找必须是无锁、几乎零开销的：
+ * 按类型查找用一个以类型字节为下标的 256 项数组，按对象类型查找用 ClassValue 缓存。
+ * 注册很少发生，加锁串行执行，注册之后让 ClassValue 缓存失效即可。
  */
 @SuppressWarnings("unchecked")
 public class SerializeSupport {
     private static final Logger logger = LoggerFactory.getLogger(SerializeSupport.class);
     /**
-     * serializerMap 中的 key 是序列化实现类对应的序列化对象的类型，
-     * 它的用途是在序列化的时候，通过被序列化的对象类型，找到对应的序列化实现类。
+     * 以序列化实现类型（一个字节，按无符号数取下标）为下标的序列化实现，
+     * 用于在反序列化的时候，从序列化的数据中读出类型，然后找到对应的序列化实现类。
      */
-    private static Map<Class<?>/*序列化对象类型*/, Serializer<?>/*序列化实现*/> serializerMap = new HashMap<>();
+    private static final AtomicReferenceArray<Serializer<?>> serializersByType = new AtomicReferenceArray<>(256);
     /**
-     * typeMap 的作用和 serializerMap 是类似的，它的 key 是序列化实现类的类型，
-     * 用于在反序列化的时候，从序列化的数据中读出对象类型，然后找到对应的序列化实现类。
+     * 已经注册的序列化对象类型和序列化实现，只在注册和缓存未命中时访问
      */
-    private static Map<Byte/*序列化实现类型*/, Class<?>/*序列化对象类型*/> typeMap = new HashMap<>();
+    private static final Map<Class<?>/*序列化对象类型*/, Serializer<?>/*序列化实现*/> serializersByClass = new ConcurrentHashMap<>();
+    /**
+     * 序列化的时候，通过被序列化的对象类型找到对应的序列化实现类。
+     * 没有注册的类型缓存的是null，BinaryCodec 对每个对象都会先来这里查一次。
+     */
+    private static final ClassValue<Serializer<?>> serializerCache = new ClassValue<Serializer<?>>() {
+        @Override
+        protected Serializer<?> computeValue(Class<?> type) {
+            return serializersByClass.get(type);
+        }
+    };
 
     /**
-     * 所有的 Serializer 的实现类是怎么加载到 SerializeSupport 的那两个 Map 中的呢？
-     * 这里面利用了 Java 的一个 SPI 类加载机制
+     * 启动时利用 Java 的 SPI 类加载机制，注册所有 Serializer 的实现类，
+     * 运行时还可以调用 {@link #register(Serializer)} 注册新的实现。
      */
     static {
         for (Serializer serializer : ServiceSupport.loadAll(Serializer.class)) {
-            registerType(serializer.type(), serializer.getSerializeClass(), serializer);
-            logger.info("Found serializer, class: {}, type: {}.",
-                    serializer.getSerializeClass().getCanonicalName(),
-                    serializer.type());
+            register(serializer);
         }
     }
-    private static byte parseEntryType(byte[] buffer) {
-        return buffer[0];
+
+    /**
+     * 注册一个序列化实现。同一个对象类型重复注册时，新的实现替换旧的实现；
+     * 类型字节已经被其它对象类型占用时抛出 SerializeException。
+     */
+    public static synchronized <E> void register(Serializer<E> serializer) {
+        int index = serializer.type() & 0xFF;
+        Class<E> eClass = serializer.getSerializeClass();
+        Serializer<?> occupied = serializersByType.get(index);
+        if (null != occupied && occupied.getSerializeClass() != eClass) {
+            throw new SerializeException(String.format("Serializer type %d of %s is already used by %s!",
+                    serializer.type(), eClass.getCanonicalName(), occupied.getSerializeClass().getCanonicalName()));
+        }
+        Serializer<?> previous = serializersByClass.put(eClass, serializer);
+        if (null != previous && previous.type() != serializer.type()) {
+            serializersByType.set(previous.type() & 0xFF, null);
+        }
+        serializersByType.set(index, serializer);
+        // 先更新注册表，再让缓存失效，并发查找最多再用一次旧值
+        serializerCache.remove(eClass);
+        logger.info("Register serializer, class: {}, type: {}.", eClass.getCanonicalName(), serializer.type());
     }
-    private static <E> void registerType(byte type, Class<E> eClass, Serializer<E> serializer) {
-        serializerMap.put(eClass, serializer);
-        typeMap.put(type, eClass);
+
+    /**
+     * 查找对象类型对应的序列化实现，没有注册返回null
+     */
+    public static <E> Serializer<E> serializerOf(Class<?> eClass) {
+        return (Serializer<E>) serializerCache.get(eClass);
     }
-    @SuppressWarnings("unchecked")
-    private static  <E> E parse(byte [] buffer, int offset, int length, Class<E> eClass) {
-        Object entry =  serializerMap.get(eClass).parse(buffer, offset, length);
-        if (eClass.isAssignableFrom(entry.getClass())) {
-            return (E) entry;
-        } else {
-            throw new SerializeException("Type mismatch!");
-        }
+
+    /**
+     * 查找序列化实现类型对应的序列化实现，没有注册返回null
+     */
+    public static <E> Serializer<E> serializerOf(byte type) {
+        return (Serializer<E>) serializersByType.get(type & 0xFF);
     }
+
     public static  <E> E parse(byte [] buffer) {
-        return parse(buffer, 0, buffer.length);
+        return parse(Unpooled.wrappedBuffer(buffer));
     }
 
-    private static  <E> E parse(byte[] buffer, int offset, int length) {
-        byte type = parseEntryType(buffer);
-        @SuppressWarnings("unchecked")
-        Class<E> eClass = (Class<E> )typeMap.get(type);
-        if(null == eClass) {
+    /**
+     * 从 ByteBuf 中反序列化对象，读取 ByteBuf 中所有可读的数据，不复制
+     */
+    public static <E> E parse(ByteBuf buffer) {
+        byte type = buffer.readByte();
+        Serializer<?> serializer = serializerOf(type);
+        if(null == serializer) {
             throw new SerializeException(String.format("Unknown entry type: %d!", type));
+        }
+        Object entry = serializer.parse(buffer, buffer.readableBytes());
+        if (serializer.getSerializeClass().isInstance(entry)) {
+            return (E) entry;
         } else {
-            return parse(buffer, offset + 1, length - 1,eClass);
+            throw new SerializeException("Type mismatch!");
         }
+    }
 
+    /**
+     * 把对象序列化到一个新申请的 ByteBuf 中，调用方负责释放返回的 ByteBuf
+     */
+    public static <E> ByteBuf serialize(E entry, ByteBufAllocator allocator) {
+        ByteBuf buffer = allocator.buffer();
+        try {
+            serialize(entry, buffer);
+            return buffer;
+        } catch (RuntimeException e) {
+            buffer.release();
+            throw e;
+        }
     }
 
-    public static <E> byte [] serialize(E  entry) {
-        @SuppressWarnings("unchecked")
-        Serializer<E> serializer = (Serializer<E>) serializerMap.get(entry.getClass());
+    /**
+     * 把对象序列化到给定的 ByteBuf 中，从 writerIndex 开始写入
+     */
+    public static <E> void serialize(E entry, ByteBuf buffer) {
+        Serializer<E> serializer = serializerOf(entry.getClass());
         if(serializer == null) {
             throw new SerializeException(String.format("Unknown entry class type: %s", entry.getClass().toString()));
         }
-        byte [] bytes = new byte [serializer.size(entry) + 1];
-        bytes[0] = serializer.type();
-        serializer.serialize(entry, bytes, 1, bytes.length - 1);
-        return bytes;
+        buffer.writeByte(serializer.type());
+        serializer.serialize(entry, buffer);
+    }
+
+    /**
+     * 把对象序列化成字节数组：先一次写入池化的缓冲区，再复制出来
+     */
+    public static <E> byte [] serialize(E  entry) {
+        ByteBuf buffer = PooledByteBufAllocator.DEFAULT.heapBuffer();
+        try {
+            serialize(entry, buffer);
+            return ByteBufUtil.getBytes(buffer);
+        } finally {
+            buffer.release();
+        }
     }
 }
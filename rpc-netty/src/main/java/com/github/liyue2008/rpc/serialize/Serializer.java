@@ -1,4 +1,6 @@
 package com.github.liyue2008.rpc.serialize;
+
+import io.netty.buffer.ByteBuf;
 /**
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,29 +21,20 @@ package com.github.liyue2008.rpc.serialize;
  */
 public interface Serializer<T> {
     /**
-     * 计算对象序列化后的长度，主要用于申请存放序列化数据的字节数组
-     * @param entry 待序列化的对象
-     * @return 对象序列化后的长度
-     */
-    int size(T entry);
-
-    /**
-     * 序列化对象。将给定的对象序列化成字节数组
+     * 序列化对象，把对象写入 ByteBuf，从 writerIndex 开始写入。
+     * ByteBuf 会按需自动扩容，不需要事先计算对象序列化后的长度，每个字段只编码一次，一次写完。
      * @param entry 待序列化的对象
-     * @param bytes 存放序列化数据的字节数组
-     * @param offset 数组的偏移量，从这个位置开始写入序列化数据
-     * @param length 对象序列化后的长度，也就是{@link Serializer#size(java.lang.Object)}方法的返回值。
+     * @param buffer 存放序列化数据的 ByteBuf
      */
-    void serialize(T entry, byte[] bytes, int offset, int length);
+    void serialize(T entry, ByteBuf buffer);
 
     /**
-     * 反序列化对象
-     * @param bytes 存放序列化数据的字节数组
-     * @param offset 数组的偏移量，从这个位置开始写入序列化数据
+     * 反序列化对象，从 readerIndex 开始读取 length 个字节
+     * @param buffer 存放序列化数据的 ByteBuf
      * @param length 对象序列化后的长度
      * @return 反序列化之后生成的对象
      */
-    T parse(byte[] bytes, int offset, int length);
+    T parse(ByteBuf buffer, int length);
 
     /**
      * 用一个字节标识对象类型，每种类型的数据应该具有不同的类型值
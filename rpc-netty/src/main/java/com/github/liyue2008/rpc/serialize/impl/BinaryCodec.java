@@ -0,0 +1,761 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.serialize.impl;
+
+import com.github.liyue2008.rpc.config.ConfigSupport;
+import com.github.liyue2008.rpc.serialize.AllowedClasses;
+import com.github.liyue2008.rpc.serialize.Codec;
+import com.github.liyue2008.rpc.serialize.SerializeException;
+import com.github.liyue2008.rpc.serialize.SerializeSupport;
+import com.github.liyue2008.rpc.serialize.Serializer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 默认的二进制编码，每个值前面用一个字节的标签标明它的类型，反序列化的时候不需要知道方法签名。
+ * <ul>
+ *     <li>int、long 和所有长度使用 zigzag 变长编码，小的数字只占一两个字节；</li>
+ *     <li>基本类型的数组、POJO 中基本类型的字段不写标签，也不装箱；</li>
+ *     <li>String、byte[]、数组、List、Set、Map 和枚举有各自的格式，集合的元素递归编码；</li>
+ *     <li>同一次调用中重复出现的类只在第一次写类名，之后只写一个引用编号；</li>
+ *     <li>POJO 按照 {@link Schema} 编码：每个类的 Schema 只在第一次用到的时候生成一次，
+ *     字段按照名字排序，读写字段使用类型化的 MethodHandle，不需要每个字段都反射。
+ *     POJO 需要有无参构造方法，不支持循环引用；</li>
+ *     <li>{@link SerializeSupport} 中注册了 {@link Serializer} 的类型使用注册的序列化实现；
+ *     其它的 JDK 中的类（例如 BigDecimal、Date）和没有无参构造方法的类不支持，需要注册 Serializer 或者使用 {@link JavaCodec}。</li>
+ * </ul>
+ * 读取的时候类名只在 {@link AllowedClasses} 中查找，所有的长度和元素个数在分配内存之前都先和剩余的字节数比较，
+ * 嵌套的层数不能超过 simple.rpc.codec.max.depth（默认512），数据不合法时抛出 {@link SerializeException}。
+ * @author LiYue
+ * Date: 2019/10/13
+ */
+public class BinaryCodec implements Codec {
+    private final static byte TAG_NULL = 0;
+    private final static byte TAG_TRUE = 1;
+    private final static byte TAG_FALSE = 2;
+    private final static byte TAG_BYTE = 3;
+    private final static byte TAG_SHORT = 4;
+    private final static byte TAG_CHAR = 5;
+    private final static byte TAG_INT = 6;
+    private final static byte TAG_LONG = 7;
+    private final static byte TAG_FLOAT = 8;
+    private final static byte TAG_DOUBLE = 9;
+    private final static byte TAG_STRING = 10;
+    private final static byte TAG_BYTES = 11;
+    private final static byte TAG_ARRAY = 12;
+    private final static byte TAG_LIST = 13;
+    private final static byte TAG_SET = 14;
+    private final static byte TAG_MAP = 15;
+    private final static byte TAG_ENUM = 16;
+    private final static byte TAG_OBJECT = 17;
+    private final static byte TAG_REGISTERED = 18;
+    /**
+     * 读取时最多嵌套的层数，嵌套的层数来自网络，不限制的话一个很小的请求就能让递归读取栈溢出
+     */
+    private final static int MAX_DEPTH = ConfigSupport.getInt("codec.max.depth", 512);
+
+    private final static ClassValue<Schema> schemas = new ClassValue<Schema>() {
+        @Override
+        protected Schema computeValue(Class<?> type) {
+            return Schema.of(type);
+        }
+    };
+
+    @Override
+    public byte type() {
+        return Types.CODEC_BINARY;
+    }
+
+    @Override
+    public String name() {
+        return "binary";
+    }
+
+    @Override
+    public void write(Object value, ByteBuf buffer) {
+        new Writer(buffer).writeValue(value);
+    }
+
+    @Override
+    public Object read(ByteBuf buffer, AllowedClasses allowed) {
+        return new Reader(buffer, allowed).readValue();
+    }
+
+    @Override
+    public void writeArguments(Object[] arguments, ByteBuf buffer) {
+        // 所有参数共享一个类引用表
+        Writer writer = new Writer(buffer);
+        writeVarInt(buffer, arguments.length);
+        for (Object argument : arguments) {
+            writer.writeValue(argument);
+        }
+    }
+
+    @Override
+    public Object[] readArguments(ByteBuf buffer, AllowedClasses allowed) {
+        Reader reader = new Reader(buffer, allowed);
+        Object [] arguments = new Object[reader.readLength(1)];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = reader.readValue();
+        }
+        return arguments;
+    }
+
+    private static class Writer {
+        private final ByteBuf buffer;
+        private Map<Class<?>, Integer> classRefs = null;
+
+        private Writer(ByteBuf buffer) {
+            this.buffer = buffer;
+        }
+
+        private void writeValue(Object value) {
+            if (null == value) {
+                buffer.writeByte(TAG_NULL);
+            } else if (value instanceof String) {
+                buffer.writeByte(TAG_STRING);
+                writeString(buffer, (String) value);
+            } else if (value instanceof Integer) {
+                buffer.writeByte(TAG_INT);
+                writeVarInt(buffer, zigzag((Integer) value));
+            } else if (value instanceof Long) {
+                buffer.writeByte(TAG_LONG);
+                writeVarLong(buffer, zigzag((Long) value));
+            } else if (value instanceof Boolean) {
+                buffer.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+            } else if (value instanceof Double) {
+                buffer.writeByte(TAG_DOUBLE).writeDouble((Double) value);
+            } else if (value instanceof Float) {
+                buffer.writeByte(TAG_FLOAT).writeFloat((Float) value);
+            } else if (value instanceof Short) {
+                buffer.writeByte(TAG_SHORT);
+                writeVarInt(buffer, zigzag((Short) value));
+            } else if (value instanceof Byte) {
+                buffer.writeByte(TAG_BYTE).writeByte((Byte) value);
+            } else if (value instanceof Character) {
+                buffer.writeByte(TAG_CHAR);
+                writeVarInt(buffer, (Character) value);
+            } else if (value instanceof byte[]) {
+                byte [] bytes = (byte[]) value;
+                buffer.writeByte(TAG_BYTES);
+                writeVarInt(buffer, bytes.length);
+                buffer.writeBytes(bytes);
+            } else if (value.getClass().isArray()) {
+                writeArray(value);
+            } else if (value instanceof Set) {
+                buffer.writeByte(TAG_SET);
+                writeElements((Collection<?>) value);
+            } else if (value instanceof Collection) {
+                buffer.writeByte(TAG_LIST);
+                writeElements((Collection<?>) value);
+            } else if (value instanceof Map) {
+                writeMap((Map<?, ?>) value);
+            } else if (value instanceof Enum) {
+                buffer.writeByte(TAG_ENUM);
+                writeClass(((Enum<?>) value).getDeclaringClass());
+                writeVarInt(buffer, ((Enum<?>) value).ordinal());
+            } else {
+                writeObject(value);
+            }
+        }
+
+        /**
+         * 第一次出现的类写入 0 和类名，之后写入 引用编号 + 1
+         */
+        private void writeClass(Class<?> clazz) {
+            if (null == classRefs) {
+                classRefs = new IdentityHashMap<>();
+            }
+            Integer ref = classRefs.get(clazz);
+            if (null == ref) {
+                writeVarInt(buffer, 0);
+                writeString(buffer, clazz.getName());
+                classRefs.put(clazz, classRefs.size());
+            } else {
+                writeVarInt(buffer, ref + 1);
+            }
+        }
+
+        private void writeArray(Object array) {
+            Class<?> componentType = array.getClass().getComponentType();
+            buffer.writeByte(TAG_ARRAY);
+            writeClass(componentType);
+            int length = Array.getLength(array);
+            writeVarInt(buffer, length);
+            if (componentType == int.class) {
+                for (int v : (int[]) array) {
+                    writeVarInt(buffer, zigzag(v));
+                }
+            } else if (componentType == long.class) {
+                for (long v : (long[]) array) {
+                    writeVarLong(buffer, zigzag(v));
+                }
+            } else if (componentType == double.class) {
+                for (double v : (double[]) array) {
+                    buffer.writeDouble(v);
+                }
+            } else if (componentType == float.class) {
+                for (float v : (float[]) array) {
+                    buffer.writeFloat(v);
+                }
+            } else if (componentType == boolean.class) {
+                for (boolean v : (boolean[]) array) {
+                    buffer.writeBoolean(v);
+                }
+            } else if (componentType == short.class) {
+                for (short v : (short[]) array) {
+                    writeVarInt(buffer, zigzag(v));
+                }
+            } else if (componentType == char.class) {
+                for (char v : (char[]) array) {
+                    writeVarInt(buffer, v);
+                }
+            } else {
+                for (Object v : (Object[]) array) {
+                    writeValue(v);
+                }
+            }
+        }
+
+        private void writeElements(Collection<?> collection) {
+            writeVarInt(buffer, collection.size());
+            for (Object element : collection) {
+                writeValue(element);
+            }
+        }
+
+        private void writeMap(Map<?, ?> map) {
+            buffer.writeByte(TAG_MAP);
+            writeVarInt(buffer, map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(entry.getKey());
+                writeValue(entry.getValue());
+            }
+        }
+
+        private void writeObject(Object value) {
+            Class<?> clazz = value.getClass();
+            Serializer<Object> serializer = SerializeSupport.serializerOf(clazz);
+            if (null != serializer) {
+                // 注册过的类型：类型 + 长度 + 数据，长度在写完数据之后回填
+                buffer.writeByte(TAG_REGISTERED).writeByte(serializer.type());
+                int lengthIndex = buffer.writerIndex();
+                buffer.writeInt(0);
+                serializer.serialize(value, buffer);
+                buffer.setInt(lengthIndex, buffer.writerIndex() - lengthIndex - Integer.BYTES);
+                return;
+            }
+            Schema schema = schemas.get(clazz);
+            if (Schema.NONE != schema) {
+                buffer.writeByte(TAG_OBJECT);
+                writeClass(clazz);
+                schema.write(this, value);
+            } else {
+                throw new SerializeException(String.format("Unsupported value type: %s!", clazz.getName()));
+            }
+        }
+    }
+
+    private static class Reader {
+        private final ByteBuf buffer;
+        private final AllowedClasses allowed;
+        private List<Class<?>> classRefs = null;
+        /**
+         * 当前正在读取的值嵌套的层数
+         */
+        private int depth = 0;
+
+        private Reader(ByteBuf buffer, AllowedClasses allowed) {
+            this.buffer = buffer;
+            this.allowed = allowed;
+        }
+
+        private Object readValue() {
+            if (++depth > MAX_DEPTH) {
+                throw new SerializeException(String.format("Nesting depth exceeds %d!", MAX_DEPTH));
+            }
+            try {
+                return readTaggedValue();
+            } finally {
+                depth--;
+            }
+        }
+
+        private Object readTaggedValue() {
+            byte tag = buffer.readByte();
+            switch (tag) {
+                case TAG_NULL:
+                    return null;
+                case TAG_TRUE:
+                    return Boolean.TRUE;
+                case TAG_FALSE:
+                    return Boolean.FALSE;
+                case TAG_BYTE:
+                    return buffer.readByte();
+                case TAG_SHORT:
+                    return (short) unzigzag(readVarInt(buffer));
+                case TAG_CHAR:
+                    return (char) readVarInt(buffer);
+                case TAG_INT:
+                    return unzigzag(readVarInt(buffer));
+                case TAG_LONG:
+                    return unzigzag(readVarLong(buffer));
+                case TAG_FLOAT:
+                    return buffer.readFloat();
+                case TAG_DOUBLE:
+                    return buffer.readDouble();
+                case TAG_STRING:
+                    return readString(buffer);
+                case TAG_BYTES:
+                    byte [] bytes = new byte[readLength(1)];
+                    buffer.readBytes(bytes);
+                    return bytes;
+                case TAG_ARRAY:
+                    return readArray();
+                case TAG_LIST:
+                    int listSize = readLength(1);
+                    return readElements(listSize, new ArrayList<>(listSize));
+                case TAG_SET:
+                    int setSize = readLength(1);
+                    return readElements(setSize, new LinkedHashSet<>(capacityOf(setSize)));
+                case TAG_MAP:
+                    return readMap();
+                case TAG_ENUM:
+                    return readEnum();
+                case TAG_OBJECT:
+                    return schemas.get(readClass()).read(this);
+                case TAG_REGISTERED:
+                    return readRegistered();
+                default:
+                    throw new SerializeException(String.format("Unknown value tag: %d!", tag));
+            }
+        }
+
+        private Class<?> readClass() {
+            if (null == classRefs) {
+                classRefs = new ArrayList<>();
+            }
+            int ref = readVarInt(buffer);
+            if (ref == 0) {
+                Class<?> clazz = allowed.resolve(readString(buffer));
+                classRefs.add(clazz);
+                return clazz;
+            }
+            if (ref < 0 || ref > classRefs.size()) {
+                throw new SerializeException(String.format("Invalid class reference: %d!", ref));
+            }
+            return classRefs.get(ref - 1);
+        }
+
+        /**
+         * 读取一个长度或者元素个数
+         * @param minBytes 每个元素至少占用的字节数
+         */
+        private int readLength(int minBytes) {
+            return checkLength(buffer, readVarInt(buffer), minBytes);
+        }
+
+        private Object readEnum() {
+            Class<?> clazz = readClass();
+            if (!clazz.isEnum()) {
+                throw new SerializeException(String.format("%s is not an enum!", clazz.getName()));
+            }
+            Object [] constants = clazz.getEnumConstants();
+            int ordinal = readVarInt(buffer);
+            if (ordinal < 0 || ordinal >= constants.length) {
+                throw new SerializeException(String.format("Invalid ordinal %d of enum %s!", ordinal, clazz.getName()));
+            }
+            return constants[ordinal];
+        }
+
+        private Object readArray() {
+            Class<?> componentType = readClass();
+            int length = readLength(componentType == double.class ? Double.BYTES :
+                    componentType == float.class ? Float.BYTES : 1);
+            if (componentType == int.class) {
+                int [] array = new int[length];
+                for (int i = 0; i < length; i++) {
+                    array[i] = unzigzag(readVarInt(buffer));
+                }
+                return array;
+            } else if (componentType == long.class) {
+                long [] array = new long[length];
+                for (int i = 0; i < length; i++) {
+                    array[i] = unzigzag(readVarLong(buffer));
+                }
+                return array;
+            } else if (componentType == double.class) {
+                double [] array = new double[length];
+                for (int i = 0; i < length; i++) {
+                    array[i] = buffer.readDouble();
+                }
+                return array;
+            } else if (componentType == float.class) {
+                float [] array = new float[length];
+                for (int i = 0; i < length; i++) {
+                    array[i] = buffer.readFloat();
+                }
+                return array;
+            } else if (componentType == boolean.class) {
+                boolean [] array = new boolean[length];
+                for (int i = 0; i < length; i++) {
+                    array[i] = buffer.readBoolean();
+                }
+                return array;
+            } else if (componentType == short.class) {
+                short [] array = new short[length];
+                for (int i = 0; i < length; i++) {
+                    array[i] = (short) unzigzag(readVarInt(buffer));
+                }
+                return array;
+            } else if (componentType == char.class) {
+                char [] array = new char[length];
+                for (int i = 0; i < length; i++) {
+                    array[i] = (char) readVarInt(buffer);
+                }
+                return array;
+            } else {
+                Object [] array = (Object[]) Array.newInstance(componentType, length);
+                for (int i = 0; i < length; i++) {
+                    array[i] = readValue();
+                }
+                return array;
+            }
+        }
+
+        private Collection<Object> readElements(int size, Collection<Object> collection) {
+            for (int i = 0; i < size; i++) {
+                collection.add(readValue());
+            }
+            return collection;
+        }
+
+        private Map<Object, Object> readMap() {
+            int size = readLength(2);
+            Map<Object, Object> map = new LinkedHashMap<>(capacityOf(size));
+            for (int i = 0; i < size; i++) {
+                map.put(readValue(), readValue());
+            }
+            return map;
+        }
+
+        private Object readRegistered() {
+            byte type = buffer.readByte();
+            Serializer<Object> serializer = SerializeSupport.serializerOf(type);
+            if (null == serializer) {
+                throw new SerializeException(String.format("Unknown entry type: %d!", type));
+            }
+            return serializer.parse(buffer, checkLength(buffer, buffer.readInt(), 1));
+        }
+    }
+
+    /**
+     * 一个 POJO 类的编码方式：无参构造方法和按照名字排序的所有字段（不包括 static 和 transient 字段）。
+     */
+    private static class Schema {
+        private final static Schema NONE = new Schema(null, new FieldCodec[0]);
+        private final static MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+        private final MethodHandle constructor;
+        private final FieldCodec [] fields;
+
+        private Schema(MethodHandle constructor, FieldCodec[] fields) {
+            this.constructor = constructor;
+            this.fields = fields;
+        }
+
+        /**
+         * 不能按照 POJO 编码的类返回 {@link #NONE}：接口、抽象类、JDK 中的类和没有无参构造方法的类
+         */
+        private static Schema of(Class<?> clazz) {
+            if (clazz.isInterface() || Modifier.isAbstract(clazz.getModifiers()) ||
+                    clazz.getName().startsWith("java.") || clazz.getName().startsWith("javax.")) {
+                return NONE;
+            }
+            try {
+                Constructor<?> constructor = clazz.getDeclaredConstructor();
+                constructor.setAccessible(true);
+                List<Field> fields = new ArrayList<>();
+                for (Class<?> c = clazz; c != Object.class; c = c.getSuperclass()) {
+                    for (Field field : c.getDeclaredFields()) {
+                        if (!Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers())) {
+                            fields.add(field);
+                        }
+                    }
+                }
+                fields.sort(Comparator.comparing(Field::getName).thenComparing(f -> f.getDeclaringClass().getName()));
+                FieldCodec [] fieldCodecs = new FieldCodec[fields.size()];
+                for (int i = 0; i < fieldCodecs.length; i++) {
+                    fieldCodecs[i] = FieldCodec.of(fields.get(i));
+                }
+                return new Schema(MethodHandles.lookup().unreflectConstructor(constructor).asType(CONSTRUCTOR_TYPE), fieldCodecs);
+            } catch (NoSuchMethodException | IllegalAccessException | RuntimeException e) {
+                return NONE;
+            }
+        }
+
+        private void write(Writer writer, Object value) {
+            try {
+                for (FieldCodec field : fields) {
+                    field.write(writer, value);
+                }
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new SerializeException(t);
+            }
+        }
+
+        private Object read(Reader reader) {
+            if (this == NONE) {
+                throw new SerializeException("Can not create object without schema!");
+            }
+            try {
+                Object value = (Object) constructor.invokeExact();
+                for (FieldCodec field : fields) {
+                    field.read(reader, value);
+                }
+                return value;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new SerializeException(t);
+            }
+        }
+    }
+
+    /**
+     * 一个字段的读写。基本类型的字段使用类型化的 MethodHandle，读写的时候不装箱，也不写标签。
+     */
+    private static abstract class FieldCodec {
+        private final static MethodHandle FIELD_SET;
+
+        static {
+            try {
+                FIELD_SET = MethodHandles.lookup().findVirtual(Field.class, "set",
+                        MethodType.methodType(void.class, Object.class, Object.class));
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        final MethodHandle getter;
+        final MethodHandle setter;
+
+        FieldCodec(Field field) throws IllegalAccessException {
+            Class<?> type = field.getType().isPrimitive() ? field.getType() : Object.class;
+            field.setAccessible(true);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            this.getter = lookup.unreflectGetter(field).asType(MethodType.methodType(type, Object.class));
+            MethodHandle setter;
+            if (Modifier.isFinal(field.getModifiers())) {
+                // final 字段不能直接生成 setter，通过 Field.set 赋值
+                setter = FIELD_SET.bindTo(field);
+            } else {
+                setter = lookup.unreflectSetter(field);
+            }
+            this.setter = setter.asType(MethodType.methodType(void.class, Object.class, type));
+        }
+
+        abstract void write(Writer writer, Object value) throws Throwable;
+
+        abstract void read(Reader reader, Object value) throws Throwable;
+
+        static FieldCodec of(Field field) throws IllegalAccessException {
+            Class<?> type = field.getType();
+            if (type == int.class) {
+                return new FieldCodec(field) {
+                    void write(Writer writer, Object value) throws Throwable {
+                        writeVarInt(writer.buffer, zigzag((int) getter.invokeExact(value)));
+                    }
+                    void read(Reader reader, Object value) throws Throwable {
+                        setter.invokeExact(value, unzigzag(readVarInt(reader.buffer)));
+                    }
+                };
+            } else if (type == long.class) {
+                return new FieldCodec(field) {
+                    void write(Writer writer, Object value) throws Throwable {
+                        writeVarLong(writer.buffer, zigzag((long) getter.invokeExact(value)));
+                    }
+                    void read(Reader reader, Object value) throws Throwable {
+                        setter.invokeExact(value, unzigzag(readVarLong(reader.buffer)));
+                    }
+                };
+            } else if (type == boolean.class) {
+                return new FieldCodec(field) {
+                    void write(Writer writer, Object value) throws Throwable {
+                        writer.buffer.writeBoolean((boolean) getter.invokeExact(value));
+                    }
+                    void read(Reader reader, Object value) throws Throwable {
+                        setter.invokeExact(value, reader.buffer.readBoolean());
+                    }
+                };
+            } else if (type == double.class) {
+                return new FieldCodec(field) {
+                    void write(Writer writer, Object value) throws Throwable {
+                        writer.buffer.writeDouble((double) getter.invokeExact(value));
+                    }
+                    void read(Reader reader, Object value) throws Throwable {
+                        setter.invokeExact(value, reader.buffer.readDouble());
+                    }
+                };
+            } else if (type == float.class) {
+                return new FieldCodec(field) {
+                    void write(Writer writer, Object value) throws Throwable {
+                        writer.buffer.writeFloat((float) getter.invokeExact(value));
+                    }
+                    void read(Reader reader, Object value) throws Throwable {
+                        setter.invokeExact(value, reader.buffer.readFloat());
+                    }
+                };
+            } else if (type == byte.class) {
+                return new FieldCodec(field) {
+                    void write(Writer writer, Object value) throws Throwable {
+                        writer.buffer.writeByte((byte) getter.invokeExact(value));
+                    }
+                    void read(Reader reader, Object value) throws Throwable {
+                        setter.invokeExact(value, reader.buffer.readByte());
+                    }
+                };
+            } else if (type == short.class) {
+                return new FieldCodec(field) {
+                    void write(Writer writer, Object value) throws Throwable {
+                        writeVarInt(writer.buffer, zigzag((short) getter.invokeExact(value)));
+                    }
+                    void read(Reader reader, Object value) throws Throwable {
+                        setter.invokeExact(value, (short) unzigzag(readVarInt(reader.buffer)));
+                    }
+                };
+            } else if (type == char.class) {
+                return new FieldCodec(field) {
+                    void write(Writer writer, Object value) throws Throwable {
+                        writeVarInt(writer.buffer, (char) getter.invokeExact(value));
+                    }
+                    void read(Reader reader, Object value) throws Throwable {
+                        setter.invokeExact(value, (char) readVarInt(reader.buffer));
+                    }
+                };
+            } else {
+                return new FieldCodec(field) {
+                    void write(Writer writer, Object value) throws Throwable {
+                        writer.writeValue((Object) getter.invokeExact(value));
+                    }
+                    void read(Reader reader, Object value) throws Throwable {
+                        setter.invokeExact(value, reader.readValue());
+                    }
+                };
+            }
+        }
+    }
+
+    /**
+     * 长度和元素个数来自网络，在分配内存之前先检查剩余的数据是否足够
+     * @param minBytes 每个元素至少占用的字节数
+     */
+    private static int checkLength(ByteBuf buffer, int length, int minBytes) {
+        if (length < 0 || (long) length * minBytes > buffer.readableBytes()) {
+            throw new SerializeException(String.format("Invalid length %d, only %d bytes left!", length, buffer.readableBytes()));
+        }
+        return length;
+    }
+
+    private static int capacityOf(int size) {
+        return size < 3 ? size + 1 : (int) (size / 0.75F + 1.0F);
+    }
+
+    private static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    private static int unzigzag(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private static long unzigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    static void writeVarInt(ByteBuf buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer.writeByte(value);
+    }
+
+    static int readVarInt(ByteBuf buffer) {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.readByte();
+            result |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new SerializeException("Malformed varint!");
+    }
+
+    private static void writeVarLong(ByteBuf buffer, long value) {
+        while ((value & ~0x7FL) != 0L) {
+            buffer.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.writeByte((int) value);
+    }
+
+    private static long readVarLong(ByteBuf buffer) {
+        long result = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.readByte();
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new SerializeException("Malformed varlong!");
+    }
+
+    /**
+     * 字符串：UTF-8 编码之后的长度（变长编码）+ UTF-8 编码，先算出长度再一次写入，不需要临时的字节数组
+     */
+    static void writeString(ByteBuf buffer, String value) {
+        writeVarInt(buffer, ByteBufUtil.utf8Bytes(value));
+        buffer.writeCharSequence(value, StandardCharsets.UTF_8);
+    }
+
+    static String readString(ByteBuf buffer) {
+        return buffer.readCharSequence(checkLength(buffer, readVarInt(buffer), 1), StandardCharsets.UTF_8).toString();
+    }
+}
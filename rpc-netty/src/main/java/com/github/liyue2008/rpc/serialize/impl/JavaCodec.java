@@ -0,0 +1,111 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.serialize.impl;
+
+import com.github.liyue2008.rpc.serialize.AllowedClasses;
+import com.github.liyue2008.rpc.serialize.Codec;
+import com.github.liyue2008.rpc.serialize.SerializeException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+
+/**
+ * 使用 Java 序列化的编码，参数和返回值需要实现 {@link java.io.Serializable}。
+ * 支持循环引用和自定义的 writeObject/readObject，但是比 {@link BinaryCodec} 慢，数据也大得多。
+ * 每个值的格式：长度（4个字节）+ Java 序列化的数据。
+ * 只有用 {@link com.github.liyue2008.rpc.RpcCodec} 声明使用这个编码的服务才会使用它，
+ * 反序列化的时候只允许 {@link AllowedClasses} 中的类，不允许动态代理类。
+ * @author LiYue
+ * Date: 2019/10/13
+ */
+public class JavaCodec implements Codec {
+    @Override
+    public byte type() {
+        return Types.CODEC_JAVA;
+    }
+
+    @Override
+    public String name() {
+        return "java";
+    }
+
+    @Override
+    public void write(Object value, ByteBuf buffer) {
+        writeSerializable(value, buffer);
+    }
+
+    @Override
+    public Object read(ByteBuf buffer, AllowedClasses allowed) {
+        return readSerializable(buffer, allowed);
+    }
+
+    /**
+     * 长度在写完数据之后回填
+     */
+    private static void writeSerializable(Object value, ByteBuf buffer) {
+        int lengthIndex = buffer.writerIndex();
+        buffer.writeInt(0);
+        try (ObjectOutputStream out = new ObjectOutputStream(new ByteBufOutputStream(buffer))) {
+            out.writeObject(value);
+        } catch (IOException e) {
+            throw new SerializeException(e);
+        }
+        buffer.setInt(lengthIndex, buffer.writerIndex() - lengthIndex - Integer.BYTES);
+    }
+
+    private static Object readSerializable(ByteBuf buffer, AllowedClasses allowed) {
+        int length = buffer.readInt();
+        if (length < 0 || length > buffer.readableBytes()) {
+            throw new SerializeException(String.format("Invalid length %d, only %d bytes left!", length, buffer.readableBytes()));
+        }
+        try (ObjectInputStream in = new AllowedObjectInputStream(new ByteBufInputStream(buffer.readSlice(length)), allowed)) {
+            return in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new SerializeException(e);
+        }
+    }
+
+    /**
+     * 只解析允许的类，在加载类之前检查类名
+     */
+    private static class AllowedObjectInputStream extends ObjectInputStream {
+        private final AllowedClasses allowed;
+
+        private AllowedObjectInputStream(InputStream in, AllowedClasses allowed) throws IOException {
+            super(in);
+            this.allowed = allowed;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException {
+            try {
+                return allowed.resolve(desc.getName());
+            } catch (SerializeException e) {
+                throw new InvalidClassException(desc.getName(), e.getMessage());
+            }
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+            throw new InvalidClassException("Proxy classes are not allowed!");
+        }
+    }
+}
@@ -15,13 +15,12 @@ package com.github.liyue2008.rpc.serialize.impl;
 
 import com.github.liyue2008.rpc.nameservice.Metadata;
 import com.github.liyue2008.rpc.serialize.Serializer;
+import io.netty.buffer.ByteBuf;
 
 import java.net.URI;
-import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Size of the map                     2 bytes
@@ -45,65 +44,39 @@ import java.util.Map;
 public class MetadataSerializer implements Serializer<Metadata> {
 
     @Override
-    public int size(Metadata entry) {
-        return Short.BYTES +                   // Size of the map                  2 bytes
-                entry.entrySet().stream()
-                        .mapToInt(this::entrySize).sum();
-    }
-
-    @Override
-    public void serialize(Metadata entry, byte[] bytes, int offset, int length) {
-
-        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
-        buffer.putShort(toShortSafely(entry.size()));
+    public void serialize(Metadata entry, ByteBuf buffer) {
+        buffer.writeShort(toShortSafely(entry.size()));
 
         entry.forEach((k,v) -> {
-            byte [] keyBytes = k.getBytes(StandardCharsets.UTF_8);
-            buffer.putShort(toShortSafely(keyBytes.length));
-            buffer.put(keyBytes);
+            writeString(k, buffer);
 
-            buffer.putShort(toShortSafely(v.size()));
+            buffer.writeShort(toShortSafely(v.size()));
             for (URI uri : v) {
-                byte [] uriBytes = uri.toASCIIString().getBytes(StandardCharsets.UTF_8);
-                buffer.putShort(toShortSafely(uriBytes.length));
-                buffer.put(uriBytes);
+                writeString(uri.toASCIIString(), buffer);
             }
-
         });
     }
 
-    private int entrySize(Map.Entry<String, List<URI>> e) {
-        // Map entry:
-        return Short.BYTES +       // Key string length:               2 bytes
-                e.getKey().getBytes().length +    // Serialized key bytes:   variable length
-                Short.BYTES + // List size:              2 bytes
-                e.getValue().stream() // Value list
-                        .mapToInt(uri -> {
-                            return Short.BYTES +       // Key string length:               2 bytes
-                                    uri.toASCIIString().getBytes(StandardCharsets.UTF_8).length;    // Serialized key bytes:   variable length
-                        }).sum();
+    /**
+     * 字符串只编码一次：先占住长度的位置，写完字符串之后再回填长度
+     */
+    private void writeString(String value, ByteBuf buffer) {
+        int lengthIndex = buffer.writerIndex();
+        buffer.writeShort(0);
+        buffer.setShort(lengthIndex, toShortSafely(buffer.writeCharSequence(value, StandardCharsets.UTF_8)));
     }
 
     @Override
-    public Metadata parse(byte[] bytes, int offset, int length) {
-        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
-
+    public Metadata parse(ByteBuf buffer, int length) {
         Metadata metadata = new Metadata();
-        int sizeOfMap = buffer.getShort();
+        int sizeOfMap = buffer.readShort();
         for (int i = 0; i < sizeOfMap; i++) {
-            int keyLength = buffer.getShort();
-            byte [] keyBytes = new byte [keyLength];
-            buffer.get(keyBytes);
-            String key = new String(keyBytes, StandardCharsets.UTF_8);
-
+            String key = buffer.readCharSequence(buffer.readShort(), StandardCharsets.UTF_8).toString();
 
-            int uriListSize = buffer.getShort();
+            int uriListSize = buffer.readShort();
             List<URI> uriList = new ArrayList<>(uriListSize);
             for (int j = 0; j < uriListSize; j++) {
-                int uriLength = buffer.getShort();
-                byte [] uriBytes = new byte [uriLength];
-                buffer.get(uriBytes);
-                URI uri  = URI.create(new String(uriBytes, StandardCharsets.UTF_8));
+                URI uri  = URI.create(buffer.readCharSequence(buffer.readShort(), StandardCharsets.UTF_8).toString());
                 uriList.add(uri);
             }
             metadata.put(key, uriList);
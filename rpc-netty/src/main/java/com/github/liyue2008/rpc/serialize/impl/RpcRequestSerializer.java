@@ -14,58 +14,52 @@
 package com.github.liyue2008.rpc.serialize.impl;
 
 import com.github.liyue2008.rpc.client.stubs.RpcRequest;
+import com.github.liyue2008.rpc.serialize.Codec;
+import com.github.liyue2008.rpc.serialize.CodecSupport;
 import com.github.liyue2008.rpc.serialize.Serializer;
+import io.netty.buffer.ByteBuf;
 
-import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 /**
+ * 序列化格式：方法ID，没有绑定方法ID的请求接着写入接口名、方法签名，
+ * 然后是编码的类型和用这个 {@link Codec} 写入的所有参数，所有参数直接写入同一个缓冲区。
+ * 解析的时候不读取参数，服务端找到服务方法之后再按照方法的参数类型读取。
  * @author LiYue
  * Date: 2019/9/27
  */
 public class RpcRequestSerializer implements Serializer<RpcRequest> {
     @Override
-    public int size(RpcRequest request) {
-        return Integer.BYTES + request.getInterfaceName().getBytes(StandardCharsets.UTF_8).length +
-                Integer.BYTES + request.getMethodName().getBytes(StandardCharsets.UTF_8).length +
-                Integer.BYTES + request.getSerializedArguments().length;
+    public void serialize(RpcRequest request, ByteBuf buffer) {
+        buffer.writeInt(request.getMethodId());
+        if (!request.isBound()) {
+            writeString(request.getInterfaceName(), buffer);
+            writeString(request.getMethodName(), buffer);
+        }
+        buffer.writeByte(request.getCodec().type());
+        request.getCodec().writeArguments(request.getArguments(), buffer);
     }
 
     @Override
-    public void serialize(RpcRequest request, byte[] bytes, int offset, int length) {
-        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
-        byte [] tmpBytes = request.getInterfaceName().getBytes(StandardCharsets.UTF_8);
-        buffer.putInt(tmpBytes.length);
-        buffer.put(tmpBytes);
-
-        tmpBytes = request.getMethodName().getBytes(StandardCharsets.UTF_8);
-        buffer.putInt(tmpBytes.length);
-        buffer.put(tmpBytes);
-
-        tmpBytes = request.getSerializedArguments();
-        buffer.putInt(tmpBytes.length);
-        buffer.put(tmpBytes);
+    public RpcRequest parse(ByteBuf buffer, int length) {
+        int methodId = buffer.readInt();
+        String interfaceName = null;
+        String methodName = null;
+        if (methodId == RpcRequest.UNBOUND_METHOD_ID) {
+            interfaceName = buffer.readCharSequence(buffer.readInt(), StandardCharsets.UTF_8).toString();
+            methodName = buffer.readCharSequence(buffer.readInt(), StandardCharsets.UTF_8).toString();
+        }
+        Codec codec = CodecSupport.codecOf(buffer.readByte());
+        return new RpcRequest(interfaceName, methodName, buffer.readSlice(buffer.readableBytes()), methodId, codec);
     }
 
-    @Override
-    public RpcRequest parse(byte[] bytes, int offset, int length) {
-        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
-        int len = buffer.getInt();
-        byte [] tmpBytes = new byte[len];
-        buffer.get(tmpBytes);
-        String interfaceName = new String(tmpBytes, StandardCharsets.UTF_8);
-
-        len = buffer.getInt();
-        tmpBytes = new byte[len];
-        buffer.get(tmpBytes);
-        String methodName = new String(tmpBytes, StandardCharsets.UTF_8);
-
-        len = buffer.getInt();
-        tmpBytes = new byte[len];
-        buffer.get(tmpBytes);
-        byte [] serializedArgs = tmpBytes;
-
-        return new RpcRequest(interfaceName, methodName, serializedArgs);
+    /**
+     * 字符串只编码一次：先占住长度的位置，写完字符串之后再回填长度
+     */
+    private void writeString(String value, ByteBuf buffer) {
+        int lengthIndex = buffer.writerIndex();
+        buffer.writeInt(0);
+        buffer.setInt(lengthIndex, buffer.writeCharSequence(value, StandardCharsets.UTF_8));
     }
 
     @Override
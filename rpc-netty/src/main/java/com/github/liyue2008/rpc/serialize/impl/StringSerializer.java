@@ -14,6 +14,7 @@
 package com.github.liyue2008.rpc.serialize.impl;
 
 import com.github.liyue2008.rpc.serialize.Serializer;
+import io.netty.buffer.ByteBuf;
 
 import java.nio.charset.StandardCharsets;
 
@@ -23,19 +24,13 @@ import java.nio.charset.StandardCharsets;
  */
 public class StringSerializer implements Serializer<String> {
     @Override
-    public int size(String entry) {
-        return entry.getBytes(StandardCharsets.UTF_8).length;
+    public void serialize(String entry, ByteBuf buffer) {
+        buffer.writeCharSequence(entry, StandardCharsets.UTF_8);
     }
 
     @Override
-    public void serialize(String entry, byte[] bytes, int offset, int length) {
-        byte [] strBytes = entry.getBytes(StandardCharsets.UTF_8);
-        System.arraycopy(strBytes, 0, bytes, offset, strBytes.length);
-    }
-
-    @Override
-    public String parse(byte[] bytes, int offset, int length) {
-        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    public String parse(ByteBuf buffer, int length) {
+        return buffer.readCharSequence(length, StandardCharsets.UTF_8).toString();
     }
 
     @Override
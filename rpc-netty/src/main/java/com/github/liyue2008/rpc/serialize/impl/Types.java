@@ -21,4 +21,7 @@ class Types {
     final static int TYPE_STRING = 0;
     final static int TYPE_METADATA = 100;
     final static int TYPE_RPC_REQUEST = 101;
+
+    final static byte CODEC_BINARY = 0;
+    final static byte CODEC_JAVA = 1;
 }
@@ -0,0 +1,60 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.server;
+
+import com.github.liyue2008.rpc.serialize.Codec;
+import com.github.liyue2008.rpc.transport.ResponseStream;
+import io.netty.buffer.ByteBuf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+
+/**
+ * 把服务方法返回的 Iterator 转换成流式响应的数据来源：每一帧是用请求的编码写入的一个元素。
+ * 传输层按照客户端给的额度拉取，Iterator 是懒加载的（比如数据库游标），服务端就不需要把所有结果都放在内存中。
+ * Iterator 同时实现了 AutoCloseable 的，流结束或者被取消时会被关闭。
+ * @author LiYue
+ * Date: 2019/10/15
+ */
+class IteratorResponseStream implements ResponseStream {
+    private static final Logger logger = LoggerFactory.getLogger(IteratorResponseStream.class);
+    private final Iterator<?> iterator;
+    private final Codec codec;
+
+    IteratorResponseStream(Iterator<?> iterator, Codec codec) {
+        this.iterator = iterator;
+        this.codec = codec;
+    }
+
+    @Override
+    public boolean next(ByteBuf payload) {
+        if (!iterator.hasNext()) {
+            return false;
+        }
+        codec.write(iterator.next(), payload);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (iterator instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) iterator).close();
+            } catch (Exception e) {
+                logger.warn("Close iterator failed: ", e);
+            }
+        }
+    }
+}
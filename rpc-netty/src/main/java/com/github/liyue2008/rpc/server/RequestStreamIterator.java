@@ -0,0 +1,90 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.server;
+
+import com.github.liyue2008.rpc.serialize.AllowedClasses;
+import com.github.liyue2008.rpc.serialize.Codec;
+import com.github.liyue2008.rpc.transport.RequestStream;
+import io.netty.buffer.ByteBuf;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 把客户端流转换成服务方法的 Iterator 参数：每一帧是用请求的编码写入的一个元素。
+ * 服务方法读取的时候才等待下一帧，读得慢，客户端发得也慢；读取失败（客户端取消、连接断开或者超时）抛出 RuntimeException。
+ * 服务方法不需要读完，返回之后没有读取的数据由传输层丢弃。
+ * 这个类不是线程安全的，同一时刻只能在一个线程中读取。
+ * @author LiYue
+ * Date: 2019/10/15
+ */
+class RequestStreamIterator<T> implements Iterator<T> {
+    private static final Object NONE = new Object();
+    private final RequestStream stream;
+    private final Codec codec;
+    private final AllowedClasses elementClasses;
+    private Object next = NONE;
+    private boolean done = false;
+
+    RequestStreamIterator(RequestStream stream, Codec codec, AllowedClasses elementClasses) {
+        this.stream = stream;
+        this.codec = codec;
+        this.elementClasses = elementClasses;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != NONE) {
+            return true;
+        }
+        if (done) {
+            return false;
+        }
+        ByteBuf payload;
+        try {
+            payload = stream.next();
+        } catch (RuntimeException e) {
+            done = true;
+            throw e;
+        } catch (Exception e) {
+            done = true;
+            throw new RuntimeException(e);
+        }
+        if (null == payload) {
+            done = true;
+            return false;
+        }
+        try {
+            next = codec.read(payload, elementClasses);
+        } catch (RuntimeException e) {
+            done = true;
+            throw e;
+        } finally {
+            // 数据帧的 payload 引用的是接收缓冲区，反序列化之后就释放
+            payload.release();
+        }
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        T result = (T) next;
+        next = NONE;
+        return result;
+    }
+}
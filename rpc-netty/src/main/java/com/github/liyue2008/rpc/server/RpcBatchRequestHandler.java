@@ -0,0 +1,206 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.server;
+
+import com.github.liyue2008.rpc.client.ServiceTypes;
+import com.github.liyue2008.rpc.transport.RequestDispatcher;
+import com.github.liyue2008.rpc.transport.RequestHandler;
+import com.github.liyue2008.rpc.transport.RequestHandlerRegistry;
+import com.github.liyue2008.rpc.transport.StreamResponse;
+import com.github.liyue2008.rpc.transport.command.Code;
+import com.github.liyue2008.rpc.transport.command.Command;
+import com.github.liyue2008.rpc.transport.command.Header;
+import com.github.liyue2008.rpc.transport.command.ResponseHeader;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 批量请求的处理器：把批量请求拆成一个个普通的请求，交给对应类型的 RequestHandler 处理，
+ * 所有请求都处理完之后，把结果按顺序合成一个响应。
+ * <pre>
+ * 请求 payload：并行标志(byte) + 请求数(int) + [请求类型(int) + 长度(int) + 请求 payload] ...
+ * 响应 payload：结果数(int) + [响应码(int) + 错误信息长度(int，-1表示没有) + 错误信息 + 长度(int) + 响应 payload] ...
+ * </pre>
+ * 请求带着并行标志时，同一批中的每个请求都交给派发这个批量请求的 {@link RequestDispatcher} 并行处理，
+ * 和普通请求一样受 maxPending 的限制，超过限制的请求返回 OVERLOADED；否则在当前线程中按顺序处理。
+ * 格式不对的批量请求返回错误响应；流式调用不能放在批量请求中。
+ * @author LiYue
+ * Date: 2019/10/16
+ */
+public class RpcBatchRequestHandler implements RequestHandler {
+    /**
+     * 每个请求至少包含请求类型和长度两个 int
+     */
+    private final static int MIN_REQUEST_BYTES = 2 * Integer.BYTES;
+
+    @Override
+    public Command handle(Command requestCommand) {
+        return handleAsync(requestCommand).join();
+    }
+
+    @Override
+    public CompletableFuture<Command> handleAsync(Command requestCommand) {
+        Header header = requestCommand.getHeader();
+        boolean parallel;
+        List<Command> requests;
+        try {
+            ByteBuf payload = requestCommand.getPayloadBuffer();
+            parallel = payload.readBoolean();
+            requests = parseRequests(header, payload);
+        } catch (Throwable t) {
+            // 格式不对的批量请求返回错误响应，不影响这个连接上的其它请求
+            return CompletableFuture.completedFuture(errorResponse(header, Code.UNKNOWN_ERROR.getCode(),
+                    String.format("Invalid batch request: %s", t.getMessage())));
+        }
+        List<CompletableFuture<Command>> responses = new ArrayList<>(requests.size());
+        RequestDispatcher dispatcher = RequestDispatcher.current();
+        if (parallel && requests.size() > 1 && null != dispatcher) {
+            for (Command request : requests) {
+                responses.add(dispatch(dispatcher, requestCommand, request));
+            }
+        } else {
+            for (Command request : requests) {
+                responses.add(handleOne(request));
+            }
+        }
+        return CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0]))
+                .thenApply(v -> batchResponse(header, responses));
+    }
+
+    /**
+     * 请求数和每个请求的长度都来自网络，先和剩余的字节数比较，再分配内存
+     */
+    private static List<Command> parseRequests(Header header, ByteBuf payload) {
+        int count = payload.readInt();
+        if (count < 0 || (long) count * MIN_REQUEST_BYTES > payload.readableBytes()) {
+            throw new IllegalArgumentException(String.format("Invalid request count: %d!", count));
+        }
+        List<Command> requests = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int type = payload.readInt();
+            int length = payload.readInt();
+            if (length < 0 || length > payload.readableBytes()) {
+                throw new IllegalArgumentException(String.format("Invalid request length: %d!", length));
+            }
+            // 每个请求的 payload 都是批量请求 payload 的一个切片，不复制
+            requests.add(new Command(new Header(type, header.getVersion(), header.getRequestId()), payload.readSlice(length)));
+        }
+        return requests;
+    }
+
+    /**
+     * 把批量请求中的一个请求交给 dispatcher 处理，dispatcher 拒绝的返回 OVERLOADED 响应
+     */
+    private CompletableFuture<Command> dispatch(RequestDispatcher dispatcher, Command requestCommand, Command request) {
+        CompletableFuture<Command> response = new CompletableFuture<>();
+        // 切片共享批量请求的引用计数，每个请求处理完（反序列化完）之后归还一个引用
+        requestCommand.retain();
+        if (!dispatcher.dispatch(() -> {
+            try {
+                handleOne(request).thenAccept(response::complete);
+            } finally {
+                requestCommand.release();
+            }
+        })) {
+            requestCommand.release();
+            response.complete(errorResponse(request.getHeader(), Code.OVERLOADED.getCode(), "Server overloaded!"));
+        }
+        return response;
+    }
+
+    private CompletableFuture<Command> handleOne(Command request) {
+        Header header = request.getHeader();
+        RequestHandler handler = RequestHandlerRegistry.getInstance().get(header.getType());
+        if (null == handler || handler == this) {
+            return CompletableFuture.completedFuture(errorResponse(header, Code.NO_PROVIDER.getCode(),
+                    String.format("No handler for request with type: %d!", header.getType())));
+        }
+        try {
+            return handler.handleAsync(request)
+                    .handle((response, t) -> null == t ? notStream(header, response) : errorResponse(header, Code.UNKNOWN_ERROR.getCode(), t.getMessage()));
+        } catch (Throwable t) {
+            return CompletableFuture.completedFuture(errorResponse(header, Code.UNKNOWN_ERROR.getCode(), t.getMessage()));
+        }
+    }
+
+    /**
+     * 批量请求的响应中没法发送数据帧，返回了流的请求关闭这个流，返回错误响应
+     */
+    private Command notStream(Header header, Command response) {
+        if (response instanceof StreamResponse) {
+            ((StreamResponse) response).getStream().close();
+            response.release();
+            return errorResponse(header, Code.UNKNOWN_ERROR.getCode(), "Stream calls are not allowed in a batch!");
+        }
+        return response;
+    }
+
+    private Command batchResponse(Header header, List<CompletableFuture<Command>> responses) {
+        ByteBuf payload = PooledByteBufAllocator.DEFAULT.buffer();
+        int index = 0;
+        try {
+            payload.writeInt(responses.size());
+            for (; index < responses.size(); index++) {
+                Command response = responses.get(index).join();
+                try {
+                    writeResponse(response, payload);
+                } finally {
+                    response.release();
+                }
+            }
+        } catch (RuntimeException e) {
+            payload.release();
+            // 释放还没有写入的响应
+            for (index++; index < responses.size(); index++) {
+                responses.get(index).join().release();
+            }
+            throw e;
+        }
+        return new Command(new ResponseHeader(type(), header.getVersion(), header.getRequestId()), payload);
+    }
+
+    private static void writeResponse(Command response, ByteBuf payload) {
+        int code = Code.SUCCESS.getCode();
+        String error = null;
+        if (response.getHeader() instanceof ResponseHeader) {
+            code = ((ResponseHeader) response.getHeader()).getCode();
+            error = ((ResponseHeader) response.getHeader()).getError();
+        }
+        payload.writeInt(code);
+        if (null == error) {
+            payload.writeInt(-1);
+        } else {
+            payload.writeInt(ByteBufUtil.utf8Bytes(error));
+            payload.writeCharSequence(error, StandardCharsets.UTF_8);
+        }
+        ByteBuf responsePayload = response.getPayloadBuffer();
+        payload.writeInt(responsePayload.readableBytes());
+        payload.writeBytes(responsePayload);
+    }
+
+    private Command errorResponse(Header header, int code, String error) {
+        return new Command(new ResponseHeader(header.getType(), header.getVersion(), header.getRequestId(), code, error), new byte[0]);
+    }
+
+    @Override
+    public int type() {
+        return ServiceTypes.TYPE_RPC_BATCH_REQUEST;
+    }
+}
@@ -15,19 +15,35 @@ package com.github.liyue2008.rpc.server;
 
 import com.github.liyue2008.rpc.client.ServiceTypes;
 import com.github.liyue2008.rpc.client.stubs.RpcRequest;
+import com.github.liyue2008.rpc.serialize.Codec;
+import com.github.liyue2008.rpc.serialize.CodecSupport;
+import com.github.liyue2008.rpc.serialize.SerializeException;
 import com.github.liyue2008.rpc.serialize.SerializeSupport;
 import com.github.liyue2008.rpc.spi.Singleton;
 import com.github.liyue2008.rpc.transport.RequestHandler;
+import com.github.liyue2008.rpc.transport.StreamRequest;
+import com.github.liyue2008.rpc.transport.StreamResponse;
 import com.github.liyue2008.rpc.transport.command.Code;
 import com.github.liyue2008.rpc.transport.command.Command;
 import com.github.liyue2008.rpc.transport.command.Header;
 import com.github.liyue2008.rpc.transport.command.ResponseHeader;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 因为我们这个 RPC 框架中只需要处理一种类型的请求：RPC 请求，
@@ -42,34 +58,154 @@ import java.util.Map;
 public class RpcRequestHandler implements RequestHandler, ServiceProviderRegistry {
     private static final Logger logger = LoggerFactory.getLogger(RpcRequestHandler.class);
     /**
-     * Key 就是服务名，Value 就是服务提供方，也就是服务实现类的实例
+     * 分发表：数组下标就是方法ID。注册服务的时候复制一份新的数组再整体替换，处理请求时不需要加锁。
+     * 方法ID在服务端进程的整个生命周期内不变，客户端在每个连接上第一次调用时获取方法ID，之后的请求只带方法ID。
      */
-    private Map<String/*service name*/, Object/*service provider*/> serviceProviders = new HashMap<>();
+    private volatile ServiceMethod [] serviceMethods = new ServiceMethod[0];
+    /**
+     * 服务名 -> (方法签名 -> 方法)，把请求中的接口名和方法签名转换成分发表中的方法
+     */
+    private final Map<String/*service name*/, Map<String/*method signature*/, ServiceMethod>> serviceMethodsByName = new ConcurrentHashMap<>();
 
     @Override
     public Command handle(Command requestCommand) {
+        return handleAsync(requestCommand).join();
+    }
+
+    @Override
+    public CompletableFuture<Command> handleAsync(Command requestCommand) {
         Header header = requestCommand.getHeader();
-        // 1.从payload中反序列化RpcRequest
-        RpcRequest rpcRequest = SerializeSupport.parse(requestCommand.getPayload());
         try {
-            // 2.根据 rpcRequest 中的服务名，去成员变量 serviceProviders 中查找已注册服务实现类的实例；
-            Object serviceProvider = serviceProviders.get(rpcRequest.getInterfaceName());
-            if(serviceProvider != null) {
-                // 3.找到服务提供者，利用Java反射机制调用服务的对应方法
-                String arg = SerializeSupport.parse(rpcRequest.getSerializedArguments());
-                Method method = serviceProvider.getClass().getMethod(rpcRequest.getMethodName(), String.class);
-                String result = (String ) method.invoke(serviceProvider, arg);
+            // 1.从payload中反序列化RpcRequest，格式不对的请求返回错误响应，不影响这个连接上的其它请求
+            RpcRequest rpcRequest = SerializeSupport.parse(requestCommand.getPayloadBuffer());
+            // 2.请求中带着方法ID的，直接在分发表中按照方法ID查找；
+            //   第一次调用带着服务名和方法签名，查找注册服务时准备好的方法，并在响应中把方法ID告诉客户端
+            boolean bound = rpcRequest.isBound();
+            ServiceMethod serviceMethod = bound ? serviceMethodOf(rpcRequest.getMethodId()) :
+                    serviceMethodOf(rpcRequest.getInterfaceName(), rpcRequest.getMethodName());
+            if(serviceMethod != null) {
+                if (serviceMethod.isStream() && !header.hasFlag(Header.FLAG_STREAM)) {
+                    // 流式方法只能作为流式请求调用，比如不能放在批量请求中，否则返回的 Iterator 没有人关闭
+                    return CompletableFuture.completedFuture(new Command(new ResponseHeader(type(), header.getVersion(), header.getRequestId(),
+                            Code.UNKNOWN_ERROR.getCode(), "Not a stream request!"), new byte[0]));
+                }
+                if (serviceMethod.getStreamArgument() >= 0 && !(requestCommand instanceof StreamRequest)) {
+                    // 客户端流式方法同样只能作为客户端流式请求调用，否则没有数据来源
+                    return CompletableFuture.completedFuture(new Command(new ResponseHeader(type(), header.getVersion(), header.getRequestId(),
+                            Code.UNKNOWN_ERROR.getCode(), "Not a stream request!"), new byte[0]));
+                }
+                int bindMethodId = bound ? RpcRequest.UNBOUND_METHOD_ID : serviceMethod.getId();
+                // 3.找到服务方法，按照方法的参数类型读取参数，用参数数组直接调用绑定到服务提供者的 MethodHandle
+                Object [] arguments = readArguments(serviceMethod, rpcRequest);
+                if (serviceMethod.getStreamArgument() >= 0) {
+                    // 客户端在流参数的位置上写的是null，换成读取客户端流的 Iterator
+                    arguments[serviceMethod.getStreamArgument()] = new RequestStreamIterator<>(((StreamRequest) requestCommand).getStream(),
+                            rpcRequest.getCodec(), serviceMethod.getStreamElementClasses());
+                }
+                Object result = serviceMethod.invoke(arguments);
+                if (serviceMethod.isStream()) {
+                    return CompletableFuture.completedFuture(streamResponse(header, rpcRequest.getCodec(), bindMethodId, (Iterator<?>) result));
+                }
+                if (result instanceof CompletionStage) {
+                    // 异步的服务方法，等它返回的Future结束之后再返回响应，不占用当前线程
+                    return ((CompletionStage<?>) result).toCompletableFuture()
+                            .handle((r, t) -> null == t ? trySuccessResponse(header, rpcRequest.getCodec(), bindMethodId, r) : errorResponse(header, t));
+                }
                 // 4.把结果封装成响应命令并返回
-                return new Command(new ResponseHeader(type(), header.getVersion(), header.getRequestId()), SerializeSupport.serialize(result));
+                return CompletableFuture.completedFuture(successResponse(header, rpcRequest.getCodec(), bindMethodId, result));
             }
             // 如果没找到，返回NO_PROVIDER错误响应。
-            logger.warn("No service Provider of {}#{}(String)!", rpcRequest.getInterfaceName(), rpcRequest.getMethodName());
-            return new Command(new ResponseHeader(type(), header.getVersion(), header.getRequestId(), Code.NO_PROVIDER.getCode(), "No provider!"), new byte[0]);
+            if (bound) {
+                logger.warn("No service Provider of method id {}!", rpcRequest.getMethodId());
+            } else {
+                logger.warn("No service Provider of {}#{}!", rpcRequest.getInterfaceName(), rpcRequest.getMethodName());
+            }
+            return CompletableFuture.completedFuture(
+                    new Command(new ResponseHeader(type(), header.getVersion(), header.getRequestId(), Code.NO_PROVIDER.getCode(), "No provider!"), new byte[0]));
         } catch (Throwable t) {
-            // 发生异常，返回UNKNOWN_ERROR错误响应。
-            logger.warn("Exception: ", t);
-            return new Command(new ResponseHeader(type(), header.getVersion(), header.getRequestId(), Code.UNKNOWN_ERROR.getCode(), t.getMessage()), new byte[0]);
+            return CompletableFuture.completedFuture(errorResponse(header, t));
+        }
+    }
+
+    /**
+     * 只接受服务自己选择的编码，参数中只允许出现方法签名中的类
+     */
+    private Object[] readArguments(ServiceMethod serviceMethod, RpcRequest rpcRequest) {
+        if (rpcRequest.getCodec() != serviceMethod.getCodec()) {
+            throw new SerializeException(String.format("Codec %s is not accepted by service %s!",
+                    rpcRequest.getCodec().name(), serviceMethod.getInterfaceName()));
         }
+        Object [] arguments = rpcRequest.getCodec().readArguments(rpcRequest.getArgumentsBuffer(), serviceMethod.getArgumentClasses());
+        if (rpcRequest.getArgumentsBuffer().isReadable()) {
+            throw new SerializeException("Unexpected bytes after arguments!");
+        }
+        return arguments;
+    }
+
+    private ServiceMethod serviceMethodOf(String interfaceName, String signature) {
+        Map<String, ServiceMethod> methods = serviceMethodsByName.get(interfaceName);
+        return null == methods ? null : methods.get(signature);
+    }
+
+    /**
+     * 按照方法ID查找分发表中的方法
+     * @return 方法ID不存在返回null
+     */
+    private ServiceMethod serviceMethodOf(int methodId) {
+        ServiceMethod [] serviceMethods = this.serviceMethods;
+        return methodId >= 0 && methodId < serviceMethods.length ? serviceMethods[methodId] : null;
+    }
+
+    /**
+     * @param codec 请求使用的编码，返回值使用同样的编码
+     * @param bindMethodId 需要告诉客户端的方法ID，写在返回值的前面；不需要时为 {@link RpcRequest#UNBOUND_METHOD_ID}
+     */
+    private Command successResponse(Header header, Codec codec, int bindMethodId, Object result) {
+        // 直接序列化到池化的缓冲区中，发送之后由 Netty 释放
+        ByteBuf payload = PooledByteBufAllocator.DEFAULT.buffer();
+        try {
+            if (bindMethodId != RpcRequest.UNBOUND_METHOD_ID) {
+                payload.writeInt(bindMethodId);
+            }
+            codec.write(result, payload);
+        } catch (RuntimeException e) {
+            payload.release();
+            throw e;
+        }
+        return new Command(new ResponseHeader(type(), header.getVersion(), header.getRequestId()), payload);
+    }
+
+    /**
+     * 流式调用的响应：Iterator 中的元素作为数据帧发送，最后一帧只带着需要告诉客户端的方法ID
+     */
+    private Command streamResponse(Header header, Codec codec, int bindMethodId, Iterator<?> result) {
+        ByteBuf payload = PooledByteBufAllocator.DEFAULT.buffer();
+        if (bindMethodId != RpcRequest.UNBOUND_METHOD_ID) {
+            payload.writeInt(bindMethodId);
+        }
+        Iterator<?> iterator = null == result ? Collections.emptyIterator() : result;
+        return new StreamResponse(new ResponseHeader(type(), header.getVersion(), header.getRequestId()), payload,
+                new IteratorResponseStream(iterator, codec));
+    }
+
+    /**
+     * 返回值序列化失败的时候返回错误响应
+     */
+    private Command trySuccessResponse(Header header, Codec codec, int bindMethodId, Object result) {
+        try {
+            return successResponse(header, codec, bindMethodId, result);
+        } catch (Throwable t) {
+            return errorResponse(header, t);
+        }
+    }
+
+    private Command errorResponse(Header header, Throwable t) {
+        if (t instanceof CompletionException && null != t.getCause()) {
+            t = t.getCause();
+        }
+        // 发生异常，返回UNKNOWN_ERROR错误响应。
+        logger.warn("Exception: ", t);
+        return new Command(new ResponseHeader(type(), header.getVersion(), header.getRequestId(), Code.UNKNOWN_ERROR.getCode(), t.getMessage()), new byte[0]);
     }
 
     @Override
@@ -78,14 +214,38 @@ public class RpcRequestHandler implements RequestHandler, ServiceProviderRegistr
     }
 
     /**
-     * 注册 RPC 服务
+     * 注册 RPC 服务，为服务接口的每个方法分配一个方法ID，生成绑定到服务提供者的 MethodHandle 放到分发表中。
+     * 重复注册同一个服务时，同一个方法沿用原来的方法ID。
      * @param serviceClass
      * @param serviceProvider
      * @param <T>
      */
     @Override
     public synchronized <T> void addServiceProvider(Class<? extends T> serviceClass, T serviceProvider) {
-        serviceProviders.put(serviceClass.getCanonicalName(), serviceProvider);
+        String serviceName = serviceClass.getCanonicalName();
+        Codec codec = CodecSupport.codecOf(serviceClass);
+        Map<String, ServiceMethod> oldMethods = serviceMethodsByName.getOrDefault(serviceName, Collections.emptyMap());
+        Map<String, ServiceMethod> methods = new HashMap<>();
+        List<ServiceMethod> newServiceMethods = new ArrayList<>(Arrays.asList(serviceMethods));
+        for (Method method : serviceClass.getMethods()) {
+            String signature = RpcRequest.methodSignature(method);
+            ServiceMethod oldMethod = oldMethods.get(signature);
+            int methodId = null == oldMethod ? newServiceMethods.size() : oldMethod.getId();
+            ServiceMethod serviceMethod;
+            try {
+                serviceMethod = new ServiceMethod(methodId, serviceName, signature, method, serviceProvider, codec);
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException(String.format("Can not access method %s!", method), e);
+            }
+            if (methodId == newServiceMethods.size()) {
+                newServiceMethods.add(serviceMethod);
+            } else {
+                newServiceMethods.set(methodId, serviceMethod);
+            }
+            methods.put(signature, serviceMethod);
+        }
+        serviceMethods = newServiceMethods.toArray(new ServiceMethod[0]);
+        serviceMethodsByName.put(serviceName, methods);
         logger.info("Add service: {}, provider: {}.",
                 serviceClass.getCanonicalName(),
                 serviceProvider.getClass().getCanonicalName());
@@ -0,0 +1,143 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.server;
+
+import com.github.liyue2008.rpc.serialize.AllowedClasses;
+import com.github.liyue2008.rpc.serialize.Codec;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Iterator;
+
+/**
+ * 分发表中的一项：一个服务方法和调用它的 MethodHandle。
+ * 注册服务的时候就把 MethodHandle 绑定到服务提供者，并转换成统一的 (Object[])Object 类型，
+ * 处理请求的时候直接用参数数组调用，不需要再查找方法，也不需要 Method.invoke 的反射检查。
+ * @author LiYue
+ * Date: 2019/10/12
+ */
+class ServiceMethod {
+    private final static MethodType INVOKER_TYPE = MethodType.methodType(Object.class, Object[].class);
+    private final int id;
+    private final String interfaceName;
+    private final String signature;
+    private final MethodHandle invoker;
+    /**
+     * 服务选择的编码，只接受使用这个编码的请求
+     */
+    private final Codec codec;
+    /**
+     * 读取参数时允许出现的类：方法的参数类型以及从它们能够到达的类型
+     */
+    private final AllowedClasses argumentClasses;
+    /**
+     * 返回值类型是 Iterator 的方法是流式调用，返回值中的元素一帧一帧地发给客户端
+     */
+    private final boolean stream;
+    /**
+     * 类型是 Iterator 的参数的下标，这样的方法是客户端流式调用，参数中的元素由客户端一帧一帧地发过来；没有这样的参数为-1
+     */
+    private final int streamArgument;
+    /**
+     * 读取客户端流中的元素时允许出现的类
+     */
+    private final AllowedClasses streamElementClasses;
+
+    ServiceMethod(int id, String interfaceName, String signature, Method method, Object serviceProvider, Codec codec) throws IllegalAccessException {
+        this.id = id;
+        this.interfaceName = interfaceName;
+        this.signature = signature;
+        this.codec = codec;
+        this.argumentClasses = AllowedClasses.of(method.getGenericParameterTypes());
+        this.stream = Iterator.class.equals(method.getReturnType());
+        this.streamArgument = streamArgumentOf(method);
+        if (stream && streamArgument >= 0) {
+            throw new IllegalArgumentException(String.format("Method %s can not stream both arguments and result!", method));
+        }
+        this.streamElementClasses = streamArgument < 0 ? null : AllowedClasses.of(elementTypeOf(method.getGenericParameterTypes()[streamArgument]));
+        // 通过接口中的方法调用，服务实现类不是 public 的也可以调用
+        this.invoker = MethodHandles.publicLookup().unreflect(method)
+                .bindTo(serviceProvider)
+                .asSpreader(Object[].class, method.getParameterCount())
+                .asType(INVOKER_TYPE);
+    }
+
+    /**
+     * @return 类型是 Iterator 的参数的下标，没有返回-1，不止一个时抛出 IllegalArgumentException
+     */
+    private static int streamArgumentOf(Method method) {
+        int streamArgument = -1;
+        Class<?> [] parameterTypes = method.getParameterTypes();
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (Iterator.class.equals(parameterTypes[i])) {
+                if (streamArgument >= 0) {
+                    throw new IllegalArgumentException(String.format("Method %s has more than one stream argument!", method));
+                }
+                streamArgument = i;
+            }
+        }
+        return streamArgument;
+    }
+
+    /**
+     * Iterator 中元素的类型，没有声明的按照 Object 处理
+     */
+    private static Type elementTypeOf(Type iteratorType) {
+        return iteratorType instanceof ParameterizedType ?
+                ((ParameterizedType) iteratorType).getActualTypeArguments()[0] : Object.class;
+    }
+
+    /**
+     * 调用服务方法，void 方法返回 null
+     */
+    Object invoke(Object[] arguments) throws Throwable {
+        return (Object) invoker.invokeExact(arguments);
+    }
+
+    int getId() {
+        return id;
+    }
+
+    String getInterfaceName() {
+        return interfaceName;
+    }
+
+    String getSignature() {
+        return signature;
+    }
+
+    boolean isStream() {
+        return stream;
+    }
+
+    int getStreamArgument() {
+        return streamArgument;
+    }
+
+    AllowedClasses getStreamElementClasses() {
+        return streamElementClasses;
+    }
+
+    Codec getCodec() {
+        return codec;
+    }
+
+    AllowedClasses getArgumentClasses() {
+        return argumentClasses;
+    }
+}
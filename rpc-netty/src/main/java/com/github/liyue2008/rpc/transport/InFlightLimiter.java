@@ -0,0 +1,150 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.transport;
+
+import com.github.liyue2008.rpc.config.ConfigSupport;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 每个 Transport 一个的在途请求窗口，用 AIMD（加法增大、乘法减小）算法自适应调整窗口大小：
+ * 请求成功并且窗口已经用了一半以上时，窗口加 1；
+ * 请求失败、超时或者响应时延超过阈值时，窗口乘以回退系数（默认 0.9）。
+ * 窗口满了直接拒绝请求，不会阻塞发送请求的线程。
+ * @author LiYue
+ * Date: 2019/10/8
+ */
+public class InFlightLimiter {
+    /**
+     * 时延 EWMA 中新样本的权重
+     */
+    private final static double LATENCY_EWMA_ALPHA = ConfigSupport.getDouble("client.latency.ewma.alpha", 0.2D);
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final long latencyThresholdNanos;
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private volatile double limit;
+    /**
+     * 成功请求时延的指数加权移动平均值，负载均衡用它估计服务提供者的快慢。
+     * 并发更新时可能丢掉个别样本，对估计值没有影响，所以不加锁。
+     */
+    private volatile double latencyNanos = 0D;
+
+    public InFlightLimiter() {
+        this(ConfigSupport.getInt("client.inflight.initial", 20),
+                ConfigSupport.getInt("client.inflight.min", 1),
+                ConfigSupport.getInt("client.inflight.max", 1000),
+                ConfigSupport.getDouble("client.inflight.backoff", 0.9D),
+                ConfigSupport.getLong("client.inflight.latency.threshold.ms", 1000L));
+    }
+
+    public InFlightLimiter(int initialLimit, int minLimit, int maxLimit, double backoffRatio, long latencyThresholdMs) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException(String.format("Invalid in-flight limit range: [%d, %d]!", minLimit, maxLimit));
+        }
+        if (backoffRatio <= 0D || backoffRatio >= 1D) {
+            throw new IllegalArgumentException(String.format("Invalid backoff ratio: %f!", backoffRatio));
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMs);
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * 尝试占用窗口中的一个位置
+     * @return 窗口已满返回false
+     */
+    public boolean tryAcquire() {
+        for (;;) {
+            int current = inFlight.get();
+            if (current >= getLimit()) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 请求成功结束，归还位置并根据时延调整窗口
+     * @param rttNanos 请求的往返时延
+     */
+    public void onSuccess(long rttNanos) {
+        int current = inFlight.getAndDecrement();
+        double latency = latencyNanos;
+        latencyNanos = latency == 0D ? rttNanos : latency + LATENCY_EWMA_ALPHA * (rttNanos - latency);
+        if (latencyThresholdNanos > 0 && rttNanos > latencyThresholdNanos) {
+            decrease();
+        } else if (current * 2 >= limit) {
+            // 只有窗口真正被用起来的时候才扩大，避免空闲连接的窗口无限增长
+            increase();
+        }
+    }
+
+    /**
+     * 归还位置，不调整窗口。流式调用的时长取决于数据量和接收方的速度，不能反映服务端的负载
+     */
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * 请求失败、超时或者被服务端拒绝，归还位置并缩小窗口
+     */
+    public void onDropped() {
+        inFlight.decrementAndGet();
+        decrease();
+    }
+
+    private synchronized void increase() {
+        limit = Math.min(maxLimit, limit + 1D);
+    }
+
+    private synchronized void decrease() {
+        limit = Math.max(minLimit, limit * backoffRatio);
+    }
+
+    /**
+     * 当前的窗口大小
+     */
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * 窗口大小的上限
+     */
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * 成功请求时延的指数加权移动平均值，单位纳秒，还没有成功的请求时为0
+     */
+    public long getLatencyNanos() {
+        return (long) latencyNanos;
+    }
+
+    /**
+     * 当前在途的请求数
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
@@ -13,78 +13,169 @@
  */
 package com.github.liyue2008.rpc.transport;
 
+import io.netty.util.Timer;
+
 import java.io.Closeable;
+import java.nio.channels.ClosedChannelException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
+ * 维护一个连接上所有的在途请求，并负责兜底超时。
+ * 背压（限制在途请求的数量）由每个 Transport 自己的 {@link InFlightLimiter} 实现。
+ * 在途请求保存在一个以请求id为下标的开放寻址槽数组中：
+ * 请求id按顺序递增，同一时刻在途的请求数又不会超过窗口大小，
+ * 所以绝大多数请求直接落在 requestId &amp; mask 这个槽里，
+ * 放入和删除都只是一次CAS，不需要把请求id装箱成Integer，也不会产生任何临时对象。
+ * 冲突时向后探测，但最多探测 {@link #MAX_PROBES} 个槽，查找一个不存在的请求（比如超时之后才收到的响应）
+ * 也只需要探测这么多槽；极少数探测不到空槽的请求放到溢出表中。
  * @author LiYue
  * Date: 2019/9/20
  */
 public class InFlightRequests implements Closeable {
-    private final static long TIMEOUT_SEC = 10L;
     /**
-     * 在实现异步网络传输的时候，一定要配套实现一个背压的机制，避免客户端请求速度过快，导致大量的请求失败。
-     * 在服务端处理不过来的时候限制一下客户端的请求速度。
-     * 这个信号量有 10 个许可，我们每次往 inFlightRequest 中加入一个 ResponseFuture 的时候，
-     * 需要先从信号量中获得一个许可，如果这时候没有许可了，就会阻塞当前这个线程，也就是发送请求的这个线程，
-     * 直到有人归还了许可，才能继续发送请求。我们每结束一个在途请求，就归还一个许可，
-     * 这样就可以保证在途请求的数量最多不超过 10 个请求，积压在服务端正在处理或者待处理的请求也不会超过 10 个。
+     * 最多探测的槽数
+     */
+    private static final int MAX_PROBES = 8;
+    /**
+     * 用于维护所有的在途请求，下标由请求id计算得出，值为返回值
+     */
+    private final AtomicReferenceArray<ResponseFuture> slots;
+    private final int mask;
+    private final int maxProbes;
+    /**
+     * 在槽数组中探测不到空槽的在途请求，通常是空的
      */
-    private final Semaphore semaphore = new Semaphore(10);
+    private final Map<Integer, ResponseFuture> overflow = new ConcurrentHashMap<>();
+    /**
+     * 即使是我们对所有能捕获的异常都做了处理，也不能保证所有 ResponseFuture 都能正常或者异常结束，
+     * 比如说，编写对端程序的程序员写的代码有问题，收到了请求就是没给我们返回响应，
+     * 为了应对这种情况，还必须有一个兜底超时的机制来保证所有情况下 ResponseFuture 都能结束。
+     * 每个请求在放入的时候，按照它自己的超时时间在时间轮中登记一个超时任务，
+     * 登记、取消和到期的开销都是O(1)的，不需要定期扫描所有的在途请求。
+     * 时间轮由同一个客户端的所有连接共享。
+     */
+    private final Timer timer;
+
     /**
-     * 用于维护所有的在途请求，key为请求id，value为返回值
+     * @param timer 时间轮
+     * @param maxInFlight 最大在途请求数，槽数组的大小是不小于它两倍的2的幂，保证冲突很少
      */
-    private final Map<Integer, ResponseFuture> futureMap = new ConcurrentHashMap<>();
-    private final ScheduledExecutorService scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
-    private final ScheduledFuture scheduledFuture;
-    public InFlightRequests() {
-        scheduledFuture = scheduledExecutorService.scheduleAtFixedRate(this::removeTimeoutFutures,
-                TIMEOUT_SEC, TIMEOUT_SEC, TimeUnit.SECONDS);
+    public InFlightRequests(Timer timer, int maxInFlight) {
+        int capacity = Integer.highestOneBit(Math.max(2, maxInFlight * 2 - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.maxProbes = Math.min(MAX_PROBES, capacity);
+        this.timer = timer;
     }
 
-    public void put(ResponseFuture responseFuture) throws InterruptedException, TimeoutException {
-        if(semaphore.tryAcquire(TIMEOUT_SEC, TimeUnit.SECONDS)) {
-            futureMap.put(responseFuture.getRequestId(), responseFuture);
-        } else {
-            throw new TimeoutException();
+    /**
+     * 放入一个在途请求
+     * @param responseFuture 在途请求
+     * @param timeoutMillis 超时时间，单位毫秒，小于等于0表示不需要兜底超时（流式调用的超时由接收方自己控制）
+     */
+    public void put(ResponseFuture responseFuture, long timeoutMillis) {
+        if (!putSlot(responseFuture)) {
+            overflow.put(responseFuture.getRequestId(), responseFuture);
         }
+        timeout(responseFuture, timeoutMillis);
     }
 
     /**
-     * 即使是我们对所有能捕获的异常都做了处理，也不能保证所有 ResponseFuture 都能正常或者异常结束，
-     * 比如说，编写对端程序的程序员写的代码有问题，收到了请求就是没给我们返回响应，
-     * 为了应对这种情况，还必须有一个兜底超时的机制来保证所有情况下 ResponseFuture 都能结束，
-     * 无论什么情况，只要超过了超时时间还没有收到响应，我们就认为这个 ResponseFuture 失败了，结束并删除它
+     * 为一个已经放入的在途请求登记兜底超时。
+     * 客户端流式调用在数据发完之后才开始计算等待响应的超时时间，所以放入的时候不登记，之后再调用这个方法。
+     * @param responseFuture 在途请求
+     * @param timeoutMillis 超时时间，单位毫秒，小于等于0表示不需要兜底超时
      */
-    private void removeTimeoutFutures() {
-        futureMap.entrySet().removeIf(entry -> {
-            if( System.nanoTime() - entry.getValue().getTimestamp() > TIMEOUT_SEC * 1000000000L) {
-                semaphore.release();
+    public void timeout(ResponseFuture responseFuture, long timeoutMillis) {
+        if (timeoutMillis <= 0L || responseFuture.getFuture().isDone()) {
+            return;
+        }
+        responseFuture.setTimeout(timer.newTimeout(timeout -> {
+            // 只有还在途的请求才需要超时，已经收到响应的请求已经从槽中删除了
+            if (remove(responseFuture)) {
+                responseFuture.getFuture().completeExceptionally(new TimeoutException(
+                        String.format("Request %d timeout after %d ms!", responseFuture.getRequestId(), timeoutMillis)));
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS));
+    }
+
+    private boolean putSlot(ResponseFuture responseFuture) {
+        int index = responseFuture.getRequestId() & mask;
+        for (int i = 0; i < maxProbes; i++) {
+            if (slots.compareAndSet(index, null, responseFuture)) {
                 return true;
-            } else {
-                return false;
             }
-        });
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * 查找一个在途请求，不删除。流式调用收到中间的数据帧时使用
+     * @return 没有找到返回null
+     */
+    public ResponseFuture get(int requestId) {
+        int index = requestId & mask;
+        for (int i = 0; i < maxProbes; i++) {
+            ResponseFuture future = slots.get(index);
+            if (null != future && future.getRequestId() == requestId) {
+                return future;
+            }
+            index = (index + 1) & mask;
+        }
+        return overflow.isEmpty() ? null : overflow.get(requestId);
     }
 
     public ResponseFuture remove(int requestId) {
-        ResponseFuture future = futureMap.remove(requestId);
-        if(null != future) {
-            semaphore.release();
+        int index = requestId & mask;
+        for (int i = 0; i < maxProbes; i++) {
+            ResponseFuture future = slots.get(index);
+            if (null != future && future.getRequestId() == requestId && slots.compareAndSet(index, future, null)) {
+                future.cancelTimeout();
+                return future;
+            }
+            index = (index + 1) & mask;
+        }
+        ResponseFuture future = overflow.isEmpty() ? null : overflow.remove(requestId);
+        if (null != future) {
+            future.cancelTimeout();
         }
         return future;
     }
 
+    private boolean remove(ResponseFuture responseFuture) {
+        int index = responseFuture.getRequestId() & mask;
+        for (int i = 0; i < maxProbes; i++) {
+            if (slots.compareAndSet(index, responseFuture, null)) {
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+        return overflow.remove(responseFuture.getRequestId(), responseFuture);
+    }
+
+    /**
+     * 连接断开的时候，结束所有在途请求，不需要等到超时
+     */
     @Override
     public void close() {
-        scheduledFuture.cancel(true);
-        scheduledExecutorService.shutdown();
+        for (int index = 0; index < slots.length(); index++) {
+            ResponseFuture future = slots.getAndSet(index, null);
+            if (null != future) {
+                future.cancelTimeout();
+                future.getFuture().completeExceptionally(new ClosedChannelException());
+            }
+        }
+        for (Integer requestId : overflow.keySet()) {
+            ResponseFuture future = overflow.remove(requestId);
+            if (null != future) {
+                future.cancelTimeout();
+                future.getFuture().completeExceptionally(new ClosedChannelException());
+            }
+        }
     }
 }
@@ -0,0 +1,421 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.transport;
+
+import com.github.liyue2008.rpc.config.ConfigSupport;
+import com.github.liyue2008.rpc.loadbalance.Endpoint;
+import com.github.liyue2008.rpc.loadbalance.LoadBalancer;
+import com.github.liyue2008.rpc.transport.command.Command;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 一个服务的所有服务提供者：每次调用按照负载均衡策略选择一个服务提供者，再从它的连接池中选择一条连接。
+ * 服务提供者列表由服务发现通过 {@link #update(List)} 更新，更新时保留仍然存在的服务提供者，
+ * 这样它们的在途请求数和时延数据不会丢失。
+ * 新的服务提供者通过 {@link Connector} 异步建立连接，连接建立之后才加入列表，更新本身不会被连接阻塞；
+ * 连接不上的服务提供者暂时不加入列表，只要它还在服务发现给出的地址中，就在后台按照指数退避不断重试，
+ * 重试间隔从 simple.rpc.transport.reconnect.backoff.min.ms（默认1000）开始翻倍，
+ * 最长 simple.rpc.transport.reconnect.backoff.max.ms（默认30000）。
+ * 离开列表的服务提供者立即归还它的连接池。
+ * @author LiYue
+ * Date: 2019/10/17
+ */
+public class LoadBalancedTransport implements Transport, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(LoadBalancedTransport.class);
+    private static final long RECONNECT_BACKOFF_MIN_MS = Math.max(1L, ConfigSupport.getLong("transport.reconnect.backoff.min.ms", 1000L));
+    private static final long RECONNECT_BACKOFF_MAX_MS = Math.max(RECONNECT_BACKOFF_MIN_MS,
+            ConfigSupport.getLong("transport.reconnect.backoff.max.ms", 30000L));
+    /**
+     * 所有实例共享一个后台线程，负责重试连接失败的服务提供者
+     */
+    private static final ScheduledExecutorService reconnectExecutor =
+            Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("rpc-transport-reconnect", true));
+    private final String serviceName;
+    private final LoadBalancer loadBalancer;
+    private final Connector connector;
+    private final ConcurrentMap<String, Object> attributes = new ConcurrentHashMap<>();
+    /**
+     * 没有服务提供者时选中的 Transport，发送请求总是失败
+     */
+    private final Transport noProvider = new NoProviderTransport();
+    private volatile List<TransportEndpoint> endpoints = Collections.emptyList();
+    /**
+     * 下面这些状态只在持有这个对象的锁时访问：服务发现给出的最新地址、已经连接上的和正在连接的服务提供者
+     */
+    private Set<URI> uris = Collections.emptySet();
+    private final Map<URI, TransportEndpoint> connected = new HashMap<>();
+    private final Map<URI, CompletableFuture<Void>> connecting = new HashMap<>();
+    /**
+     * 连接失败的服务提供者下一次重试之前等待的时间
+     */
+    private final Map<URI, Long> backoffs = new HashMap<>();
+    private boolean closed = false;
+
+    public LoadBalancedTransport(String serviceName, LoadBalancer loadBalancer, Connector connector) {
+        this.serviceName = serviceName;
+        this.loadBalancer = loadBalancer;
+        this.connector = connector;
+    }
+
+    /**
+     * 用服务发现得到的最新地址更新服务提供者列表。
+     * 只在锁内计算变化，建立连接和归还连接池都在锁外进行，一个连不上的服务提供者不会卡住服务发现的线程。
+     */
+    public void update(List<URI> uris) {
+        List<URI> added = new ArrayList<>();
+        List<URI> removed = new ArrayList<>();
+        List<CompletableFuture<Void>> connects = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            this.uris = new LinkedHashSet<>(uris);
+            connected.keySet().removeIf(uri -> !this.uris.contains(uri) && removed.add(uri));
+            backoffs.keySet().retainAll(this.uris);
+            for (URI uri : this.uris) {
+                // 正在等待重试的服务提供者由重试任务负责连接
+                if (!connected.containsKey(uri) && !connecting.containsKey(uri) && !backoffs.containsKey(uri)) {
+                    connects.add(startConnect(uri));
+                    added.add(uri);
+                }
+            }
+            publish();
+        }
+        for (URI uri : removed) {
+            connector.release(uri);
+        }
+        for (int i = 0; i < added.size(); i++) {
+            connect(added.get(i), connects.get(i));
+        }
+    }
+
+    /**
+     * 持有锁时调用，登记一个正在连接的服务提供者
+     */
+    private CompletableFuture<Void> startConnect(URI uri) {
+        CompletableFuture<Void> connect = new CompletableFuture<>();
+        connecting.put(uri, connect);
+        return connect;
+    }
+
+    private void connect(URI uri, CompletableFuture<Void> connect) {
+        connector.acquire(uri).whenComplete((transport, throwable) -> {
+            onConnected(uri, transport, throwable);
+            connect.complete(null);
+        });
+    }
+
+    private void onConnected(URI uri, Transport transport, Throwable throwable) {
+        boolean release;
+        synchronized (this) {
+            connecting.remove(uri);
+            if (null != throwable) {
+                if (!closed && uris.contains(uri)) {
+                    long backoff = backoffs.getOrDefault(uri, 0L);
+                    backoff = 0L == backoff ? RECONNECT_BACKOFF_MIN_MS : Math.min(backoff * 2L, RECONNECT_BACKOFF_MAX_MS);
+                    backoffs.put(uri, backoff);
+                    logger.warn("Connect to provider {} of service {} failed, retry in {}ms: {}.", uri, serviceName, backoff, throwable.toString());
+                    reconnectExecutor.schedule(() -> reconnect(uri), backoff, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+            backoffs.remove(uri);
+            // 连接的过程中服务提供者已经离开了列表
+            release = closed || !uris.contains(uri);
+            if (!release) {
+                connected.put(uri, new TransportEndpoint(uri, transport));
+                publish();
+            }
+        }
+        if (release) {
+            connector.release(uri);
+        }
+    }
+
+    /**
+     * 重试连接失败的服务提供者，它已经离开列表或者已经连接上的不再重试
+     */
+    private void reconnect(URI uri) {
+        CompletableFuture<Void> connect;
+        synchronized (this) {
+            if (closed || !uris.contains(uri) || !backoffs.containsKey(uri) ||
+                    connected.containsKey(uri) || connecting.containsKey(uri)) {
+                return;
+            }
+            connect = startConnect(uri);
+        }
+        connect(uri, connect);
+    }
+
+    /**
+     * 按照服务发现给出的顺序发布已经连接上的服务提供者
+     */
+    private void publish() {
+        List<TransportEndpoint> updated = new ArrayList<>(connected.size());
+        for (URI uri : uris) {
+            TransportEndpoint endpoint = connected.get(uri);
+            if (null != endpoint) {
+                updated.add(endpoint);
+            }
+        }
+        if (!updated.equals(endpoints)) {
+            endpoints = Collections.unmodifiableList(updated);
+            logger.info("Providers of service {}: {}.", serviceName, updated);
+        }
+    }
+
+    /**
+     * @return 当前正在进行的连接都结束（成功或者失败）之后完成
+     */
+    public synchronized CompletableFuture<Void> whenConnected() {
+        return CompletableFuture.allOf(connecting.values().toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * 归还所有服务提供者的连接池，之后的更新都被忽略
+     */
+    @Override
+    public void close() {
+        List<URI> removed;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            removed = new ArrayList<>(connected.keySet());
+            connected.clear();
+            backoffs.clear();
+            uris = Collections.emptySet();
+            publish();
+        }
+        for (URI uri : removed) {
+            connector.release(uri);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Command> send(Command request) {
+        return select().send(request);
+    }
+
+    @Override
+    public CompletableFuture<Command> send(Command request, long timeoutMillis) {
+        return select().send(request, timeoutMillis);
+    }
+
+    @Override
+    public StreamCall openStream(Command request, Consumer<Command> frameConsumer) {
+        return select().openStream(request, frameConsumer);
+    }
+
+    @Override
+    public RequestStreamCall openRequestStream(Command request) {
+        return select().openRequestStream(request);
+    }
+
+    @Override
+    public Transport select() {
+        return select(null);
+    }
+
+    /**
+     * 按照负载均衡策略选择服务提供者，选中的服务提供者不可用时，在可用的服务提供者中重新选择。
+     * 没有服务提供者时返回一个发送请求总是失败的 Transport。
+     */
+    @Override
+    public Transport select(Object key) {
+        List<TransportEndpoint> endpoints = this.endpoints;
+        if (endpoints.isEmpty()) {
+            return noProvider;
+        }
+        TransportEndpoint endpoint = loadBalancer.select(endpoints, key);
+        if (!endpoint.transport.isActive()) {
+            List<TransportEndpoint> active = new ArrayList<>(endpoints.size());
+            for (TransportEndpoint candidate : endpoints) {
+                if (candidate.transport.isActive()) {
+                    active.add(candidate);
+                }
+            }
+            if (!active.isEmpty()) {
+                endpoint = loadBalancer.select(active, key);
+            }
+        }
+        return endpoint.transport.select(key);
+    }
+
+    @Override
+    public ConcurrentMap<String, Object> attributes() {
+        return attributes;
+    }
+
+    @Override
+    public boolean isActive() {
+        for (TransportEndpoint endpoint : endpoints) {
+            if (endpoint.transport.isActive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int getInFlight() {
+        int inFlight = 0;
+        for (TransportEndpoint endpoint : endpoints) {
+            inFlight += endpoint.transport.getInFlight();
+        }
+        return inFlight;
+    }
+
+    @Override
+    public long getLatencyNanos() {
+        long total = 0L;
+        int count = 0;
+        for (TransportEndpoint endpoint : endpoints) {
+            long latencyNanos = endpoint.transport.getLatencyNanos();
+            if (latencyNanos > 0L) {
+                total += latencyNanos;
+                count++;
+            }
+        }
+        return count == 0 ? 0L : total / count;
+    }
+
+    /**
+     * 当前的服务提供者
+     */
+    public List<? extends Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * 按照地址获取服务提供者的连接池，同一个地址的连接池可以被多个服务共享
+     */
+    public interface Connector {
+        /**
+         * 获取地址的连接池，连接在后台建立。成功获取之后，不再使用时需要调用一次 {@link #release(URI)}
+         */
+        CompletableFuture<? extends Transport> acquire(URI uri);
+
+        /**
+         * 归还地址的连接池，没有服务再使用的连接池会被关闭
+         */
+        void release(URI uri);
+    }
+
+    private class NoProviderTransport implements Transport {
+        private final ConcurrentMap<String, Object> attributes = new ConcurrentHashMap<>();
+
+        @Override
+        public CompletableFuture<Command> send(Command request) {
+            request.release();
+            CompletableFuture<Command> completableFuture = new CompletableFuture<>();
+            completableFuture.completeExceptionally(noProvider());
+            return completableFuture;
+        }
+
+        @Override
+        public CompletableFuture<Command> send(Command request, long timeoutMillis) {
+            return send(request);
+        }
+
+        @Override
+        public StreamCall openStream(Command request, Consumer<Command> frameConsumer) {
+            request.release();
+            return StreamCall.failed(noProvider());
+        }
+
+        @Override
+        public RequestStreamCall openRequestStream(Command request) {
+            request.release();
+            return RequestStreamCall.failed(noProvider());
+        }
+
+        private IllegalStateException noProvider() {
+            return new IllegalStateException(String.format("No provider of service %s!", serviceName));
+        }
+
+        @Override
+        public ConcurrentMap<String, Object> attributes() {
+            return attributes;
+        }
+
+        @Override
+        public boolean isActive() {
+            return false;
+        }
+
+        @Override
+        public int getInFlight() {
+            return 0;
+        }
+
+        @Override
+        public long getLatencyNanos() {
+            return 0L;
+        }
+    }
+
+    /**
+     * 一个服务提供者和它的连接池
+     */
+    private static class TransportEndpoint implements Endpoint {
+        private final URI uri;
+        private final Transport transport;
+
+        private TransportEndpoint(URI uri, Transport transport) {
+            this.uri = uri;
+            this.transport = transport;
+        }
+
+        @Override
+        public URI getUri() {
+            return uri;
+        }
+
+        @Override
+        public int getInFlight() {
+            return transport.getInFlight();
+        }
+
+        @Override
+        public long getLatencyNanos() {
+            return transport.getLatencyNanos();
+        }
+
+        @Override
+        public String toString() {
+            return uri.toString();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.transport;
+
+import com.github.liyue2008.rpc.config.ConfigSupport;
+import com.github.liyue2008.rpc.transport.command.Command;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * 连接池：每个服务端地址建立多条连接，每条连接各自在一个 EventLoop 上收发数据，
+ * 这样一个客户端就能同时利用服务端的多个CPU核。
+ * <ul>
+ *     <li>发送请求时选择在途请求最少的一条可用连接；</li>
+ *     <li>后台定时检查，断开的连接会被重新建立的连接替换掉；发送请求时发现断开的连接也会立即触发一次检查。</li>
+ * </ul>
+ * 连接数通过 simple.rpc.client.pool.size 配置，默认为 min(4, CPU核数)。
+ * @author LiYue
+ * Date: 2019/10/11
+ */
+public class PooledTransport implements Transport, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(PooledTransport.class);
+    private final static int DEFAULT_POOL_SIZE =
+            ConfigSupport.getInt("client.pool.size", Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private final static long REPAIR_INTERVAL_MS = ConfigSupport.getLong("client.pool.repair.interval.ms", 1000L);
+    /**
+     * 所有连接池共享一个后台线程，负责替换断开的连接
+     */
+    private final static ScheduledExecutorService repairExecutor =
+            Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("rpc-transport-repair", true));
+
+    private final TransportClient client;
+    private final SocketAddress address;
+    private final long connectionTimeout;
+    private final AtomicReferenceArray<Transport> transports;
+    private final AtomicInteger next = new AtomicInteger(0);
+    private final AtomicBoolean repairing = new AtomicBoolean(false);
+    private final ConcurrentMap<String, Object> attributes = new ConcurrentHashMap<>();
+    private final ScheduledFuture<?> repairTask;
+    private volatile boolean closed = false;
+
+    public PooledTransport(TransportClient client, SocketAddress address, long connectionTimeout) throws InterruptedException, TimeoutException {
+        this(client, address, DEFAULT_POOL_SIZE, connectionTimeout);
+    }
+
+    public PooledTransport(TransportClient client, SocketAddress address, int size, long connectionTimeout) throws InterruptedException, TimeoutException {
+        if (size < 1) {
+            throw new IllegalArgumentException(String.format("Invalid pool size: %d!", size));
+        }
+        this.client = client;
+        this.address = address;
+        this.connectionTimeout = connectionTimeout;
+        this.transports = new AtomicReferenceArray<>(size);
+        // 创建连接池的时候建立所有连接，任何一条连接失败都直接抛出异常，和单连接时的行为保持一致
+        for (int i = 0; i < size; i++) {
+            transports.set(i, client.createTransport(address, connectionTimeout));
+        }
+        this.repairTask = repairExecutor.scheduleWithFixedDelay(this::repair, REPAIR_INTERVAL_MS, REPAIR_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public CompletableFuture<Command> send(Command request) {
+        Transport transport = selectActive();
+        if (null == transport) {
+            return noActiveTransport(request);
+        }
+        return transport.send(request);
+    }
+
+    @Override
+    public CompletableFuture<Command> send(Command request, long timeoutMillis) {
+        Transport transport = selectActive();
+        if (null == transport) {
+            return noActiveTransport(request);
+        }
+        return transport.send(request, timeoutMillis);
+    }
+
+    /**
+     * 流式调用在选中的连接上打开，额度和取消都通过返回的句柄发送到同一条连接上
+     */
+    @Override
+    public StreamCall openStream(Command request, Consumer<Command> frameConsumer) {
+        Transport transport = selectActive();
+        if (null == transport) {
+            request.release();
+            return StreamCall.failed(new ClosedChannelException());
+        }
+        return transport.openStream(request, frameConsumer);
+    }
+
+    /**
+     * 客户端流式调用同样在选中的连接上打开，数据帧都发送到同一条连接上
+     */
+    @Override
+    public RequestStreamCall openRequestStream(Command request) {
+        Transport transport = selectActive();
+        if (null == transport) {
+            request.release();
+            return RequestStreamCall.failed(new ClosedChannelException());
+        }
+        return transport.openRequestStream(request);
+    }
+
+    /**
+     * 选择在途请求最少的可用连接，没有可用连接时返回连接池自己，在连接池上发送请求会失败。
+     */
+    @Override
+    public Transport select() {
+        Transport transport = selectActive();
+        return null == transport ? this : transport;
+    }
+
+    /**
+     * 选择在途请求最少的可用连接。
+     * 每次从不同的位置开始遍历，在途请求数相同的时候请求能均匀分布到各个连接上。
+     * @return 没有可用连接时返回null
+     */
+    private Transport selectActive() {
+        int size = transports.length();
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+        Transport selected = null;
+        int selectedInFlight = Integer.MAX_VALUE;
+        boolean foundInactive = false;
+        for (int i = 0; i < size; i++) {
+            Transport transport = transports.get((start + i) % size);
+            if (null == transport || !transport.isActive()) {
+                foundInactive = true;
+                continue;
+            }
+            int inFlight = transport.getInFlight();
+            if (inFlight < selectedInFlight) {
+                selected = transport;
+                selectedInFlight = inFlight;
+            }
+        }
+        if (foundInactive) {
+            // 不等定时任务，尽快替换断开的连接
+            scheduleRepair();
+        }
+        return selected;
+    }
+
+    private CompletableFuture<Command> noActiveTransport(Command request) {
+        request.release();
+        CompletableFuture<Command> completableFuture = new CompletableFuture<>();
+        completableFuture.completeExceptionally(new ClosedChannelException());
+        return completableFuture;
+    }
+
+    private void scheduleRepair() {
+        if (!closed && !repairing.get()) {
+            repairExecutor.execute(this::repair);
+        }
+    }
+
+    /**
+     * 在后台线程中重新建立断开的连接。建立连接失败就等下一次检查再重试。
+     */
+    private void repair() {
+        if (closed || !repairing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            for (int i = 0; i < transports.length() && !closed; i++) {
+                Transport transport = transports.get(i);
+                if (null != transport && transport.isActive()) {
+                    continue;
+                }
+                try {
+                    transports.set(i, client.createTransport(address, connectionTimeout));
+                    logger.info("Replaced connection #{} to {}.", i, address);
+                } catch (Throwable t) {
+                    logger.warn("Reconnect to {} failed: {}.", address, t.toString());
+                    break;
+                }
+            }
+        } finally {
+            repairing.set(false);
+        }
+    }
+
+    @Override
+    public ConcurrentMap<String, Object> attributes() {
+        return attributes;
+    }
+
+    @Override
+    public boolean isActive() {
+        for (int i = 0; i < transports.length(); i++) {
+            Transport transport = transports.get(i);
+            if (null != transport && transport.isActive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int getInFlight() {
+        int inFlight = 0;
+        for (int i = 0; i < transports.length(); i++) {
+            Transport transport = transports.get(i);
+            if (null != transport) {
+                inFlight += transport.getInFlight();
+            }
+        }
+        return inFlight;
+    }
+
+    /**
+     * 所有可用连接的时延的平均值，没有数据的连接不参与计算
+     */
+    @Override
+    public long getLatencyNanos() {
+        long total = 0L;
+        int count = 0;
+        for (int i = 0; i < transports.length(); i++) {
+            Transport transport = transports.get(i);
+            if (null != transport && transport.isActive()) {
+                long latencyNanos = transport.getLatencyNanos();
+                if (latencyNanos > 0L) {
+                    total += latencyNanos;
+                    count++;
+                }
+            }
+        }
+        return count == 0 ? 0L : total / count;
+    }
+
+    /**
+     * 连接池中的连接数
+     */
+    public int size() {
+        return transports.length();
+    }
+
+    /**
+     * 停止替换断开的连接，并关闭连接池中的所有连接
+     */
+    @Override
+    public void close() {
+        closed = true;
+        repairTask.cancel(false);
+        for (int i = 0; i < transports.length(); i++) {
+            Transport transport = transports.get(i);
+            if (transport instanceof Closeable) {
+                try {
+                    ((Closeable) transport).close();
+                } catch (IOException e) {
+                    logger.warn("Close connection to {} failed: {}.", address, e.toString());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.transport;
+
+import com.github.liyue2008.rpc.config.ConfigSupport;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 服务端在解码之后、调用 RequestHandler 之前的派发环节，决定请求在哪个线程上处理：
+ * <ul>
+ *     <li>DIRECT：直接在 Netty 的 I/O 线程上处理，适合非常快的或者本身就是异步的服务方法；</li>
+ *     <li>POOL：在一个固定大小的业务线程池中处理，慢的服务方法不会卡住同一个 I/O 线程上的其它连接；</li>
+ *     <li>VIRTUAL：每个请求一个虚拟线程，运行环境不支持虚拟线程时退化为每个请求一个普通线程。</li>
+ * </ul>
+ * 除了 DIRECT 之外，排队和正在处理的请求总数不超过 maxPending，
+ * 超过之后直接拒绝，由调用方返回 {@link com.github.liyue2008.rpc.transport.command.Code#OVERLOADED} 响应，
+ * 而不是让请求无限排队，时延无限增长。
+ * 处理请求的线程可以通过 {@link #current()} 找到派发它的 RequestDispatcher，把拆分出来的子任务（比如批量请求中的每个请求）
+ * 也交给它派发，同样受 maxPending 的限制。
+ * @author LiYue
+ * Date: 2019/10/10
+ */
+public class RequestDispatcher implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(RequestDispatcher.class);
+
+    public enum Mode {
+        DIRECT, POOL, VIRTUAL
+    }
+
+    private final Mode mode;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private static final ThreadLocal<RequestDispatcher> current = new ThreadLocal<>();
+
+    public RequestDispatcher() {
+        this(Mode.valueOf(ConfigSupport.getString("server.dispatch.mode", Mode.POOL.name()).toUpperCase()),
+                ConfigSupport.getInt("server.dispatch.threads", Runtime.getRuntime().availableProcessors() * 2),
+                ConfigSupport.getInt("server.dispatch.max.pending", 1024));
+    }
+
+    public RequestDispatcher(Mode mode, int threads, int maxPending) {
+        this.mode = mode;
+        this.maxPending = maxPending;
+        switch (mode) {
+            case POOL:
+                executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<>(), new DefaultThreadFactory("rpc-server-worker", true));
+                break;
+            case VIRTUAL:
+                executor = newVirtualThreadPerTaskExecutor();
+                break;
+            default:
+                executor = null;
+        }
+        logger.info("Request dispatch mode: {}, threads: {}, max pending: {}.", mode, threads, maxPending);
+    }
+
+    /**
+     * 派发一个请求
+     * @param task 处理请求的任务
+     * @return 排队的请求已经超过上限，拒绝处理返回false
+     */
+    public boolean dispatch(Runnable task) {
+        if (null == executor) {
+            runTask(task);
+            return true;
+        }
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    runTask(task);
+                } finally {
+                    pending.decrementAndGet();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            pending.decrementAndGet();
+            return false;
+        }
+    }
+
+    private void runTask(Runnable task) {
+        RequestDispatcher previous = current.get();
+        current.set(this);
+        try {
+            task.run();
+        } finally {
+            if (null == previous) {
+                current.remove();
+            } else {
+                current.set(previous);
+            }
+        }
+    }
+
+    /**
+     * @return 当前线程正在执行的任务是由哪个 RequestDispatcher 派发的，不在派发的任务中返回null
+     */
+    public static RequestDispatcher current() {
+        return current.get();
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * 当前排队和正在处理的请求数
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * 虚拟线程需要 JDK 21 以上，这里通过反射创建，编译和运行在低版本的 JDK 上也没有问题
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Virtual threads are not supported by this JVM, fall back to one platform thread per request.");
+            return Executors.newCachedThreadPool(new DefaultThreadFactory("rpc-server-worker", true));
+        }
+    }
+
+    @Override
+    public void close() {
+        if (null != executor) {
+            executor.shutdown();
+        }
+    }
+}
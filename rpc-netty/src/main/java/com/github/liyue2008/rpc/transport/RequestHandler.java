@@ -15,6 +15,8 @@ package com.github.liyue2008.rpc.transport;
 
 import com.github.liyue2008.rpc.transport.command.Command;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * 请求处理器
  * @author LiYue
@@ -28,6 +30,16 @@ public interface RequestHandler {
      */
     Command handle(Command requestCommand);
 
+    /**
+     * 异步处理请求，响应命令在返回的Future结束时才可用。
+     * 默认实现直接调用{@link #handle(Command)}。
+     * @param requestCommand 请求命令
+     * @return 响应命令的Future
+     */
+    default CompletableFuture<Command> handleAsync(Command requestCommand) {
+        return CompletableFuture.completedFuture(handle(requestCommand));
+    }
+
     /**
      * 支持的请求类型
      */
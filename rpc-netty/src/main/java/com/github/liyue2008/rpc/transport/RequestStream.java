@@ -0,0 +1,36 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.transport;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 服务端收到的客户端流：客户端发送的数据帧，由服务方法在业务线程中逐帧读取。
+ * 传输层按照服务方法读取的速度给客户端补充额度，所以服务端缓存的数据帧不会超过额度窗口。
+ * @author LiYue
+ * Date: 2019/10/15
+ */
+public interface RequestStream {
+    /**
+     * 等待客户端的下一帧数据。在业务线程中调用，可以阻塞，同一时刻只会有一个线程调用。
+     * 客户端取消、连接断开或者超时没有收到数据时抛出异常。
+     * @return 下一帧的 payload，由调用方释放；数据已经发完返回null
+     */
+    ByteBuf next() throws Exception;
+
+    /**
+     * 请求处理完成（已经返回响应）时由传输层调用一次，丢弃还没有读取的数据帧
+     */
+    void close();
+}
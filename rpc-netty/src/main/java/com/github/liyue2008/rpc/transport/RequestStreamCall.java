@@ -0,0 +1,83 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.transport;
+
+import com.github.liyue2008.rpc.transport.command.Command;
+import io.netty.buffer.ByteBuf;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 客户端一次客户端流式调用的句柄：打开流之后调用方一帧一帧地发送数据，最后收到服务端的一个普通响应。
+ * 客户端只在服务端给了额度之后才发送数据帧，额度用完 {@link #send(ByteBuf, long)} 就等待服务端补充，
+ * 所以服务端处理得慢，客户端发送数据的速度也会慢下来，服务端缓存的数据不会超过它给的额度。
+ * 句柄绑定在打开流的那条连接上，数据帧和取消都在这条连接上发送。
+ * @author LiYue
+ * Date: 2019/10/15
+ */
+public interface RequestStreamCall {
+    /**
+     * 服务端响应的Future，连接断开或者调用被取消时异常结束。
+     * 服务端可以在数据发完之前就返回响应（比如出错了），这时候不需要再发送数据。
+     * 返回的响应命令由调用方使用之后释放。
+     */
+    CompletableFuture<Command> getFuture();
+
+    /**
+     * 发送一帧数据，没有额度时等待服务端补充额度。payload 由这个方法负责释放。
+     * @param payload 这一帧的 payload，不能为空
+     * @param timeoutMillis 等待额度的超时时间，单位毫秒
+     * @return 调用已经结束（已经收到响应或者失败了），数据帧没有发送返回false
+     * @throws TimeoutException 等待额度超时
+     */
+    boolean send(ByteBuf payload, long timeoutMillis) throws InterruptedException, TimeoutException;
+
+    /**
+     * 数据已经发完，从这里开始计算等待响应的超时时间
+     * @param timeoutMillis 等待响应的超时时间，单位毫秒
+     */
+    void end(long timeoutMillis);
+
+    /**
+     * 取消这个调用：通知服务端停止读取，Future 以 {@link java.util.concurrent.CancellationException} 结束
+     */
+    void cancel();
+
+    /**
+     * 一个已经失败的调用，用于请求没能发出去的情况
+     */
+    static RequestStreamCall failed(Throwable cause) {
+        CompletableFuture<Command> future = new CompletableFuture<>();
+        future.completeExceptionally(cause);
+        return new RequestStreamCall() {
+            @Override
+            public CompletableFuture<Command> getFuture() {
+                return future;
+            }
+
+            @Override
+            public boolean send(ByteBuf payload, long timeoutMillis) {
+                payload.release();
+                return false;
+            }
+
+            @Override
+            public void end(long timeoutMillis) {}
+
+            @Override
+            public void cancel() {}
+        };
+    }
+}
@@ -14,8 +14,11 @@
 package com.github.liyue2008.rpc.transport;
 
 import com.github.liyue2008.rpc.transport.command.Command;
+import io.netty.util.Timeout;
 
 import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 /**
  * @author LiYue
@@ -24,14 +27,36 @@ import java.util.concurrent.CompletableFuture;
 public class ResponseFuture {
     private final int requestId;
     private final CompletableFuture<Command> future;
+    /**
+     * 流式调用中接收数据帧的一方，普通请求为null
+     */
+    private final Consumer<Command> frameConsumer;
+    /**
+     * 客户端流式调用中接收服务端额度的一方，其它请求为null
+     */
+    private final IntConsumer creditConsumer;
     /**
      * ResponseFuture创建时间
      */
     private final long timestamp;
+    /**
+     * 时间轮中这个请求的超时任务，请求正常结束时取消
+     */
+    private volatile Timeout timeout;
 
     public ResponseFuture(int requestId, CompletableFuture<Command> future) {
+        this(requestId, future, null);
+    }
+
+    public ResponseFuture(int requestId, CompletableFuture<Command> future, Consumer<Command> frameConsumer) {
+        this(requestId, future, frameConsumer, null);
+    }
+
+    public ResponseFuture(int requestId, CompletableFuture<Command> future, Consumer<Command> frameConsumer, IntConsumer creditConsumer) {
         this.requestId = requestId;
         this.future = future;
+        this.frameConsumer = frameConsumer;
+        this.creditConsumer = creditConsumer;
         timestamp = System.nanoTime();
     }
 
@@ -43,7 +68,40 @@ public class ResponseFuture {
         return future;
     }
 
+    public boolean isStream() {
+        return null != frameConsumer;
+    }
+
+    /**
+     * 收到流中的一帧数据，交给接收方之后由接收方负责释放
+     */
+    public void onFrame(Command frame) {
+        frameConsumer.accept(frame);
+    }
+
+    public boolean isRequestStream() {
+        return null != creditConsumer;
+    }
+
+    /**
+     * 客户端流式调用收到服务端给的额度
+     */
+    public void onCredits(int credits) {
+        creditConsumer.accept(credits);
+    }
+
     long getTimestamp() {
         return timestamp;
     }
+
+    void setTimeout(Timeout timeout) {
+        this.timeout = timeout;
+    }
+
+    void cancelTimeout() {
+        Timeout timeout = this.timeout;
+        if (null != timeout) {
+            timeout.cancel();
+        }
+    }
 }
@@ -0,0 +1,35 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.transport;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 服务端流式响应的数据来源，由传输层按照客户端给的额度逐帧拉取。
+ * @author LiYue
+ * Date: 2019/10/15
+ */
+public interface ResponseStream {
+    /**
+     * 把下一帧数据写入 payload。在业务线程中调用，可以阻塞，同一时刻只会有一个线程调用。
+     * @param payload 这一帧的 payload
+     * @return 没有更多数据返回false，这时写入 payload 的数据会被丢弃
+     */
+    boolean next(ByteBuf payload) throws Exception;
+
+    /**
+     * 流正常结束、出错、被取消或者连接断开时调用一次，释放数据来源占用的资源
+     */
+    void close();
+}
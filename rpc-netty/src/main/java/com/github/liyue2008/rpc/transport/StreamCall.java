@@ -0,0 +1,64 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.transport;
+
+import com.github.liyue2008.rpc.transport.command.Command;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 客户端一次流式调用的句柄。
+ * 服务端只在客户端给了额度之后才发送数据帧，客户端处理完一部分数据之后再通过 {@link #request(int)} 补充额度，
+ * 这样无论结果有多大，两端缓存的数据都不会超过客户端给的额度。
+ * 句柄绑定在打开流的那条连接上，额度和取消都在这条连接上发送。
+ * @author LiYue
+ * Date: 2019/10/15
+ */
+public interface StreamCall {
+    /**
+     * 流的最后一帧（一个普通的响应）的Future，连接断开或者调用被取消时异常结束。
+     * 返回的响应命令由调用方使用之后释放。
+     */
+    CompletableFuture<Command> getFuture();
+
+    /**
+     * 允许服务端再发送 credits 帧数据
+     */
+    void request(int credits);
+
+    /**
+     * 取消这个流：通知服务端停止发送，Future 以 {@link java.util.concurrent.CancellationException} 结束
+     */
+    void cancel();
+
+    /**
+     * 一个已经失败的流，用于请求没能发出去的情况
+     */
+    static StreamCall failed(Throwable cause) {
+        CompletableFuture<Command> future = new CompletableFuture<>();
+        future.completeExceptionally(cause);
+        return new StreamCall() {
+            @Override
+            public CompletableFuture<Command> getFuture() {
+                return future;
+            }
+
+            @Override
+            public void request(int credits) {}
+
+            @Override
+            public void cancel() {}
+        };
+    }
+}
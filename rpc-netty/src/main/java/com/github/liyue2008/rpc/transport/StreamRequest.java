@@ -0,0 +1,43 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.transport;
+
+import com.github.liyue2008.rpc.transport.command.Command;
+import com.github.liyue2008.rpc.transport.command.Header;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 客户端流式请求：传输层收到打开客户端流的请求（带着 {@link Header#FLAG_STREAM_INPUT}）之后，
+ * 把请求和之后到达的数据帧一起封装成这个命令交给 {@link RequestHandler}。
+ * 命令本身的 payload 是打开流的请求的 payload，数据帧通过 {@link #getStream()} 读取。
+ * @author LiYue
+ * Date: 2019/10/15
+ */
+public class StreamRequest extends Command {
+    private final RequestStream stream;
+
+    /**
+     * @param header 打开流的请求的请求头
+     * @param payload 打开流的请求的 payload
+     * @param stream 之后到达的数据帧
+     */
+    public StreamRequest(Header header, ByteBuf payload, RequestStream stream) {
+        super(header, payload);
+        this.stream = stream;
+    }
+
+    public RequestStream getStream() {
+        return stream;
+    }
+}
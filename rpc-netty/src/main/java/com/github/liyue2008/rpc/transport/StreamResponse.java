@@ -0,0 +1,43 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.transport;
+
+import com.github.liyue2008.rpc.transport.command.Command;
+import com.github.liyue2008.rpc.transport.command.ResponseHeader;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 流式响应：{@link RequestHandler} 对流式请求返回这个命令，
+ * 传输层先按照客户端给的额度，把 {@link ResponseStream} 中的数据一帧一帧地发出去，
+ * 数据发完之后，再把这个命令本身作为流的最后一帧发送。
+ * @author LiYue
+ * Date: 2019/10/15
+ */
+public class StreamResponse extends Command {
+    private final ResponseStream stream;
+
+    /**
+     * @param header 最后一帧的响应头
+     * @param payload 最后一帧的 payload
+     * @param stream 数据来源
+     */
+    public StreamResponse(ResponseHeader header, ByteBuf payload, ResponseStream stream) {
+        super(header, payload);
+        this.stream = stream;
+    }
+
+    public ResponseStream getStream() {
+        return stream;
+    }
+}
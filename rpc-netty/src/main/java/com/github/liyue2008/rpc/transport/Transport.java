@@ -16,6 +16,8 @@ package com.github.liyue2008.rpc.transport;
 import com.github.liyue2008.rpc.transport.command.Command;
 
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
 
 /**
  * @author LiYue
@@ -27,8 +29,73 @@ public interface Transport {
      * 请求和响应数据都抽象成了一个 Command 类
      * CompletableFuture 作为返回值，我们可以直接调用它的 get 方法来获取响应数据，这就相当于同步调用；
      * 也可以使用以 then 开头的一系列异步方法，指定当响应返回的时候，需要执行的操作，就等同于异步调用。
+     * 请求命令发送之后由 Transport 释放；返回的响应命令由调用方使用之后释放。
      * @param request 请求命令
      * @return 返回值是一个Future，Future
      */
     CompletableFuture<Command> send(Command request);
+
+    /**
+     * 发送请求命令，并指定这个请求的超时时间
+     * 超过超时时间还没有收到响应，返回的Future以{@link java.util.concurrent.TimeoutException}异常结束。
+     * @param request 请求命令
+     * @param timeoutMillis 超时时间，单位毫秒
+     * @return 返回值是一个Future，Future
+     */
+    CompletableFuture<Command> send(Command request, long timeoutMillis);
+
+    /**
+     * 发送一个流式请求：服务端对这个请求返回多帧数据，最后以一个普通的响应结束。
+     * 数据帧在收到之后交给 frameConsumer，由它负责释放，frameConsumer 在 I/O 线程中执行，不能阻塞。
+     * 服务端在收到额度之前不会发送数据帧，调用方需要通过返回的 {@link StreamCall#request(int)} 给出初始的额度。
+     * @param request 请求命令
+     * @param frameConsumer 接收数据帧
+     * @return 这次流式调用的句柄
+     */
+    StreamCall openStream(Command request, Consumer<Command> frameConsumer);
+
+    /**
+     * 发送一个客户端流式请求：请求之后，调用方通过返回的句柄用同一个请求id一帧一帧地发送数据，服务端最后返回一个普通的响应。
+     * 服务端在读取数据的同时给客户端补充额度，调用方在 {@link RequestStreamCall#send} 中等待额度。
+     * @param request 打开流的请求命令
+     * @return 这次客户端流式调用的句柄
+     */
+    RequestStreamCall openRequestStream(Command request);
+
+    /**
+     * 选择发送请求的连接：连接池从池中选择一条连接，单条连接返回自己。
+     * 需要在每个连接上保存状态的上层协议，先选择连接，再在这条连接上发送请求。
+     */
+    default Transport select() {
+        return this;
+    }
+
+    /**
+     * 按照路由键选择发送请求的连接：多个服务提供者之间按照负载均衡策略选择，
+     * 一致性哈希策略把路由键相同的请求发给同一个服务提供者；其它的 Transport 忽略路由键。
+     * @param key 路由键，可以为null
+     */
+    default Transport select(Object key) {
+        return select();
+    }
+
+    /**
+     * 连接上的属性，上层协议用来保存每个连接自己的状态，连接断开之后随连接一起丢弃
+     */
+    ConcurrentMap<String, Object> attributes();
+
+    /**
+     * 底层连接是否可用
+     */
+    boolean isActive();
+
+    /**
+     * 当前在途（已经发出、还没有收到响应）的请求数
+     */
+    int getInFlight();
+
+    /**
+     * 最近成功请求的响应时延的指数加权移动平均值，单位纳秒，还没有数据时为0
+     */
+    long getLatencyNanos();
 }
@@ -18,6 +18,24 @@ package com.github.liyue2008.rpc.transport;
  * Date: 2019/9/25
  */
 public interface TransportServer {
-    void start(RequestHandlerRegistry requestHandlerRegistry, int port) throws Exception;
+    /**
+     * 在所有网络接口上监听
+     */
+    default void start(RequestHandlerRegistry requestHandlerRegistry, int port) throws Exception {
+        start(requestHandlerRegistry, null, port);
+    }
+
+    /**
+     * 启动服务端
+     * @param host 监听的地址，null 表示所有网络接口
+     * @param port 监听的端口，0 表示由系统分配
+     */
+    void start(RequestHandlerRegistry requestHandlerRegistry, String host, int port) throws Exception;
+
+    /**
+     * 实际监听的端口，启动之后才有效
+     */
+    int getPort();
+
     void stop();
 }
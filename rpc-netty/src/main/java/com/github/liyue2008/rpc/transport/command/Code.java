@@ -24,6 +24,7 @@ public enum Code {
 
     SUCCESS(0, "SUCCESS"),
     NO_PROVIDER(-2, "NO_PROVIDER"),
+    OVERLOADED(-3, "OVERLOADED"),
     UNKNOWN_ERROR(-1, "UNKNOWN_ERROR");
 
     private static Map<Integer, Code> codes = new HashMap<>();
@@ -13,20 +13,36 @@
  */
 package com.github.liyue2008.rpc.transport.command;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ReferenceCounted;
+
 /**
- * Command 类包含一个命令头 Header 和一个 payload 字节数组。
- * payload 就是命令中要传输的数据，这里我们要求这个数据已经是被序列化之后生成的字节数组
+ * Command 类包含一个命令头 Header 和一个 payload。
+ * payload 就是命令中要传输的数据，这里我们要求这个数据已经是被序列化之后生成的字节数组，
+ * 或者是一个已经写好序列化数据的 Netty ByteBuf。
+ * 为了避免在解码、编码的时候复制 payload，payload 在内部总是以 ByteBuf 的形式保存：
+ * 解码时它是接收缓冲区的一个切片，编码时直接把它交给 Netty 发送，不会被复制到新的缓冲区中。
+ * 所以 Command 是带引用计数的，谁最后使用它，谁负责调用 {@link #release()}。
  * @author LiYue
  * Date: 2019/9/20
  */
-public class Command {
+public class Command implements ReferenceCounted {
     protected Header header;
+    private ByteBuf payloadBuffer;
     private byte [] payload;
 
     public Command(Header header, byte [] payload) {
         this.header = header;
-        this.payload = payload;
+        setPayload(payload);
+    }
+
+    public Command(Header header, ByteBuf payloadBuffer) {
+        this.header = header;
+        this.payloadBuffer = payloadBuffer;
     }
+
     public Header getHeader() {
         return header;
     }
@@ -35,11 +51,70 @@ public class Command {
         this.header = header;
     }
 
+    /**
+     * 以字节数组的形式获取 payload，payload 是 ByteBuf 的时候需要复制一次，
+     * 性能敏感的地方应该使用 {@link #getPayloadBuffer()}。
+     */
     public byte [] getPayload() {
+        if (null == payload) {
+            payload = ByteBufUtil.getBytes(payloadBuffer);
+        }
         return payload;
     }
 
     public void setPayload(byte [] payload) {
         this.payload = payload;
+        this.payloadBuffer = Unpooled.wrappedBuffer(payload);
+    }
+
+    /**
+     * 以 ByteBuf 的形式获取 payload，不复制数据。
+     * 返回的是一个共享数据和引用计数的副本，读取它不会影响其它使用者。
+     */
+    public ByteBuf getPayloadBuffer() {
+        return payloadBuffer.duplicate();
+    }
+
+    public int getPayloadLength() {
+        return payloadBuffer.readableBytes();
+    }
+
+    @Override
+    public int refCnt() {
+        return payloadBuffer.refCnt();
+    }
+
+    @Override
+    public Command retain() {
+        payloadBuffer.retain();
+        return this;
+    }
+
+    @Override
+    public Command retain(int increment) {
+        payloadBuffer.retain(increment);
+        return this;
+    }
+
+    @Override
+    public Command touch() {
+        payloadBuffer.touch();
+        return this;
+    }
+
+    @Override
+    public Command touch(Object hint) {
+        payloadBuffer.touch(hint);
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return payloadBuffer.release();
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        return payloadBuffer.release(decrement);
     }
 }
@@ -18,6 +18,38 @@ package com.github.liyue2008.rpc.transport.command;
  * Date: 2019/9/20
  */
 public class Header {
+    /**
+     * payload 是压缩过的
+     */
+    public static final int FLAG_COMPRESSED = 0x01;
+    /**
+     * 客户端能够解压缩，只出现在请求中。服务端收到之后才可以在响应中发送压缩过的 payload
+     */
+    public static final int FLAG_ACCEPT_COMPRESSION = 0x02;
+    /**
+     * 流式调用：请求带着这个标志，表示打开一个流；
+     * 响应带着这个标志，表示这是流中的一帧数据，后面还有。流的最后一帧是一个普通的响应。
+     * 请求同时带着 {@link #FLAG_STREAM_INPUT}，表示这是客户端流中的一帧数据。
+     */
+    public static final int FLAG_STREAM = 0x04;
+    /**
+     * 流式调用的额度：requestId 是流的请求id，payload 是一个 int。
+     * 客户端发给服务端的，正数表示服务端可以再发送这么多帧，负数表示客户端取消了这个流；
+     * 服务端发给客户端的（响应），表示客户端可以再发送这么多帧客户端流的数据。
+     */
+    public static final int FLAG_STREAM_CREDIT = 0x08;
+    /**
+     * 服务端能够解压缩，只由服务端的响应编码器写入。客户端收到之后才可以在请求中发送压缩过的 payload。
+     * 老版本的服务端会把请求的 version 字段（包括其中的标志位）原样写回响应，
+     * 所以客户端不能以 {@link #FLAG_ACCEPT_COMPRESSION} 判断服务端能否解压缩，只能看这个客户端从不发送的标志。
+     */
+    public static final int FLAG_COMPRESSION_ACK = 0x10;
+    /**
+     * 客户端流式调用，只出现在请求中：只带着这个标志的请求打开一个客户端流，
+     * 之后客户端用同一个 requestId 一帧一帧地发送数据，数据帧同时带着 {@link #FLAG_STREAM}，
+     * payload 为空的数据帧表示数据已经发完了。客户端只在收到服务端的额度之后才发送数据帧，服务端最后返回一个普通的响应。
+     */
+    public static final int FLAG_STREAM_INPUT = 0x20;
     /**
      * 用于唯一标识一个请求命令
      * requestId 可以用于请求和响应的配对儿
@@ -31,6 +63,11 @@ public class Header {
      * 为了能让接收命令一方来识别收到的是什么命令，以便路由到对应的处理类中去
      */
     private int type;
+    /**
+     * 传输层的标志位，不属于业务数据，发送的时候由编码器填写。
+     * 在网络上它占用 version 字段的最高一个字节，所以命令头的长度不变。
+     */
+    private int flags;
 
     public Header() {}
     public Header(int type, int version, int requestId) {
@@ -58,6 +95,18 @@ public class Header {
         return type;
     }
 
+    public int getFlags() {
+        return flags;
+    }
+
+    public void setFlags(int flags) {
+        this.flags = flags;
+    }
+
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
     public int length() {
         return Integer.BYTES + Integer.BYTES + Integer.BYTES;
     }
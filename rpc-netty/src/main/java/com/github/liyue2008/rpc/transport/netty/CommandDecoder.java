@@ -13,27 +13,55 @@
  */
 package com.github.liyue2008.rpc.transport.netty;
 
+import com.github.liyue2008.rpc.config.ConfigSupport;
 import com.github.liyue2008.rpc.transport.command.Command;
 import com.github.liyue2008.rpc.transport.command.Header;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
 
 import java.util.List;
 
 /**
+ * 解码时 payload 直接引用接收缓冲区，只有压缩过的 payload 需要解压到一个新的缓冲区中。
+ * 收到的命令头带着能解压缩的标志时，记录下来，之后这个连接上发送的 payload 就可以压缩了。
+ * 命令的长度和解压之后的 payload 长度都来自网络，都不能超过 simple.rpc.transport.max.frame.size 字节（默认16MB），
+ * 超过的连接直接断开，不会因为错误或者恶意的数据申请大量内存。
  * @author LiYue
  * Date: 2019/9/23
  */
 public abstract class CommandDecoder extends ByteToMessageDecoder {
     private static final int LENGTH_FIELD_LENGTH = Integer.BYTES;
+    private static final int VERSION_MASK = (1 << CommandEncoder.FLAGS_SHIFT) - 1;
+    static final int MAX_FRAME_SIZE = ConfigSupport.getInt("transport.max.frame.size", 16 * 1024 * 1024);
+    private final PayloadCompression compression;
+    /**
+     * 对方能够解压缩的标志：服务端看请求中的 {@link Header#FLAG_ACCEPT_COMPRESSION}，
+     * 客户端看响应中的 {@link Header#FLAG_COMPRESSION_ACK}
+     */
+    private final int peerAcceptsCompressionFlag;
+
+    protected CommandDecoder(CompressionMetrics compressionMetrics, int peerAcceptsCompressionFlag) {
+        this.compression = new PayloadCompression(compressionMetrics);
+        this.peerAcceptsCompressionFlag = peerAcceptsCompressionFlag;
+    }
+
     @Override
     protected void decode(ChannelHandlerContext channelHandlerContext, ByteBuf byteBuf, List<Object> list) {
         if (!byteBuf.isReadable(LENGTH_FIELD_LENGTH)) {
             return;
         }
         byteBuf.markReaderIndex();
-        int length = byteBuf.readInt() - LENGTH_FIELD_LENGTH;
+        int frameLength = byteBuf.readInt();
+        if (frameLength < LENGTH_FIELD_LENGTH) {
+            throw new CorruptedFrameException(String.format("Invalid frame length: %d!", frameLength));
+        }
+        if (frameLength > MAX_FRAME_SIZE) {
+            throw new TooLongFrameException(String.format("Frame length %d exceeds max frame size %d!", frameLength, MAX_FRAME_SIZE));
+        }
+        int length = frameLength - LENGTH_FIELD_LENGTH;
 
         if (byteBuf.readableBytes() < length) {
             byteBuf.resetReaderIndex();
@@ -42,8 +70,20 @@ public abstract class CommandDecoder extends ByteToMessageDecoder {
 
         Header header = decodeHeader(channelHandlerContext, byteBuf);
         int payloadLength  = length - header.length();
-        byte [] payload = new byte[payloadLength];
-        byteBuf.readBytes(payload);
+        header.setFlags(header.getVersion() >>> CommandEncoder.FLAGS_SHIFT);
+        header.setVersion(header.getVersion() & VERSION_MASK);
+        PayloadCompression.onPeerFlags(channelHandlerContext.channel(), header.hasFlag(peerAcceptsCompressionFlag));
+        // payload 直接引用接收缓冲区中的数据，不复制，由最后使用 Command 的一方负责释放
+        ByteBuf payload = byteBuf.readRetainedSlice(payloadLength);
+        if (header.hasFlag(Header.FLAG_COMPRESSED)) {
+            ByteBuf compressed = payload;
+            try {
+                payload = compression.decompress(channelHandlerContext.alloc(), compressed);
+            } finally {
+                // 解压之后压缩的数据就不用了，解压失败也要释放
+                compressed.release();
+            }
+        }
         list.add(new Command(header, payload));
     }
 
@@ -17,31 +17,63 @@ import com.github.liyue2008.rpc.transport.command.Command;
 import com.github.liyue2008.rpc.transport.command.Header;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+import java.util.List;
 
 /**
+ * 编码时只把长度和命令头写入一个新的小缓冲区，和 payload 组合成一个 CompositeByteBuf 交给 Netty 发送，payload 不再复制一次。
+ * 每个 Command 编码成一个 ByteBuf，后面的 {@link WriteBatchHandler} 按照 ByteBuf 统计的就是 Command 的数量。
+ * 对方能够解压缩，并且 payload 超过阈值时，发送的是压缩之后的 payload，见 {@link PayloadCompression}。
+ * Command 发送之后由 MessageToMessageEncoder 负责释放。
  * @author LiYue
  * Date: 2019/9/23
  */
-public abstract class CommandEncoder extends MessageToByteEncoder {
+public abstract class CommandEncoder extends MessageToMessageEncoder<Command> {
+    private static final int LENGTH_FIELD_LENGTH = Integer.BYTES;
+    /**
+     * 标志位占用 version 字段的最高一个字节
+     */
+    static final int FLAGS_SHIFT = 24;
+    private final PayloadCompression compression;
+    /**
+     * 告诉对方自己能够解压缩的标志：请求是 {@link Header#FLAG_ACCEPT_COMPRESSION}，响应是 {@link Header#FLAG_COMPRESSION_ACK}
+     */
+    private final int acceptCompressionFlag;
+
+    protected CommandEncoder(CompressionMetrics compressionMetrics, int acceptCompressionFlag) {
+        this.compression = new PayloadCompression(compressionMetrics);
+        this.acceptCompressionFlag = acceptCompressionFlag;
+    }
 
     @Override
-    protected void encode(ChannelHandlerContext channelHandlerContext, Object o, ByteBuf byteBuf) throws Exception {
-        if(!(o instanceof Command)) {
-            throw new Exception(String.format("Unknown type: %s!", o.getClass().getCanonicalName()));
+    protected void encode(ChannelHandlerContext channelHandlerContext, Command command, List<Object> out) throws Exception {
+        Header header = command.getHeader();
+        ByteBuf payload = compression.compress(channelHandlerContext.channel(), channelHandlerContext.alloc(), command.getPayloadBuffer());
+        // 压缩相关的标志由编码器决定，其它标志保持调用方设置的值
+        int flags = header.getFlags() & ~(Header.FLAG_COMPRESSED | Header.FLAG_ACCEPT_COMPRESSION | Header.FLAG_COMPRESSION_ACK)
+                | acceptCompressionFlag;
+        if (null == payload) {
+            payload = command.getPayloadBuffer().retain();
+        } else {
+            flags |= Header.FLAG_COMPRESSED;
         }
-
-        Command command = (Command) o;
-        byteBuf.writeInt(Integer.BYTES + command.getHeader().length() + command.getPayload().length);
-        encodeHeader(channelHandlerContext, command.getHeader(), byteBuf);
-        byteBuf.writeBytes(command.getPayload());
-
-
+        header.setFlags(flags);
+        ByteBuf headerBuffer = channelHandlerContext.alloc().ioBuffer(LENGTH_FIELD_LENGTH + header.length());
+        try {
+            headerBuffer.writeInt(LENGTH_FIELD_LENGTH + header.length() + payload.readableBytes());
+            encodeHeader(channelHandlerContext, header, headerBuffer);
+        } catch (Throwable t) {
+            headerBuffer.release();
+            payload.release();
+            throw t;
+        }
+        out.add(channelHandlerContext.alloc().compositeDirectBuffer(2).addComponents(true, headerBuffer, payload));
     }
 
     protected void encodeHeader(ChannelHandlerContext channelHandlerContext, Header header, ByteBuf byteBuf) throws Exception {
         byteBuf.writeInt(header.getType());
-        byteBuf.writeInt(header.getVersion());
+        byteBuf.writeInt(header.getFlags() << FLAGS_SHIFT | header.getVersion());
         byteBuf.writeInt(header.getRequestId());
     }
 }
@@ -0,0 +1,103 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.transport.netty;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * payload 压缩的统计数据：发送方向压缩前后的字节数，接收方向解压前后的字节数，
+ * 以及超过阈值但是压缩之后没有变小、按原样发送的消息数
+ * @author LiYue
+ * Date: 2019/10/14
+ */
+public class CompressionMetrics {
+    private final AtomicLong compressedMessages = new AtomicLong(0L);
+    private final AtomicLong compressInputBytes = new AtomicLong(0L);
+    private final AtomicLong compressOutputBytes = new AtomicLong(0L);
+    private final AtomicLong skippedMessages = new AtomicLong(0L);
+    private final AtomicLong decompressedMessages = new AtomicLong(0L);
+    private final AtomicLong decompressInputBytes = new AtomicLong(0L);
+    private final AtomicLong decompressOutputBytes = new AtomicLong(0L);
+
+    void recordCompressed(int uncompressedBytes, int compressedBytes) {
+        compressedMessages.incrementAndGet();
+        compressInputBytes.addAndGet(uncompressedBytes);
+        compressOutputBytes.addAndGet(compressedBytes);
+    }
+
+    void recordSkipped() {
+        skippedMessages.incrementAndGet();
+    }
+
+    void recordDecompressed(int compressedBytes, int uncompressedBytes) {
+        decompressedMessages.incrementAndGet();
+        decompressInputBytes.addAndGet(compressedBytes);
+        decompressOutputBytes.addAndGet(uncompressedBytes);
+    }
+
+    public long getCompressedMessages() {
+        return compressedMessages.get();
+    }
+
+    /**
+     * 发送的消息中，被压缩的 payload 压缩前的总字节数
+     */
+    public long getCompressInputBytes() {
+        return compressInputBytes.get();
+    }
+
+    /**
+     * 发送的消息中，被压缩的 payload 压缩后的总字节数
+     */
+    public long getCompressOutputBytes() {
+        return compressOutputBytes.get();
+    }
+
+    public long getSkippedMessages() {
+        return skippedMessages.get();
+    }
+
+    public long getDecompressedMessages() {
+        return decompressedMessages.get();
+    }
+
+    /**
+     * 收到的消息中，压缩过的 payload 解压前的总字节数
+     */
+    public long getDecompressInputBytes() {
+        return decompressInputBytes.get();
+    }
+
+    /**
+     * 收到的消息中，压缩过的 payload 解压后的总字节数
+     */
+    public long getDecompressOutputBytes() {
+        return decompressOutputBytes.get();
+    }
+
+    /**
+     * 发送方向的压缩率：压缩后字节数 / 压缩前字节数
+     */
+    public double getCompressRatio() {
+        long input = getCompressInputBytes();
+        return input == 0 ? 0D : (double) getCompressOutputBytes() / input;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("compressed messages: %d, bytes: %d -> %d (ratio %.2f), skipped messages: %d, decompressed messages: %d, bytes: %d -> %d",
+                getCompressedMessages(), getCompressInputBytes(), getCompressOutputBytes(), getCompressRatio(), getSkippedMessages(),
+                getDecompressedMessages(), getDecompressInputBytes(), getDecompressOutputBytes());
+    }
+}
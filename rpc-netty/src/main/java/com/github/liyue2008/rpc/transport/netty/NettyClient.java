@@ -13,6 +13,8 @@
  */
 package com.github.liyue2008.rpc.transport.netty;
 
+import com.github.liyue2008.rpc.config.ConfigSupport;
+import com.github.liyue2008.rpc.transport.InFlightLimiter;
 import com.github.liyue2008.rpc.transport.InFlightRequests;
 import com.github.liyue2008.rpc.transport.Transport;
 import com.github.liyue2008.rpc.transport.TransportClient;
@@ -29,10 +31,17 @@ import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.net.SocketAddress;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -40,14 +49,22 @@ import java.util.concurrent.TimeoutException;
  * Date: 2019/9/20
  */
 public class NettyClient implements TransportClient {
+    private static final Logger logger = LoggerFactory.getLogger(NettyClient.class);
+    /**
+     * 时间轮每一格的时长，也就是请求超时的精度
+     */
+    private final static long TIMEOUT_TICK_MS = ConfigSupport.getLong("client.timeout.tick.ms", 10L);
+    private final static int TIMEOUT_TICKS_PER_WHEEL = ConfigSupport.getInt("client.timeout.ticks.per.wheel", 512);
     private EventLoopGroup ioEventGroup;
     private Bootstrap bootstrap;
-    private final InFlightRequests inFlightRequests;
+    /**
+     * 所有连接共享的请求超时时间轮
+     */
+    private final Timer timer = new HashedWheelTimer(new DefaultThreadFactory("rpc-request-timeout", true),
+            TIMEOUT_TICK_MS, TimeUnit.MILLISECONDS, TIMEOUT_TICKS_PER_WHEEL);
     private List<Channel> channels = new LinkedList<>();
-
-    public NettyClient() {
-        inFlightRequests = new InFlightRequests();
-    }
+    private final WriteBatchMetrics writeBatchMetrics = new WriteBatchMetrics();
+    private final CompressionMetrics compressionMetrics = new CompressionMetrics();
 
     private Bootstrap newBootstrap(ChannelHandler channelHandler, EventLoopGroup ioEventGroup) {
         Bootstrap bootstrap = new Bootstrap();
@@ -60,7 +77,12 @@ public class NettyClient implements TransportClient {
 
     @Override
     public Transport createTransport(SocketAddress address, long connectionTimeout) throws InterruptedException, TimeoutException {
-        return new NettyTransport(createChannel(address, connectionTimeout), inFlightRequests);
+        Channel channel = createChannel(address, connectionTimeout);
+        InFlightLimiter limiter = new InFlightLimiter();
+        // 每个连接一个在途请求表，收到响应的时候只需要在这个连接自己的表中查找
+        InFlightRequests inFlightRequests = new InFlightRequests(timer, limiter.getMaxLimit());
+        channel.attr(ResponseInvocation.IN_FLIGHT_REQUESTS).set(inFlightRequests);
+        return new NettyTransport(channel, inFlightRequests, limiter);
     }
 
     private synchronized Channel createChannel(SocketAddress address, long connectionTimeout) throws InterruptedException, TimeoutException {
@@ -85,16 +107,25 @@ public class NettyClient implements TransportClient {
                 throw new IllegalStateException();
             }
             channels.add(channel);
+            // 断开的连接会被连接池替换掉，这里不再保留
+            channel.closeFuture().addListener(future -> removeChannel(channel));
             return channel;
     }
+    private synchronized void removeChannel(Channel channel) {
+        channels.remove(channel);
+    }
+
     private ChannelHandler newChannelHandlerPipeline() {
         return new ChannelInitializer<Channel>() {
             @Override
             protected void initChannel(Channel channel) {
+                if (WriteBatchHandler.isEnabled()) {
+                    channel.pipeline().addLast(WriteBatchHandler.newInstance(writeBatchMetrics));
+                }
                 channel.pipeline()
-                        .addLast(new ResponseDecoder())
-                        .addLast(new RequestEncoder())
-                        .addLast(new ResponseInvocation(inFlightRequests));
+                        .addLast(new ResponseDecoder(compressionMetrics))
+                        .addLast(new RequestEncoder(compressionMetrics))
+                        .addLast(new ResponseInvocation());
             }
         };
     }
@@ -110,7 +141,7 @@ public class NettyClient implements TransportClient {
 
     @Override
     public void close() {
-        for (Channel channel : channels) {
+        for (Channel channel : snapshotChannels()) {
             if(null != channel) {
                 channel.close();
             }
@@ -118,6 +149,28 @@ public class NettyClient implements TransportClient {
         if (ioEventGroup != null) {
             ioEventGroup.shutdownGracefully();
         }
-        inFlightRequests.close();
+        timer.stop();
+        if (WriteBatchHandler.isEnabled()) {
+            logger.info("Client write batches: {}.", writeBatchMetrics);
+        }
+        logger.info("Client payload compression: {}.", compressionMetrics);
+    }
+
+    private synchronized List<Channel> snapshotChannels() {
+        return new ArrayList<>(channels);
+    }
+
+    /**
+     * 合并写入的统计数据，只有开启了合并flush才有数据
+     */
+    public WriteBatchMetrics getWriteBatchMetrics() {
+        return writeBatchMetrics;
+    }
+
+    /**
+     * payload 压缩的统计数据
+     */
+    public CompressionMetrics getCompressionMetrics() {
+        return compressionMetrics;
     }
 }
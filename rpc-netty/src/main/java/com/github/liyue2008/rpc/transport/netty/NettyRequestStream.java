@@ -0,0 +1,164 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.transport.netty;
+
+import com.github.liyue2008.rpc.config.ConfigSupport;
+import com.github.liyue2008.rpc.transport.RequestStream;
+import com.github.liyue2008.rpc.transport.command.Command;
+import com.github.liyue2008.rpc.transport.command.Header;
+import com.github.liyue2008.rpc.transport.command.ResponseHeader;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 服务端的一个客户端流：收到打开客户端流的请求时创建，请求处理完成（返回响应）时关闭。
+ * <ul>
+ *     <li>数据帧在 I/O 线程中收到之后放入队列，服务方法在业务线程中等待和读取；</li>
+ *     <li>收到打开流的请求时给客户端 simple.rpc.server.stream.window（默认64）帧的额度，
+ *     服务方法每读完一半再补充，所以队列中缓存的数据帧不会超过这个窗口，超过的说明客户端不遵守额度，流以错误结束；</li>
+ *     <li>超过 simple.rpc.server.stream.idle.timeout.ms（默认60秒）没有收到下一帧，读取以超时失败；</li>
+ *     <li>读取会阻塞，不能在 I/O 线程中读取，所以 DIRECT 派发模式下不能使用客户端流。</li>
+ * </ul>
+ * @author LiYue
+ * Date: 2019/10/15
+ */
+class NettyRequestStream implements RequestStream {
+    private static final int WINDOW = Math.max(2, ConfigSupport.getInt("server.stream.window", 64));
+    private static final long IDLE_TIMEOUT_MS = ConfigSupport.getLong("server.stream.idle.timeout.ms", 60000L);
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private final ChannelHandlerContext ctx;
+    private final Header requestHeader;
+    private final Map<Integer, NettyRequestStream> streams;
+    /**
+     * 给了客户端、还没有收到数据帧的额度
+     */
+    private final AtomicInteger credits = new AtomicInteger(0);
+    private volatile boolean closed = false;
+    /**
+     * 只在读取的线程中读写
+     */
+    private boolean done = false;
+    private int consumed = 0;
+
+    NettyRequestStream(ChannelHandlerContext ctx, Header requestHeader, Map<Integer, NettyRequestStream> streams) {
+        this.ctx = ctx;
+        this.requestHeader = requestHeader;
+        this.streams = streams;
+    }
+
+    /**
+     * 给客户端初始的额度
+     */
+    void start() {
+        grant(WINDOW);
+    }
+
+    /**
+     * 收到一帧数据，在 I/O 线程中执行
+     */
+    void onFrame(Command frame) {
+        if (frame.getPayloadLength() == 0) {
+            // 数据已经发完，之后不会再有这个流的数据帧
+            frame.release();
+            streams.remove(requestHeader.getRequestId(), this);
+            queue.add(END);
+            return;
+        }
+        if (credits.decrementAndGet() < 0) {
+            frame.release();
+            fail(new IllegalStateException(String.format("Stream %d window exceeded!", requestHeader.getRequestId())));
+            return;
+        }
+        queue.add(frame);
+        if (closed) {
+            // 关闭的同时收到的数据帧，关闭时没有清理到
+            drain();
+        }
+    }
+
+    /**
+     * 客户端取消了流，或者连接断开了
+     */
+    void cancel() {
+        fail(new CancellationException(String.format("Stream %d cancelled!", requestHeader.getRequestId())));
+    }
+
+    private void fail(Exception cause) {
+        streams.remove(requestHeader.getRequestId(), this);
+        queue.add(cause);
+    }
+
+    @Override
+    public ByteBuf next() throws Exception {
+        if (ctx.executor().inEventLoop()) {
+            throw new IllegalStateException("Can not read request stream in I/O thread!");
+        }
+        if (done) {
+            return null;
+        }
+        Object item = queue.poll(IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        if (null == item) {
+            done = true;
+            throw new TimeoutException(String.format("Stream %d idle timeout after %d ms!", requestHeader.getRequestId(), IDLE_TIMEOUT_MS));
+        }
+        if (item == END) {
+            done = true;
+            return null;
+        }
+        if (item instanceof Exception) {
+            done = true;
+            throw (Exception) item;
+        }
+        if (++consumed >= WINDOW / 2) {
+            grant(consumed);
+            consumed = 0;
+        }
+        // 数据帧的 payload 引用的是接收缓冲区，由调用方读完之后释放
+        return ((Command) item).getPayloadBuffer();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        streams.remove(requestHeader.getRequestId(), this);
+        drain();
+    }
+
+    private void grant(int n) {
+        credits.addAndGet(n);
+        ResponseHeader creditHeader = new ResponseHeader(requestHeader.getType(), requestHeader.getVersion(), requestHeader.getRequestId());
+        creditHeader.setFlags(Header.FLAG_STREAM_CREDIT);
+        // 发送失败说明连接已经断开，流会在连接断开的时候取消
+        ctx.writeAndFlush(new Command(creditHeader, ctx.alloc().buffer(Integer.BYTES).writeInt(n)));
+    }
+
+    private void drain() {
+        Object item;
+        while (null != (item = queue.poll())) {
+            if (item instanceof Command) {
+                ((Command) item).release();
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.transport.netty;
+
+import com.github.liyue2008.rpc.transport.InFlightRequests;
+import com.github.liyue2008.rpc.transport.RequestStreamCall;
+import com.github.liyue2008.rpc.transport.ResponseFuture;
+import com.github.liyue2008.rpc.transport.command.Command;
+import com.github.liyue2008.rpc.transport.command.Header;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 一条连接上的一次客户端流式调用。数据帧带着 {@link Header#FLAG_STREAM_INPUT} 和 {@link Header#FLAG_STREAM}，
+ * 使用打开流的请求id；取消和服务端流一样，是带着 {@link Header#FLAG_STREAM_CREDIT} 的单向命令。
+ * 服务端的额度在 I/O 线程中收到，发送数据的线程在额度用完时等待，调用结束时也会被唤醒。
+ * @author LiYue
+ * Date: 2019/10/15
+ */
+class NettyRequestStreamCall implements RequestStreamCall {
+    private final Channel channel;
+    private final InFlightRequests inFlightRequests;
+    private final Header header;
+    private final CompletableFuture<Command> future;
+    /**
+     * 服务端给的、还没有用掉的额度，用 this 作为锁
+     */
+    private int credits = 0;
+
+    NettyRequestStreamCall(Channel channel, InFlightRequests inFlightRequests, Header header, CompletableFuture<Command> future) {
+        this.channel = channel;
+        this.inFlightRequests = inFlightRequests;
+        this.header = header;
+        this.future = future;
+        future.whenComplete((response, throwable) -> {
+            synchronized (this) {
+                notifyAll();
+            }
+        });
+    }
+
+    /**
+     * 收到服务端的额度，在 I/O 线程中执行
+     */
+    synchronized void onCredits(int n) {
+        if (n > 0) {
+            credits = (int) Math.min(Integer.MAX_VALUE, (long) credits + n);
+            notifyAll();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Command> getFuture() {
+        return future;
+    }
+
+    @Override
+    public boolean send(ByteBuf payload, long timeoutMillis) throws InterruptedException, TimeoutException {
+        boolean sent = false;
+        try {
+            synchronized (this) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                while (credits <= 0 && !future.isDone()) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0L) {
+                        throw new TimeoutException(String.format("Stream %d wait credits timeout after %d ms!",
+                                header.getRequestId(), timeoutMillis));
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+                if (future.isDone()) {
+                    return false;
+                }
+                credits--;
+            }
+            write(payload);
+            sent = true;
+            return true;
+        } finally {
+            if (!sent) {
+                payload.release();
+            }
+        }
+    }
+
+    @Override
+    public void end(long timeoutMillis) {
+        if (!future.isDone()) {
+            // 空的数据帧表示数据已经发完，不占用额度
+            write(Unpooled.EMPTY_BUFFER);
+            ResponseFuture responseFuture = inFlightRequests.get(header.getRequestId());
+            if (null != responseFuture) {
+                inFlightRequests.timeout(responseFuture, timeoutMillis);
+            }
+        }
+    }
+
+    @Override
+    public void cancel() {
+        // 已经结束的调用不在在途请求中，不需要通知服务端
+        if (null != inFlightRequests.remove(header.getRequestId())) {
+            Header cancelHeader = new Header(header.getType(), header.getVersion(), header.getRequestId());
+            cancelHeader.setFlags(Header.FLAG_STREAM_CREDIT);
+            channel.writeAndFlush(new Command(cancelHeader, channel.alloc().buffer(Integer.BYTES).writeInt(NettyStreamCall.CANCEL)));
+            future.completeExceptionally(new CancellationException(
+                    String.format("Stream %d cancelled!", header.getRequestId())));
+        }
+    }
+
+    /**
+     * 发送失败说明连接已经断开，调用会在连接断开的时候结束，这里不需要再处理
+     */
+    private void write(ByteBuf payload) {
+        Header frameHeader = new Header(header.getType(), header.getVersion(), header.getRequestId());
+        frameHeader.setFlags(Header.FLAG_STREAM_INPUT | Header.FLAG_STREAM);
+        channel.writeAndFlush(new Command(frameHeader, payload));
+    }
+}
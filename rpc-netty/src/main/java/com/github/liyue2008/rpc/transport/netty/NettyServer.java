@@ -13,6 +13,8 @@
  */
 package com.github.liyue2008.rpc.transport.netty;
 
+import com.github.liyue2008.rpc.config.ConfigSupport;
+import com.github.liyue2008.rpc.transport.RequestDispatcher;
 import com.github.liyue2008.rpc.transport.RequestHandlerRegistry;
 import com.github.liyue2008.rpc.transport.TransportServer;
 import io.netty.bootstrap.ServerBootstrap;
@@ -21,8 +23,11 @@ import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
@@ -30,58 +35,138 @@ import io.netty.channel.socket.nio.NioServerSocketChannel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
+ * 服务端的线程和 Socket 参数都可以通过 simple.rpc.server.* 配置：
+ * <ul>
+ *     <li>io.threads：I/O 线程数，默认（0）使用 Netty 的默认值，CPU核数的2倍；accept.threads：接受连接的线程数，默认1；</li>
+ *     <li>reuseport：在 Linux 上使用 epoll 时，用 SO_REUSEPORT 在同一个端口上绑定
+ *     reuseport.listeners 个（默认CPU核数）监听 Socket，每个监听 Socket 一个接受连接的线程，
+ *     由内核把新连接分散到这些监听 Socket 上，默认关闭。不支持 epoll 时退回只绑定一次；</li>
+ *     <li>io.affinity：和 reuseport 一起使用，每个监听 Socket 固定使用一个 I/O 线程接受连接，
+ *     它接受的连接也由这个线程处理，连接从建立到关闭都不需要在线程之间交接；</li>
+ *     <li>tcp.nodelay（默认true）、so.sndbuf、so.rcvbuf、so.backlog（默认0，使用系统的默认值）；</li>
+ *     <li>write.buffer.low.watermark、write.buffer.high.watermark：连接写缓冲区的高低水位，默认32KB和64KB。</li>
+ * </ul>
  * @author LiYue
  * Date: 2019/9/20
  */
 public class NettyServer implements TransportServer {
     private static final Logger logger = LoggerFactory.getLogger(NettyServer.class);
-    private int port;
+    private static final int IO_THREADS = ConfigSupport.getInt("server.io.threads", 0);
+    private static final int ACCEPT_THREADS = Math.max(1, ConfigSupport.getInt("server.accept.threads", 1));
+    private static final boolean REUSE_PORT = ConfigSupport.getBoolean("server.reuseport", false);
+    private static final int REUSE_PORT_LISTENERS = Math.max(1,
+            ConfigSupport.getInt("server.reuseport.listeners", Runtime.getRuntime().availableProcessors()));
+    private static final boolean IO_AFFINITY = ConfigSupport.getBoolean("server.io.affinity", false);
+    private static final boolean TCP_NODELAY = ConfigSupport.getBoolean("server.tcp.nodelay", true);
+    private static final int SO_SNDBUF = ConfigSupport.getInt("server.so.sndbuf", 0);
+    private static final int SO_RCVBUF = ConfigSupport.getInt("server.so.rcvbuf", 0);
+    private static final int SO_BACKLOG = ConfigSupport.getInt("server.so.backlog", 0);
+    private static final int WRITE_BUFFER_LOW_WATERMARK = ConfigSupport.getInt("server.write.buffer.low.watermark", 32 * 1024);
+    private static final int WRITE_BUFFER_HIGH_WATERMARK = ConfigSupport.getInt("server.write.buffer.high.watermark", 64 * 1024);
+    private String host;
+    private volatile int port;
     private EventLoopGroup acceptEventGroup;
     private EventLoopGroup ioEventGroup;
-    private Channel channel;
+    /**
+     * 所有的监听 Socket，开启 SO_REUSEPORT 时有多个
+     */
+    private final List<Channel> channels = new ArrayList<>();
     private RequestHandlerRegistry requestHandlerRegistry;
+    private RequestDispatcher requestDispatcher;
+    private final WriteBatchMetrics writeBatchMetrics = new WriteBatchMetrics();
+    private final CompressionMetrics compressionMetrics = new CompressionMetrics();
 
     @Override
-    public void start(RequestHandlerRegistry requestHandlerRegistry, int port) throws Exception {
+    public void start(RequestHandlerRegistry requestHandlerRegistry, String host, int port) throws Exception {
+        this.host = host;
         this.port = port;
         this.requestHandlerRegistry = requestHandlerRegistry;
-        EventLoopGroup acceptEventGroup = newEventLoopGroup();
-        EventLoopGroup ioEventGroup = newEventLoopGroup();
+        this.requestDispatcher = new RequestDispatcher();
+        boolean reusePort = REUSE_PORT && Epoll.isAvailable();
+        if (REUSE_PORT && !reusePort) {
+            logger.warn("SO_REUSEPORT requires epoll, which is not available, bind only one listener.");
+        }
+        int listeners = reusePort ? REUSE_PORT_LISTENERS : 1;
+        boolean affinity = reusePort && IO_AFFINITY;
+        this.ioEventGroup = newEventLoopGroup(IO_THREADS);
+        // 固定线程时，接受连接也在 I/O 线程中，不需要单独的线程
+        this.acceptEventGroup = affinity ? null : newEventLoopGroup(Math.max(ACCEPT_THREADS, listeners));
         ChannelHandler channelHandlerPipeline = newChannelHandlerPipeline();
-        ServerBootstrap serverBootstrap = newBootstrap(channelHandlerPipeline, acceptEventGroup, ioEventGroup);
-        Channel channel = doBind(serverBootstrap);
-
-        this.acceptEventGroup = acceptEventGroup;
-        this.ioEventGroup = ioEventGroup;
-        this.channel = channel;
+        for (int i = 0; i < listeners; i++) {
+            EventLoopGroup parentGroup = acceptEventGroup, childGroup = ioEventGroup;
+            if (affinity) {
+                EventLoop eventLoop = ioEventGroup.next();
+                parentGroup = childGroup = eventLoop;
+            }
+            ServerBootstrap serverBootstrap = newBootstrap(channelHandlerPipeline, parentGroup, childGroup, reusePort);
+            channels.add(doBind(serverBootstrap));
+        }
+        logger.info("Server listening on {}:{}, listeners: {}, SO_REUSEPORT: {}, I/O affinity: {}.", null == host ? "*" : host, this.port, listeners, reusePort, affinity);
+    }
 
+    @Override
+    public int getPort() {
+        return port;
     }
 
     @Override
     public void stop() {
+        for (Channel channel : channels) {
+            channel.close();
+        }
         if (acceptEventGroup != null) {
             acceptEventGroup.shutdownGracefully();
         }
         if (ioEventGroup != null) {
             ioEventGroup.shutdownGracefully();
         }
-        if (channel != null) {
-            channel.close();
+        if (requestDispatcher != null) {
+            requestDispatcher.close();
         }
+        if (WriteBatchHandler.isEnabled()) {
+            logger.info("Server write batches: {}.", writeBatchMetrics);
+        }
+        logger.info("Server payload compression: {}.", compressionMetrics);
+    }
+
+    /**
+     * 合并写入的统计数据，只有开启了合并flush才有数据
+     */
+    public WriteBatchMetrics getWriteBatchMetrics() {
+        return writeBatchMetrics;
+    }
+
+    /**
+     * payload 压缩的统计数据
+     */
+    public CompressionMetrics getCompressionMetrics() {
+        return compressionMetrics;
     }
 
+    /**
+     * 绑定一个监听 Socket。端口是0时由系统分配，开启 SO_REUSEPORT 的其它监听 Socket 绑定到同一个端口上
+     */
     private Channel doBind(ServerBootstrap serverBootstrap) throws Exception {
-        return serverBootstrap.bind(port)
+        Channel channel = (null == host ? serverBootstrap.bind(port) : serverBootstrap.bind(host, port))
                 .sync()
                 .channel();
+        port = ((InetSocketAddress) channel.localAddress()).getPort();
+        return channel;
     }
 
-    private EventLoopGroup newEventLoopGroup() {
+    /**
+     * @param threads 线程数，0 使用 Netty 的默认值
+     */
+    private EventLoopGroup newEventLoopGroup(int threads) {
         if (Epoll.isAvailable()) {
-            return new EpollEventLoopGroup();
+            return new EpollEventLoopGroup(threads);
         } else {
-            return new NioEventLoopGroup();
+            return new NioEventLoopGroup(threads);
         }
     }
 
@@ -89,20 +174,41 @@ public class NettyServer implements TransportServer {
         return new ChannelInitializer<Channel>() {
             @Override
             protected void initChannel(Channel channel) {
+                if (WriteBatchHandler.isEnabled()) {
+                    channel.pipeline().addLast(WriteBatchHandler.newInstance(writeBatchMetrics));
+                }
                 channel.pipeline()
-                        .addLast(new RequestDecoder())
-                        .addLast(new ResponseEncoder())
-                        .addLast(new RequestInvocation(requestHandlerRegistry));
+                        .addLast(new RequestDecoder(compressionMetrics))
+                        .addLast(new ResponseEncoder(compressionMetrics))
+                        .addLast(new RequestInvocation(requestHandlerRegistry, requestDispatcher));
             }
         };
     }
 
-    private ServerBootstrap newBootstrap(ChannelHandler channelHandler, EventLoopGroup acceptEventGroup, EventLoopGroup ioEventGroup) {
+    private ServerBootstrap newBootstrap(ChannelHandler channelHandler, EventLoopGroup acceptEventGroup, EventLoopGroup ioEventGroup,
+                                         boolean reusePort) {
         ServerBootstrap serverBootstrap = new ServerBootstrap();
         serverBootstrap.channel(Epoll.isAvailable() ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
                 .group(acceptEventGroup, ioEventGroup)
                 .childHandler(channelHandler)
-                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childOption(ChannelOption.TCP_NODELAY, TCP_NODELAY)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                        new WriteBufferWaterMark(WRITE_BUFFER_LOW_WATERMARK, Math.max(WRITE_BUFFER_LOW_WATERMARK, WRITE_BUFFER_HIGH_WATERMARK)));
+        if (reusePort) {
+            serverBootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+        if (SO_BACKLOG > 0) {
+            serverBootstrap.option(ChannelOption.SO_BACKLOG, SO_BACKLOG);
+        }
+        if (SO_RCVBUF > 0) {
+            // 接收窗口大于64KB需要在监听 Socket 上设置，新连接握手时才能协商窗口扩大选项
+            serverBootstrap.option(ChannelOption.SO_RCVBUF, SO_RCVBUF)
+                    .childOption(ChannelOption.SO_RCVBUF, SO_RCVBUF);
+        }
+        if (SO_SNDBUF > 0) {
+            serverBootstrap.childOption(ChannelOption.SO_SNDBUF, SO_SNDBUF);
+        }
         return serverBootstrap;
     }
 
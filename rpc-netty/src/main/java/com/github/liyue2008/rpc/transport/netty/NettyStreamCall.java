@@ -0,0 +1,80 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.transport.netty;
+
+import com.github.liyue2008.rpc.transport.InFlightRequests;
+import com.github.liyue2008.rpc.transport.StreamCall;
+import com.github.liyue2008.rpc.transport.command.Command;
+import com.github.liyue2008.rpc.transport.command.Header;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 一条连接上的一次流式调用。额度和取消都是带着 {@link Header#FLAG_STREAM_CREDIT} 的单向命令，
+ * 使用流的请求id，服务端收到之后不返回响应。
+ * @author LiYue
+ * Date: 2019/10/15
+ */
+class NettyStreamCall implements StreamCall {
+    /**
+     * 额度命令中表示取消的值
+     */
+    static final int CANCEL = -1;
+    private final Channel channel;
+    private final InFlightRequests inFlightRequests;
+    private final Header header;
+    private final CompletableFuture<Command> future;
+
+    NettyStreamCall(Channel channel, InFlightRequests inFlightRequests, Header header, CompletableFuture<Command> future) {
+        this.channel = channel;
+        this.inFlightRequests = inFlightRequests;
+        this.header = header;
+        this.future = future;
+    }
+
+    @Override
+    public CompletableFuture<Command> getFuture() {
+        return future;
+    }
+
+    @Override
+    public void request(int credits) {
+        if (credits > 0 && !future.isDone()) {
+            writeCredits(credits);
+        }
+    }
+
+    @Override
+    public void cancel() {
+        // 已经结束的流不在在途请求中，不需要通知服务端
+        if (null != inFlightRequests.remove(header.getRequestId())) {
+            writeCredits(CANCEL);
+            future.completeExceptionally(new CancellationException(
+                    String.format("Stream %d cancelled!", header.getRequestId())));
+        }
+    }
+
+    /**
+     * 发送失败说明连接已经断开，流会在连接断开的时候结束，这里不需要再处理
+     */
+    private void writeCredits(int credits) {
+        Header creditHeader = new Header(header.getType(), header.getVersion(), header.getRequestId());
+        creditHeader.setFlags(Header.FLAG_STREAM_CREDIT);
+        ByteBuf payload = channel.alloc().buffer(Integer.BYTES).writeInt(credits);
+        channel.writeAndFlush(new Command(creditHeader, payload));
+    }
+}
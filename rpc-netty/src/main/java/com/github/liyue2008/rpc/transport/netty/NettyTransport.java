@@ -13,48 +13,153 @@
  */
 package com.github.liyue2008.rpc.transport.netty;
 
+import com.github.liyue2008.rpc.config.ConfigSupport;
+import com.github.liyue2008.rpc.transport.InFlightLimiter;
 import com.github.liyue2008.rpc.transport.InFlightRequests;
+import com.github.liyue2008.rpc.transport.RequestStreamCall;
 import com.github.liyue2008.rpc.transport.ResponseFuture;
+import com.github.liyue2008.rpc.transport.StreamCall;
 import com.github.liyue2008.rpc.transport.Transport;
+import com.github.liyue2008.rpc.transport.command.Code;
 import com.github.liyue2008.rpc.transport.command.Command;
+import com.github.liyue2008.rpc.transport.command.Header;
+import com.github.liyue2008.rpc.transport.command.ResponseHeader;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.util.ReferenceCountUtil;
 
+import java.io.Closeable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
 
 /**
  * @author LiYue
  * Date: 2019/9/20
  */
-public class NettyTransport implements Transport {
+public class NettyTransport implements Transport, Closeable {
+    /**
+     * 没有指定超时时间的请求，使用这个默认的超时时间
+     */
+    private final static long DEFAULT_TIMEOUT_MS = ConfigSupport.getLong("client.request.timeout.ms", 10000L);
     private final Channel channel;
     /**
      * NettyTransport类使用 inFlightRequests 维护在途的所有请求CompletableFuture
      */
     private final InFlightRequests inFlightRequests;
+    /**
+     * 这个连接自己的在途请求窗口
+     */
+    private final InFlightLimiter limiter;
+    private final ConcurrentMap<String, Object> attributes = new ConcurrentHashMap<>();
 
-    NettyTransport(Channel channel, InFlightRequests inFlightRequests) {
+    NettyTransport(Channel channel, InFlightRequests inFlightRequests, InFlightLimiter limiter) {
         this.channel = channel;
         this.inFlightRequests = inFlightRequests;
+        this.limiter = limiter;
     }
 
 
+    @Override
+    public  CompletableFuture<Command> send(Command request) {
+        return send(request, DEFAULT_TIMEOUT_MS);
+    }
+
     /**
      * 这个 send 方法的实现，本质上就是一个异步方法，在把请求数据发出去之后就返回了，并不会阻塞当前这个线程去等待响应返回来
      * @param request 请求命令
+     * @param timeoutMillis 超时时间，单位毫秒
      * @return
      */
     @Override
-    public  CompletableFuture<Command> send(Command request) {
+    public CompletableFuture<Command> send(Command request, long timeoutMillis) {
         // 构建返回值
         CompletableFuture<Command> completableFuture = new CompletableFuture<>();
+        // 窗口已满，快速失败，不阻塞发送请求的线程
+        if (!limiter.tryAcquire()) {
+            request.release();
+            completableFuture.completeExceptionally(tooManyInFlightRequests());
+            return completableFuture;
+        }
+        long start = System.nanoTime();
+        // 无论请求以何种方式结束（收到响应、发送失败、超时），都要归还窗口，并用结果调整窗口大小
+        completableFuture.whenComplete((response, throwable) -> {
+            if (null == throwable && !isOverloaded(response)) {
+                limiter.onSuccess(System.nanoTime() - start);
+            } else {
+                limiter.onDropped();
+            }
+        });
+        write(request, new ResponseFuture(request.getHeader().getRequestId(), completableFuture), timeoutMillis);
+        return completableFuture;
+    }
+
+    /**
+     * 流式调用和普通请求一样占用一个在途请求的位置，直到流结束。
+     * 流的时长取决于数据量和调用方的处理速度，所以没有兜底超时，正常结束和取消时也不用来调整窗口大小。
+     */
+    @Override
+    public StreamCall openStream(Command request, Consumer<Command> frameConsumer) {
+        if (!limiter.tryAcquire()) {
+            request.release();
+            return StreamCall.failed(tooManyInFlightRequests());
+        }
+        CompletableFuture<Command> completableFuture = streamFuture();
+        Header header = request.getHeader();
+        header.setFlags(header.getFlags() | Header.FLAG_STREAM);
+        write(request, new ResponseFuture(header.getRequestId(), completableFuture, frameConsumer), 0L);
+        return new NettyStreamCall(channel, inFlightRequests, header, completableFuture);
+    }
+
+    /**
+     * 客户端流式调用和服务端流一样占用一个在途请求的位置，直到收到响应。
+     * 发送数据的时长取决于数据量和服务端的处理速度，所以打开流的时候不登记兜底超时，数据发完之后才开始计算。
+     */
+    @Override
+    public RequestStreamCall openRequestStream(Command request) {
+        if (!limiter.tryAcquire()) {
+            request.release();
+            return RequestStreamCall.failed(tooManyInFlightRequests());
+        }
+        CompletableFuture<Command> completableFuture = streamFuture();
+        Header header = request.getHeader();
+        header.setFlags(header.getFlags() | Header.FLAG_STREAM_INPUT);
+        NettyRequestStreamCall call = new NettyRequestStreamCall(channel, inFlightRequests, header, completableFuture);
+        write(request, new ResponseFuture(header.getRequestId(), completableFuture, null, call::onCredits), 0L);
+        return call;
+    }
+
+    /**
+     * 流式调用的Future：结束时归还窗口，正常结束和取消都不用来调整窗口大小
+     */
+    private CompletableFuture<Command> streamFuture() {
+        CompletableFuture<Command> completableFuture = new CompletableFuture<>();
+        completableFuture.whenComplete((response, throwable) -> {
+            if ((null == throwable && !isOverloaded(response)) || throwable instanceof CancellationException) {
+                limiter.release();
+            } else {
+                limiter.onDropped();
+            }
+        });
+        return completableFuture;
+    }
+
+    private RejectedExecutionException tooManyInFlightRequests() {
+        return new RejectedExecutionException(String.format("Too many in-flight requests, limit: %d!", limiter.getLimit()));
+    }
+
+    private void write(Command request, ResponseFuture responseFuture, long timeoutMillis) {
+        CompletableFuture<Command> completableFuture = responseFuture.getFuture();
         try {
             /**
              * 第一件事儿是把请求中的 requestId 和返回的 completableFuture 一起，构建了一个 ResponseFuture 对象，
              * 然后把这个对象放到了 inFlightRequests 这个变量中。inFlightRequests 中存放了所有在途的请求，
              * 也就是已经发出了请求但还没有收到响应的这些 responseFuture 对象
              */
-            inFlightRequests.put(new ResponseFuture(request.getHeader().getRequestId(), completableFuture));
+            inFlightRequests.put(responseFuture, timeoutMillis);
             /**
              * 第二件事儿就是调用 netty 发送数据的方法，把这个 request 命令发给对方。
              * 这里面需要注意的一点是，已经发出去的请求，有可能会因为网络连接断开或者对方进程崩溃等各种异常情况，
@@ -75,10 +180,49 @@ public class NettyTransport implements Transport {
         } catch (Throwable t) {
             // 处理发送异常
             inFlightRequests.remove(request.getHeader().getRequestId());
+            ReferenceCountUtil.safeRelease(request);
             completableFuture.completeExceptionally(t);
         }
-        return completableFuture;
     }
 
+    /**
+     * 服务端过载拒绝的请求和失败的请求一样，需要缩小窗口
+     */
+    private static boolean isOverloaded(Command response) {
+        return response.getHeader() instanceof ResponseHeader &&
+                ((ResponseHeader) response.getHeader()).getCode() == Code.OVERLOADED.getCode();
+    }
+
+    @Override
+    public ConcurrentMap<String, Object> attributes() {
+        return attributes;
+    }
+
+    @Override
+    public boolean isActive() {
+        return channel.isActive();
+    }
+
+    @Override
+    public int getInFlight() {
+        return limiter.getInFlight();
+    }
+
+    @Override
+    public long getLatencyNanos() {
+        return limiter.getLatencyNanos();
+    }
+
+    public InFlightLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * 关闭连接，连接上的在途请求由 {@link ResponseInvocation} 在连接断开时结束
+     */
+    @Override
+    public void close() {
+        channel.close();
+    }
 
 }
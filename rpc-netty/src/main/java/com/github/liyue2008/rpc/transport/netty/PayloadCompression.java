@@ -0,0 +1,138 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.transport.netty;
+
+import com.github.liyue2008.rpc.config.ConfigSupport;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.compression.Snappy;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+/**
+ * payload 压缩，使用 Netty 自带的 Snappy 实现，不需要引入新的依赖。
+ * 是否压缩是每个连接单独协商的：请求头都带着 {@link com.github.liyue2008.rpc.transport.command.Header#FLAG_ACCEPT_COMPRESSION}，
+ * 响应头都带着 {@link com.github.liyue2008.rpc.transport.command.Header#FLAG_COMPRESSION_ACK}，
+ * 收到过对方这个标志的连接，说明对方能解压，之后超过阈值的 payload 才会被压缩。
+ * 两个方向用不同的标志，老版本的服务端把请求的标志原样写回响应，也不会让客户端误以为它能解压。
+ * 所以新老版本混用的时候，老版本永远不会收到压缩过的 payload。
+ * 压缩后的格式：int 压缩前的长度，然后是若干个数据块，每块是 int 块长度 + 一个 Snappy 块。
+ * Netty 的 Snappy 块编码用 short 保存偏移量，所以每块最多压缩 32KB 数据。
+ * 通过配置 simple.rpc.transport.compression.enabled=false 关闭发送方向的压缩，解压缩总是支持的。
+ * @author LiYue
+ * Date: 2019/10/14
+ */
+class PayloadCompression {
+    private final static boolean ENABLED = ConfigSupport.getBoolean("transport.compression.enabled", true);
+    private final static int THRESHOLD = ConfigSupport.getInt("transport.compression.threshold", 8 * 1024);
+    private final static int BLOCK_SIZE = 32 * 1024;
+    private final static AttributeKey<Boolean> PEER_ACCEPTS_COMPRESSION = AttributeKey.valueOf("simple.rpc.peerAcceptsCompression");
+
+    private final CompressionMetrics metrics;
+    /**
+     * Snappy 不是线程安全的，编码器和解码器都是每个连接一个，只在连接的 EventLoop 中使用
+     */
+    private final Snappy snappy = new Snappy();
+
+    PayloadCompression(CompressionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * 记录对方是否能解压缩
+     */
+    static void onPeerFlags(Channel channel, boolean acceptsCompression) {
+        if (acceptsCompression) {
+            Attribute<Boolean> attribute = channel.attr(PEER_ACCEPTS_COMPRESSION);
+            if (null == attribute.get()) {
+                attribute.set(Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * 按需压缩 payload，不修改 payload 的 readerIndex
+     * @return 压缩之后的新 ByteBuf，调用方负责释放；不需要压缩或者压缩之后没有变小，返回null
+     */
+    ByteBuf compress(Channel channel, ByteBufAllocator allocator, ByteBuf payload) {
+        int length = payload.readableBytes();
+        if (!ENABLED || length < THRESHOLD || null == channel.attr(PEER_ACCEPTS_COMPRESSION).get()) {
+            return null;
+        }
+        ByteBuf compressed = allocator.buffer(length);
+        try {
+            compressed.writeInt(length);
+            int offset = payload.readerIndex();
+            int end = offset + length;
+            while (offset < end && compressed.readableBytes() < length) {
+                int blockLength = Math.min(BLOCK_SIZE, end - offset);
+                int lengthIndex = compressed.writerIndex();
+                compressed.writeInt(0);
+                // Snappy 只能从 readerIndex 为0的 ByteBuf 开始压缩，所以每块都传一个切片
+                snappy.encode(payload.slice(offset, blockLength), compressed, blockLength);
+                snappy.reset();
+                compressed.setInt(lengthIndex, compressed.writerIndex() - lengthIndex - Integer.BYTES);
+                offset += blockLength;
+            }
+            if (compressed.readableBytes() >= length) {
+                compressed.release();
+                metrics.recordSkipped();
+                return null;
+            }
+            metrics.recordCompressed(length, compressed.readableBytes());
+            return compressed;
+        } catch (Throwable t) {
+            compressed.release();
+            throw t;
+        }
+    }
+
+    /**
+     * 解压缩，读完 compressed 中所有可读的数据。
+     * 压缩前的长度超过 {@link CommandDecoder#MAX_FRAME_SIZE} 的，申请内存之前就拒绝
+     * @return 解压之后的新 ByteBuf，调用方负责释放
+     */
+    ByteBuf decompress(ByteBufAllocator allocator, ByteBuf compressed) {
+        int compressedLength = compressed.readableBytes();
+        int length = compressed.readInt();
+        if (length < 0) {
+            throw new CorruptedFrameException(String.format("Invalid uncompressed length: %d!", length));
+        }
+        if (length > CommandDecoder.MAX_FRAME_SIZE) {
+            throw new TooLongFrameException(String.format("Uncompressed length %d exceeds max frame size %d!",
+                    length, CommandDecoder.MAX_FRAME_SIZE));
+        }
+        // 压缩前的长度来自网络，最大容量限制为这个长度，不会因为错误的数据无限制地申请内存
+        ByteBuf payload = allocator.buffer(Math.min(length, compressedLength * 4), length);
+        try {
+            while (compressed.isReadable()) {
+                snappy.decode(compressed.readSlice(compressed.readInt()), payload);
+                snappy.reset();
+            }
+            if (payload.readableBytes() != length) {
+                throw new CorruptedFrameException(String.format("Uncompressed length mismatch, expected: %d, actual: %d!",
+                        length, payload.readableBytes()));
+            }
+            metrics.recordDecompressed(compressedLength, length);
+            return payload;
+        } catch (Throwable t) {
+            payload.release();
+            snappy.reset();
+            throw t;
+        }
+    }
+}
@@ -22,6 +22,10 @@ import io.netty.channel.ChannelHandlerContext;
  * Date: 2019/9/20
  */
 public class RequestDecoder extends CommandDecoder {
+    public RequestDecoder(CompressionMetrics compressionMetrics) {
+        super(compressionMetrics, Header.FLAG_ACCEPT_COMPRESSION);
+    }
+
 
     @Override
     protected Header decodeHeader(ChannelHandlerContext channelHandlerContext, ByteBuf byteBuf) {
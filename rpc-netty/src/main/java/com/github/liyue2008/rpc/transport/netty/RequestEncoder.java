@@ -22,6 +22,10 @@ import io.netty.channel.ChannelHandlerContext;
  * Date: 2019/9/20
  */
 public class RequestEncoder extends CommandEncoder {
+    public RequestEncoder(CompressionMetrics compressionMetrics) {
+        super(compressionMetrics, Header.FLAG_ACCEPT_COMPRESSION);
+    }
+
     @Override
     protected void encodeHeader(ChannelHandlerContext channelHandlerContext, Header header, ByteBuf byteBuf) throws Exception {
         super.encodeHeader(channelHandlerContext, header, byteBuf);
@@ -13,17 +13,29 @@
  */
 package com.github.liyue2008.rpc.transport.netty;
 
+import com.github.liyue2008.rpc.transport.RequestDispatcher;
 import com.github.liyue2008.rpc.transport.RequestHandler;
 import com.github.liyue2008.rpc.transport.RequestHandlerRegistry;
+import com.github.liyue2008.rpc.transport.StreamRequest;
+import com.github.liyue2008.rpc.transport.StreamResponse;
+import com.github.liyue2008.rpc.transport.command.Code;
 import com.github.liyue2008.rpc.transport.command.Command;
+import com.github.liyue2008.rpc.transport.command.Header;
+import com.github.liyue2008.rpc.transport.command.ResponseHeader;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * @author LiYue
  * Date: 2019/9/20
@@ -31,10 +43,20 @@ import org.slf4j.LoggerFactory;
 @ChannelHandler.Sharable
 public class RequestInvocation extends SimpleChannelInboundHandler<Command> {
     private static final Logger logger = LoggerFactory.getLogger(RequestInvocation.class);
+    /**
+     * 每个连接上还没有结束的流，保存在连接的属性中
+     */
+    private static final AttributeKey<Map<Integer, ServerStream>> STREAMS = AttributeKey.valueOf("streams");
+    /**
+     * 每个连接上还没有结束的客户端流，保存在连接的属性中
+     */
+    private static final AttributeKey<Map<Integer, NettyRequestStream>> REQUEST_STREAMS = AttributeKey.valueOf("requestStreams");
     private final RequestHandlerRegistry requestHandlerRegistry;
+    private final RequestDispatcher requestDispatcher;
 
-    RequestInvocation(RequestHandlerRegistry requestHandlerRegistry) {
+    RequestInvocation(RequestHandlerRegistry requestHandlerRegistry, RequestDispatcher requestDispatcher) {
         this.requestHandlerRegistry = requestHandlerRegistry;
+        this.requestDispatcher = requestDispatcher;
     }
 
     /**
@@ -48,30 +70,234 @@ public class RequestInvocation extends SimpleChannelInboundHandler<Command> {
      */
     @Override
     protected void channelRead0(ChannelHandlerContext channelHandlerContext, Command request) throws Exception {
+        if (request.getHeader().hasFlag(Header.FLAG_STREAM_CREDIT)) {
+            // 流式调用的额度直接在 I/O 线程中处理，不需要派发，也没有响应
+            onCredits(channelHandlerContext, request);
+            return;
+        }
+        if (request.getHeader().hasFlag(Header.FLAG_STREAM_INPUT) && request.getHeader().hasFlag(Header.FLAG_STREAM)) {
+            // 客户端流的数据帧同样在 I/O 线程中直接交给这个流，不需要派发
+            onInputFrame(channelHandlerContext, request);
+            return;
+        }
         RequestHandler handler = requestHandlerRegistry.get(request.getHeader().getType());
         if(null != handler) {
-            Command response = handler.handle(request);
-            if(null != response) {
-                /**
-                 * 在服务端的业务逻辑中创建一个返回值 CompletableFuture 对象，
-                 * 之后服务端真正的业务逻辑完全可以在一个线程池中异步处理，
-                 * 业务逻辑完成之后再调用这个 CompletableFuture 对象的 complete 方法，
-                 * 完成异步通知；
-                 */
-                channelHandlerContext.writeAndFlush(response).addListener((ChannelFutureListener) channelFuture -> {
-                    if (!channelFuture.isSuccess()) {
-                        logger.warn("Write response failed!", channelFuture.cause());
-                        channelHandlerContext.channel().close();
-                    }
-                });
-            } else {
-                logger.warn("Response is null!");
+            // 流式请求在 I/O 线程中登记，这样之后收到的额度一定能找到这个流
+            ServerStream stream = request.getHeader().hasFlag(Header.FLAG_STREAM) ? openStream(channelHandlerContext, request.getHeader()) : null;
+            // 客户端流也在这里登记，之后收到的数据帧一定能找到这个流
+            NettyRequestStream requestStream = request.getHeader().hasFlag(Header.FLAG_STREAM_INPUT) ?
+                    openRequestStream(channelHandlerContext, request.getHeader()) : null;
+            Command command = null == requestStream ? request :
+                    new StreamRequest(request.getHeader(), request.getPayloadBuffer(), requestStream);
+            if (null != requestStream) {
+                // 在派发之前给出初始的额度，这样额度一定在响应之前发出去
+                requestStream.start();
+            }
+            // 由 requestDispatcher 决定在哪个线程上处理请求，避免慢的服务方法卡住 I/O 线程。
+            // 请求的 payload 引用的是接收缓冲区，这里返回之后就会被释放，处理完之前需要多持有一个引用。
+            command.retain();
+            if (!requestDispatcher.dispatch(() -> {
+                try {
+                    handle(channelHandlerContext, handler, command);
+                } finally {
+                    command.release();
+                }
+            })) {
+                command.release();
+                if (null != stream) {
+                    streamsOf(channelHandlerContext).remove(request.getHeader().getRequestId(), stream);
+                }
+                if (null != requestStream) {
+                    requestStream.close();
+                }
+                // 服务端已经过载，直接返回OVERLOADED错误响应，不让请求继续排队
+                Header header = request.getHeader();
+                write(channelHandlerContext, new Command(new ResponseHeader(header.getType(), header.getVersion(), header.getRequestId(),
+                        Code.OVERLOADED.getCode(), "Server overloaded!"), new byte[0]));
             }
         } else {
             throw new Exception(String.format("No handler for request with type: %d!", request.getHeader().getType()));
         }
     }
 
+    private void handle(ChannelHandlerContext channelHandlerContext, RequestHandler handler, Command request) {
+        try {
+            handler.handleAsync(request).whenComplete((response, throwable) -> {
+                // 已经有了处理结果，客户端流中还没有读取的数据不再需要
+                closeRequestStream(request);
+                if(null != response) {
+                    /**
+                     * 在服务端的业务逻辑中创建一个返回值 CompletableFuture 对象，
+                     * 之后服务端真正的业务逻辑完全可以在一个线程池中异步处理，
+                     * 业务逻辑完成之后再调用这个 CompletableFuture 对象的 complete 方法，
+                     * 完成异步通知；
+                     */
+                    if (request.getHeader().hasFlag(Header.FLAG_STREAM) || response instanceof StreamResponse) {
+                        onStreamResponse(channelHandlerContext, request.getHeader(), response);
+                    } else {
+                        write(channelHandlerContext, response);
+                    }
+                } else {
+                    onError(channelHandlerContext, request.getHeader(), throwable);
+                }
+            });
+        } catch (Throwable t) {
+            closeRequestStream(request);
+            onError(channelHandlerContext, request.getHeader(), t);
+        }
+    }
+
+    private static void closeRequestStream(Command request) {
+        if (request instanceof StreamRequest) {
+            ((StreamRequest) request).getStream().close();
+        }
+    }
+
+    /**
+     * 处理失败也要返回 UNKNOWN_ERROR 响应，否则调用方要一直等到超时，在途请求的位置也一直被占用
+     */
+    private void onError(ChannelHandlerContext channelHandlerContext, Header header, Throwable throwable) {
+        if (throwable instanceof CompletionException && null != throwable.getCause()) {
+            throwable = throwable.getCause();
+        }
+        logger.warn("Exception: ", throwable);
+        Command response = new Command(new ResponseHeader(header.getType(), header.getVersion(), header.getRequestId(),
+                Code.UNKNOWN_ERROR.getCode(), null == throwable ? "Response is null!" : throwable.getMessage()), new byte[0]);
+        if (header.hasFlag(Header.FLAG_STREAM)) {
+            // 流式请求的错误响应作为流的最后一帧发送，同时结束这个流
+            onStreamResponse(channelHandlerContext, header, response);
+        } else {
+            write(channelHandlerContext, response);
+        }
+    }
+
+    private ServerStream openStream(ChannelHandlerContext channelHandlerContext, Header header) {
+        Map<Integer, ServerStream> streams = streamsOf(channelHandlerContext);
+        ServerStream stream = new ServerStream(channelHandlerContext, header, streams, requestDispatcher);
+        streams.put(header.getRequestId(), stream);
+        return stream;
+    }
+
+    private NettyRequestStream openRequestStream(ChannelHandlerContext channelHandlerContext, Header header) {
+        Map<Integer, NettyRequestStream> requestStreams = requestStreamsOf(channelHandlerContext);
+        NettyRequestStream requestStream = new NettyRequestStream(channelHandlerContext, header, requestStreams);
+        requestStreams.put(header.getRequestId(), requestStream);
+        return requestStream;
+    }
+
+    /**
+     * 客户端流的数据帧交给流之后由流负责释放，SimpleChannelInboundHandler 释放的是这里多持有的引用。
+     * 找不到说明请求已经处理完了，剩下的数据帧直接丢弃
+     */
+    private void onInputFrame(ChannelHandlerContext channelHandlerContext, Command frame) {
+        NettyRequestStream requestStream = requestStreamsOf(channelHandlerContext).get(frame.getHeader().getRequestId());
+        if (null != requestStream) {
+            frame.retain();
+            requestStream.onFrame(frame);
+        } else if (logger.isDebugEnabled()) {
+            logger.debug("Drop stream frame of request {}.", frame.getHeader().getRequestId());
+        }
+    }
+
+    /**
+     * 流式请求的处理结果：返回 StreamResponse 的开始发送数据帧；
+     * 返回普通响应的（比如找不到服务方法）直接作为流的最后一帧发送。
+     * 不是流式请求却返回了 StreamResponse 的，客户端没法接收数据帧，返回错误响应。
+     */
+    private void onStreamResponse(ChannelHandlerContext channelHandlerContext, Header header, Command response) {
+        ServerStream stream = header.hasFlag(Header.FLAG_STREAM) ? streamsOf(channelHandlerContext).get(header.getRequestId()) : null;
+        if (response instanceof StreamResponse) {
+            if (null != stream) {
+                stream.start((StreamResponse) response);
+                return;
+            }
+            ((StreamResponse) response).getStream().close();
+            response.release();
+            response = new Command(new ResponseHeader(header.getType(), header.getVersion(), header.getRequestId(),
+                    Code.UNKNOWN_ERROR.getCode(), header.hasFlag(Header.FLAG_STREAM) ? "Stream closed!" : "Not a stream request!"), new byte[0]);
+        } else if (null != stream) {
+            streamsOf(channelHandlerContext).remove(header.getRequestId(), stream);
+        }
+        write(channelHandlerContext, response);
+    }
+
+    /**
+     * 额度命令不派发，SimpleChannelInboundHandler 在这里返回之后释放它。
+     * 客户端流只会收到取消，额度是服务端给客户端的
+     */
+    private void onCredits(ChannelHandlerContext channelHandlerContext, Command command) {
+        int credits = command.getPayloadBuffer().readInt();
+        // 找不到说明流已经结束了
+        ServerStream stream = streamsOf(channelHandlerContext).get(command.getHeader().getRequestId());
+        if (null != stream) {
+            if (credits > 0) {
+                stream.grant(credits);
+            } else {
+                stream.cancel();
+            }
+            return;
+        }
+        NettyRequestStream requestStream = requestStreamsOf(channelHandlerContext).get(command.getHeader().getRequestId());
+        if (null != requestStream && credits < 0) {
+            requestStream.cancel();
+        }
+    }
+
+    private static Map<Integer, ServerStream> streamsOf(ChannelHandlerContext channelHandlerContext) {
+        Attribute<Map<Integer, ServerStream>> attribute = channelHandlerContext.channel().attr(STREAMS);
+        Map<Integer, ServerStream> streams = attribute.get();
+        if (null == streams) {
+            streams = new ConcurrentHashMap<>();
+            Map<Integer, ServerStream> old = attribute.setIfAbsent(streams);
+            if (null != old) {
+                streams = old;
+            }
+        }
+        return streams;
+    }
+
+    private static Map<Integer, NettyRequestStream> requestStreamsOf(ChannelHandlerContext channelHandlerContext) {
+        Attribute<Map<Integer, NettyRequestStream>> attribute = channelHandlerContext.channel().attr(REQUEST_STREAMS);
+        Map<Integer, NettyRequestStream> requestStreams = attribute.get();
+        if (null == requestStreams) {
+            requestStreams = new ConcurrentHashMap<>();
+            Map<Integer, NettyRequestStream> old = attribute.setIfAbsent(requestStreams);
+            if (null != old) {
+                requestStreams = old;
+            }
+        }
+        return requestStreams;
+    }
+
+    /**
+     * 连接断开的时候取消这个连接上所有的流
+     */
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        Map<Integer, ServerStream> streams = ctx.channel().attr(STREAMS).get();
+        if (null != streams) {
+            for (ServerStream stream : streams.values()) {
+                stream.cancel();
+            }
+        }
+        Map<Integer, NettyRequestStream> requestStreams = ctx.channel().attr(REQUEST_STREAMS).get();
+        if (null != requestStreams) {
+            for (NettyRequestStream requestStream : requestStreams.values()) {
+                requestStream.cancel();
+            }
+        }
+        super.channelInactive(ctx);
+    }
+
+    private void write(ChannelHandlerContext channelHandlerContext, Command response) {
+        channelHandlerContext.writeAndFlush(response).addListener((ChannelFutureListener) channelFuture -> {
+            if (!channelFuture.isSuccess()) {
+                logger.warn("Write response failed!", channelFuture.cause());
+                channelHandlerContext.channel().close();
+            }
+        });
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
         logger.warn("Exception: ", cause);
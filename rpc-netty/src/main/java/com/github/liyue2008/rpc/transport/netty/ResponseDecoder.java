@@ -27,6 +27,10 @@ import java.util.List;
  * Date: 2019/9/20
  */
 public class ResponseDecoder extends CommandDecoder {
+    public ResponseDecoder(CompressionMetrics compressionMetrics) {
+        super(compressionMetrics, Header.FLAG_COMPRESSION_ACK);
+    }
+
 
     @Override
     protected Header decodeHeader(ChannelHandlerContext channelHandlerContext, ByteBuf byteBuf) {
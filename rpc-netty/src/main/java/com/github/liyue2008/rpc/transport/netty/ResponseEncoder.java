@@ -26,6 +26,10 @@ import java.nio.charset.StandardCharsets;
  * Date: 2019/9/20
  */
 public class ResponseEncoder extends CommandEncoder {
+    public ResponseEncoder(CompressionMetrics compressionMetrics) {
+        super(compressionMetrics, Header.FLAG_COMPRESSION_ACK);
+    }
+
     @Override
     protected void encodeHeader(ChannelHandlerContext channelHandlerContext, Header header, ByteBuf byteBuf) throws Exception {
         super.encodeHeader(channelHandlerContext, header, byteBuf);
@@ -16,10 +16,12 @@ package com.github.liyue2008.rpc.transport.netty;
 import com.github.liyue2008.rpc.transport.InFlightRequests;
 import com.github.liyue2008.rpc.transport.ResponseFuture;
 import com.github.liyue2008.rpc.transport.command.Command;
+import com.github.liyue2008.rpc.transport.command.Header;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.AttributeKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,29 +32,75 @@ import org.slf4j.LoggerFactory;
 @ChannelHandler.Sharable
 public class ResponseInvocation extends SimpleChannelInboundHandler<Command> {
     private static final Logger logger = LoggerFactory.getLogger(ResponseInvocation.class);
-    private final InFlightRequests inFlightRequests;
-
-    ResponseInvocation(InFlightRequests inFlightRequests) {
-        this.inFlightRequests = inFlightRequests;
-    }
+    /**
+     * 每个连接自己的在途请求，保存在连接的属性中
+     */
+    static final AttributeKey<InFlightRequests> IN_FLIGHT_REQUESTS = AttributeKey.valueOf("inFlightRequests");
 
     /**
      * 这个类中异步接收所有服务端返回的响应，处理逻辑比较简单，
-     * 就是根据响应头中的 requestId，去在途请求 inFlightRequest 中查找对应的 ResponseFuture，
+     * 就是根据响应头中的 requestId，去这个连接的在途请求 inFlightRequest 中查找对应的 ResponseFuture，
      * 设置返回值并结束这个 ResponseFuture 就可以了。
      * @param channelHandlerContext
      * @param response
      */
     @Override
     protected void channelRead0(ChannelHandlerContext channelHandlerContext, Command response) {
-        ResponseFuture future = inFlightRequests.remove(response.getHeader().getRequestId());
+        InFlightRequests inFlightRequests = channelHandlerContext.channel().attr(IN_FLIGHT_REQUESTS).get();
+        if (response.getHeader().hasFlag(Header.FLAG_STREAM)) {
+            onFrame(inFlightRequests, response);
+            return;
+        }
+        if (response.getHeader().hasFlag(Header.FLAG_STREAM_CREDIT)) {
+            onCredits(inFlightRequests, response);
+            return;
+        }
+        ResponseFuture future = null == inFlightRequests ? null : inFlightRequests.remove(response.getHeader().getRequestId());
         if(null != future) {
-            future.getFuture().complete(response);
+            // 响应交给等待它的一方处理，由那一方负责释放；请求已经超时的，这里直接丢弃
+            response.retain();
+            if (!future.getFuture().complete(response)) {
+                response.release();
+            }
         } else {
             logger.warn("Drop response: {}", response);
         }
     }
 
+    /**
+     * 流式调用中间的数据帧：流还没有结束，不从在途请求中删除，直接交给接收数据帧的一方。
+     * 已经取消或者超时的流，收到的数据帧直接丢弃。
+     */
+    private void onFrame(InFlightRequests inFlightRequests, Command frame) {
+        ResponseFuture future = null == inFlightRequests ? null : inFlightRequests.get(frame.getHeader().getRequestId());
+        if (null != future && future.isStream()) {
+            frame.retain();
+            future.onFrame(frame);
+        } else if (logger.isDebugEnabled()) {
+            logger.debug("Drop stream frame of request {}.", frame.getHeader().getRequestId());
+        }
+    }
+
+    /**
+     * 服务端给客户端流式调用的额度，SimpleChannelInboundHandler 在这里返回之后释放它。
+     * 找不到说明调用已经结束了
+     */
+    private void onCredits(InFlightRequests inFlightRequests, Command command) {
+        ResponseFuture future = null == inFlightRequests ? null : inFlightRequests.get(command.getHeader().getRequestId());
+        if (null != future && future.isRequestStream()) {
+            future.onCredits(command.getPayloadBuffer().readInt());
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        InFlightRequests inFlightRequests = ctx.channel().attr(IN_FLIGHT_REQUESTS).get();
+        if (null != inFlightRequests) {
+            inFlightRequests.close();
+        }
+        super.channelInactive(ctx);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
         logger.warn("Exception: ", cause);
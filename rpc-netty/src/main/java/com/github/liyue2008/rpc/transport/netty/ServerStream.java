@@ -0,0 +1,208 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.transport.netty;
+
+import com.github.liyue2008.rpc.config.ConfigSupport;
+import com.github.liyue2008.rpc.transport.RequestDispatcher;
+import com.github.liyue2008.rpc.transport.StreamResponse;
+import com.github.liyue2008.rpc.transport.command.Code;
+import com.github.liyue2008.rpc.transport.command.Command;
+import com.github.liyue2008.rpc.transport.command.Header;
+import com.github.liyue2008.rpc.transport.command.ResponseHeader;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 服务端的一个流：收到打开流的请求时创建，等 RequestHandler 返回 {@link StreamResponse} 之后开始发送。
+ * <ul>
+ *     <li>每发送一帧数据消耗一个额度，额度用完就停下来，等客户端补充额度之后再继续；</li>
+ *     <li>拉取和发送数据的任务交给 {@link RequestDispatcher} 执行，数据来源可以阻塞，不会卡住 I/O 线程；</li>
+ *     <li>同一时刻最多只有一个发送任务，额度、取消和开始发送都只是唤醒这个任务；
+ *     一个发送任务把当前额度内的数据帧都写完之后只flush一次；</li>
+ *     <li>额度用完之后超过 simple.rpc.server.stream.idle.timeout.ms（默认60秒）客户端还没有补充额度，流以错误结束，
+ *     避免客户端不再读取的流一直占用数据来源。</li>
+ * </ul>
+ * @author LiYue
+ * Date: 2019/10/15
+ */
+class ServerStream {
+    private static final Logger logger = LoggerFactory.getLogger(ServerStream.class);
+    private static final long IDLE_TIMEOUT_MS = ConfigSupport.getLong("server.stream.idle.timeout.ms", 60000L);
+    /**
+     * 服务端过载、派发被拒绝时，过一会儿再重试
+     */
+    private static final long RETRY_DELAY_MS = 10L;
+
+    private final ChannelHandlerContext ctx;
+    private final Header requestHeader;
+    private final Map<Integer, ServerStream> streams;
+    private final RequestDispatcher requestDispatcher;
+    private final AtomicInteger credits = new AtomicInteger(0);
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Runnable pumpTask = this::pump;
+    private volatile StreamResponse response;
+    private volatile boolean cancelled = false;
+    private volatile boolean expired = false;
+    private volatile ScheduledFuture<?> idleTimeout;
+    /**
+     * 只在发送任务中读写
+     */
+    private boolean closed = false;
+
+    ServerStream(ChannelHandlerContext ctx, Header requestHeader, Map<Integer, ServerStream> streams, RequestDispatcher requestDispatcher) {
+        this.ctx = ctx;
+        this.requestHeader = requestHeader;
+        this.streams = streams;
+        this.requestDispatcher = requestDispatcher;
+    }
+
+    /**
+     * RequestHandler 处理完请求，开始发送
+     */
+    void start(StreamResponse response) {
+        this.response = response;
+        schedule();
+    }
+
+    /**
+     * 客户端补充了额度
+     */
+    void grant(int n) {
+        credits.accumulateAndGet(n, (current, increment) -> (int) Math.min(Integer.MAX_VALUE, (long) current + increment));
+        ScheduledFuture<?> idleTimeout = this.idleTimeout;
+        if (null != idleTimeout) {
+            idleTimeout.cancel(false);
+        }
+        schedule();
+    }
+
+    /**
+     * 客户端取消了流，或者连接断开了。还没有开始发送的流，等开始发送时再释放资源
+     */
+    void cancel() {
+        cancelled = true;
+        schedule();
+    }
+
+    private void schedule() {
+        if (null != response && scheduled.compareAndSet(false, true)) {
+            if (!requestDispatcher.dispatch(pumpTask)) {
+                scheduled.set(false);
+                ctx.executor().schedule(this::schedule, RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void pump() {
+        try {
+            while (!closed) {
+                if (cancelled) {
+                    finish(null);
+                } else if (expired) {
+                    finish(errorResponse("Stream idle timeout!"));
+                } else if (credits.get() <= 0) {
+                    idleTimeout = ctx.executor().schedule(this::onIdleTimeout, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    break;
+                } else {
+                    sendNext();
+                }
+            }
+        } finally {
+            // 一次发送任务中写入的所有数据帧一起flush
+            ctx.flush();
+            scheduled.set(false);
+        }
+        // 发送任务退出的同时可能刚好有新的额度或者取消，这时没能唤醒发送任务，需要再检查一次
+        if (!closed && (cancelled || expired || credits.get() > 0)) {
+            schedule();
+        }
+    }
+
+    private void sendNext() {
+        ByteBuf payload = ctx.alloc().buffer();
+        boolean hasNext;
+        try {
+            hasNext = response.getStream().next(payload);
+        } catch (Throwable t) {
+            payload.release();
+            logger.warn("Stream {} failed: ", requestHeader.getRequestId(), t);
+            finish(errorResponse(t.getMessage()));
+            return;
+        }
+        if (!hasNext) {
+            payload.release();
+            // 最后一帧就是 StreamResponse 自己
+            finish(response);
+            return;
+        }
+        credits.decrementAndGet();
+        ResponseHeader frameHeader = new ResponseHeader(requestHeader.getType(), requestHeader.getVersion(), requestHeader.getRequestId());
+        frameHeader.setFlags(Header.FLAG_STREAM);
+        write(new Command(frameHeader, payload));
+    }
+
+    private void onIdleTimeout() {
+        if (credits.get() <= 0) {
+            expired = true;
+            schedule();
+        }
+    }
+
+    /**
+     * 结束这个流
+     * @param last 最后一帧，被取消的流不再发送，为null
+     */
+    private void finish(Command last) {
+        closed = true;
+        streams.remove(requestHeader.getRequestId(), this);
+        ScheduledFuture<?> idleTimeout = this.idleTimeout;
+        if (null != idleTimeout) {
+            idleTimeout.cancel(false);
+        }
+        try {
+            response.getStream().close();
+        } catch (Throwable t) {
+            logger.warn("Close stream {} failed: ", requestHeader.getRequestId(), t);
+        }
+        if (last != response) {
+            response.release();
+        }
+        if (null != last) {
+            write(last);
+        }
+    }
+
+    private Command errorResponse(String error) {
+        return new Command(new ResponseHeader(requestHeader.getType(), requestHeader.getVersion(), requestHeader.getRequestId(),
+                Code.UNKNOWN_ERROR.getCode(), error), new byte[0]);
+    }
+
+    private void write(Command command) {
+        ctx.write(command).addListener((ChannelFutureListener) channelFuture -> {
+            if (!channelFuture.isSuccess()) {
+                logger.warn("Write stream frame failed!", channelFuture.cause());
+                channelFuture.channel().close();
+            }
+        });
+    }
+}
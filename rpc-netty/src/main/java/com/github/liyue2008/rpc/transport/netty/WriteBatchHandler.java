@@ -0,0 +1,127 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.transport.netty;
+
+import com.github.liyue2008.rpc.config.ConfigSupport;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 合并flush：发送请求和响应的时候，每条消息都会调用一次 writeAndFlush，
+ * 请求量大的时候每个很小的数据帧都会触发一次系统调用。
+ * 这个处理器拦截 flush，把同一段时间内写入的消息攒在一起，一次flush发送出去：
+ * <ul>
+ *     <li>攒够 maxMessages 条消息（Command）或者 maxBytes 字节，立即flush；</li>
+ *     <li>否则在 maxDelay 之后flush，maxDelay 为0表示在 EventLoop 处理完当前这一轮任务之后flush。</li>
+ * </ul>
+ * 这个处理器需要放在编码器之前（靠近 pipeline 的头部），这样才能拿到编码之后的 ByteBuf，准确统计字节数。
+ * {@link CommandEncoder} 把每个 Command 编码成一个 ByteBuf，所以每次 write 就是一条消息。
+ * 默认不开启，通过配置 simple.rpc.transport.flush.consolidation=true 开启。
+ * @author LiYue
+ * Date: 2019/10/11
+ */
+public class WriteBatchHandler extends ChannelDuplexHandler {
+    private final static boolean ENABLED = ConfigSupport.getBoolean("transport.flush.consolidation", false);
+    private final static int MAX_MESSAGES = ConfigSupport.getInt("transport.flush.max.messages", 64);
+    private final static int MAX_BYTES = ConfigSupport.getInt("transport.flush.max.bytes", 64 * 1024);
+    private final static long MAX_DELAY_US = ConfigSupport.getLong("transport.flush.max.delay.us", 0L);
+
+    private final int maxMessages;
+    private final long maxBytes;
+    private final long maxDelayNanos;
+    private final WriteBatchMetrics metrics;
+    private final Runnable flushTask;
+    private ChannelHandlerContext ctx;
+    private int pendingMessages = 0;
+    private long pendingBytes = 0L;
+    private boolean flushScheduled = false;
+
+    WriteBatchHandler(int maxMessages, long maxBytes, long maxDelayNanos, WriteBatchMetrics metrics) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.maxDelayNanos = maxDelayNanos;
+        this.metrics = metrics;
+        this.flushTask = () -> {
+            flushScheduled = false;
+            flushNow();
+        };
+    }
+
+    /**
+     * 是否开启了合并flush
+     */
+    static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * 按照配置创建一个处理器，每个连接一个
+     */
+    static WriteBatchHandler newInstance(WriteBatchMetrics metrics) {
+        return new WriteBatchHandler(MAX_MESSAGES, MAX_BYTES, TimeUnit.MICROSECONDS.toNanos(MAX_DELAY_US), metrics);
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        pendingMessages++;
+        if (msg instanceof ByteBuf) {
+            pendingBytes += ((ByteBuf) msg).readableBytes();
+        }
+        ctx.write(msg, promise);
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) {
+        if (pendingMessages >= maxMessages || pendingBytes >= maxBytes) {
+            flushNow();
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            if (maxDelayNanos > 0L) {
+                ctx.executor().schedule(flushTask, maxDelayNanos, TimeUnit.NANOSECONDS);
+            } else {
+                ctx.executor().execute(flushTask);
+            }
+        }
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        // 关闭连接之前先把攒着的消息发出去
+        flushNow();
+        super.close(ctx, promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        flushNow();
+    }
+
+    private void flushNow() {
+        if (pendingMessages > 0) {
+            metrics.record(pendingMessages, pendingBytes);
+            pendingMessages = 0;
+            pendingBytes = 0L;
+            ctx.flush();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.transport.netty;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 合并写入的统计数据：一共执行了多少次flush，以及每次flush平均发送了多少条消息、多少字节
+ * @author LiYue
+ * Date: 2019/10/11
+ */
+public class WriteBatchMetrics {
+    private final AtomicLong flushes = new AtomicLong(0L);
+    private final AtomicLong messages = new AtomicLong(0L);
+    private final AtomicLong bytes = new AtomicLong(0L);
+    private final AtomicLong maxBatchMessages = new AtomicLong(0L);
+
+    void record(int batchMessages, long batchBytes) {
+        flushes.incrementAndGet();
+        messages.addAndGet(batchMessages);
+        bytes.addAndGet(batchBytes);
+        long max;
+        while ((max = maxBatchMessages.get()) < batchMessages && !maxBatchMessages.compareAndSet(max, batchMessages)) {
+            // 重试直到更新成功或者已经有更大的值
+        }
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    public long getMessages() {
+        return messages.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getMaxBatchMessages() {
+        return maxBatchMessages.get();
+    }
+
+    public double getAverageBatchMessages() {
+        long flushes = getFlushes();
+        return flushes == 0 ? 0D : (double) getMessages() / flushes;
+    }
+
+    public double getAverageBatchBytes() {
+        long flushes = getFlushes();
+        return flushes == 0 ? 0D : (double) getBytes() / flushes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("flushes: %d, messages: %d, bytes: %d, avg messages per flush: %.2f, avg bytes per flush: %.2f, max messages per flush: %d",
+                getFlushes(), getMessages(), getBytes(), getAverageBatchMessages(), getAverageBatchBytes(), getMaxBatchMessages());
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.serialize.impl;
+
+import com.alibaba.fastjson.JSON;
+import com.github.liyue2008.rpc.serialize.AllowedClasses;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 比较 {@link BinaryCodec} 和 fastjson 编码、解码同一个 POJO 的耗时，并打印两种编码的数据大小。
+ * 编译测试代码之后直接运行 main 方法。
+ * @author LiYue
+ * Date: 2019/10/17
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    private final BinaryCodec codec = new BinaryCodec();
+    private final AllowedClasses allowed = AllowedClasses.of(Order.class);
+    private Order order;
+    private ByteBuf buffer;
+    private ByteBuf binary;
+    private byte [] json;
+
+    @Setup
+    public void setup() {
+        order = Order.sample();
+        buffer = Unpooled.buffer(1024);
+        binary = Unpooled.buffer(1024);
+        codec.write(order, binary);
+        json = JSON.toJSONBytes(order);
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.printf("%nPayload size, binary: %d bytes, fastjson: %d bytes.%n", binary.writerIndex(), json.length);
+        buffer.release();
+        binary.release();
+    }
+
+    @Benchmark
+    public ByteBuf binaryWrite() {
+        buffer.clear();
+        codec.write(order, buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public Object binaryRead() {
+        binary.readerIndex(0);
+        return codec.read(binary, allowed);
+    }
+
+    @Benchmark
+    public byte [] fastjsonWrite() {
+        return JSON.toJSONBytes(order);
+    }
+
+    @Benchmark
+    public Object fastjsonRead() {
+        return JSON.parseObject(json, Order.class);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(CodecBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    public static class Order {
+        public long id;
+        public int quantity;
+        public double price;
+        public boolean paid;
+        public String customer;
+        public List<String> tags;
+        public List<Item> items;
+
+        static Order sample() {
+            Order order = new Order();
+            order.id = 20191017001L;
+            order.quantity = 3;
+            order.price = 299.5D;
+            order.paid = true;
+            order.customer = "LiYue";
+            order.tags = new ArrayList<>();
+            order.tags.add("express");
+            order.tags.add("gift");
+            order.items = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                Item item = new Item();
+                item.sku = "SKU-" + i;
+                item.count = i + 1;
+                item.price = 99.5D + i;
+                order.items.add(item);
+            }
+            return order;
+        }
+    }
+
+    public static class Item {
+        public String sku;
+        public int count;
+        public double price;
+    }
+}
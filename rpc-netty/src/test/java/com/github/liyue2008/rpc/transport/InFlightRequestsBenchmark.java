@@ -0,0 +1,113 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.liyue2008.rpc.transport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 16个线程并发调用同一个连接，比较 {@link InFlightRequests} 和以装箱的请求id为键的 ConcurrentHashMap
+ * 放入、删除在途请求，以及查找不存在的请求（超时之后才收到的响应）的耗时。
+ * 每个线程的请求id间隔线程数递增，和 RequestIdSupport 生成的全局递增的请求id一样交错落在槽中，
+ * 但不测量共享计数器的竞争。兜底超时对两种实现的开销一样，这里不登记。
+ * 编译测试代码之后直接运行 main 方法。
+ * @author LiYue
+ * Date: 2019/10/17
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(InFlightRequestsBenchmark.THREADS)
+@Fork(1)
+public class InFlightRequestsBenchmark {
+    static final int THREADS = 16;
+    private final InFlightRequests inFlightRequests = new InFlightRequests(null, 256);
+    private final Map<Integer, ResponseFuture> map = new ConcurrentHashMap<>();
+    private final AtomicInteger nextThread = new AtomicInteger(0);
+
+    @TearDown
+    public void tearDown() {
+        inFlightRequests.close();
+    }
+
+    @Benchmark
+    public ResponseFuture slotsPutRemove(Caller caller) {
+        ResponseFuture responseFuture = caller.next();
+        inFlightRequests.put(responseFuture, 0L);
+        return inFlightRequests.remove(responseFuture.getRequestId());
+    }
+
+    @Benchmark
+    public ResponseFuture mapPutRemove(Caller caller) {
+        ResponseFuture responseFuture = caller.next();
+        map.put(responseFuture.getRequestId(), responseFuture);
+        return map.remove(responseFuture.getRequestId());
+    }
+
+    @Benchmark
+    public ResponseFuture slotsMiss(Caller caller) {
+        return inFlightRequests.get(caller.nextRequestId());
+    }
+
+    @Benchmark
+    public ResponseFuture mapMiss(Caller caller) {
+        return map.get(caller.nextRequestId());
+    }
+
+    /**
+     * 一个调用方线程
+     */
+    @State(Scope.Thread)
+    public static class Caller {
+        private int requestId;
+
+        @Setup
+        public void setup(InFlightRequestsBenchmark benchmark) {
+            requestId = benchmark.nextThread.getAndIncrement();
+        }
+
+        int nextRequestId() {
+            return requestId += THREADS;
+        }
+
+        ResponseFuture next() {
+            return new ResponseFuture(nextRequestId(), new CompletableFuture<>());
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(InFlightRequestsBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -55,6 +55,8 @@ public class Server {
             logger.info("开始提供服务，按任何键退出.");
             //noinspection ResultOfMethodCallIgnored
             System.in.read();
+            //服务端step3：退出之前注销服务，不用等到租约到期客户端就不会再调用这个地址
+            nameService.unregisterService(serviceName, uri);
             logger.info("Bye!");
         }
     }